@@ -1,6 +1,7 @@
 plugins {
     id("qupath-conventions")
     `maven-publish`
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 qupathExtension {
@@ -21,12 +22,34 @@ dependencies {
     implementation(libs.bioimageio.spec)
     implementation(libs.deepJavaLibrary)
     implementation("io.github.qupath:qupath-extension-djl:0.4.0")
+    implementation("com.microsoft.onnxruntime:onnxruntime:1.20.0")
 
     // For testing
     testImplementation(libs.junit)
 
 }
 
+// Microbenchmarks for the main hot paths, using synthetic data (no model required)
+// Run with: gradlew jmh
+// or for a subset: gradlew jmh -Pjmh.includes=ContourConversion
+jmh {
+    warmupIterations = 2
+    iterations = 5
+    fork = 1
+    if (project.hasProperty("jmh.includes")) {
+        includes = listOf(project.property("jmh.includes").toString())
+    }
+}
+
+// End-to-end throughput on a synthetic whole-slide image, using a synthetic predictor instead of a model
+// Run with: gradlew throughputBenchmark --args="width=40000 height=40000 latency=40"
+tasks.register<JavaExec>("throughputBenchmark") {
+    group = "benchmark"
+    description = "Measure end-to-end InstanSeg throughput using synthetic images and predictions"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "qupath.ext.instanseg.core.ThroughputBenchmark"
+}
+
 publishing {
     repositories {
         maven {
@@ -0,0 +1,90 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import qupath.lib.geom.Point2;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic inputs for the benchmarks, generated with a fixed seed so that runs are comparable.
+ */
+final class BenchmarkData {
+
+    private static final long SEED = 42L;
+
+    private BenchmarkData() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Create a label image containing randomly-placed filled circles (later labels may overlap earlier ones), similar to nucleus segmentation output.
+     * @param size width and height of the image
+     * @param nObjects number of labels to draw
+     * @param radius radius of each circle, in pixels
+     * @return a single-channel CV_32S Mat, with background 0 and labels starting at 1
+     */
+    static Mat createLabels(int size, int nObjects, int radius) {
+        var rng = new Random(SEED);
+        var mat = new Mat(size, size, opencv_core.CV_32SC1, Scalar.all(0));
+        for (int label = 1; label <= nObjects; label++) {
+            int x = rng.nextInt(size);
+            int y = rng.nextInt(size);
+            int r = Math.max(1, radius + rng.nextInt(Math.max(1, radius / 2)) - radius / 4);
+            try (var center = new Point(x, y); var color = Scalar.all(label)) {
+                opencv_imgproc.circle(mat, center, r, color, opencv_imgproc.FILLED, opencv_imgproc.LINE_8, 0);
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Create a float image with random values, with channels stored in the usual interleaved OpenCV layout.
+     * @param size width and height of the image
+     * @param nChannels number of channels
+     * @return a CV_32F Mat
+     */
+    static Mat createImage(int size, int nChannels) {
+        var rng = new Random(SEED);
+        var mat = new Mat(size, size, opencv_core.CV_32FC(nChannels));
+        try (FloatIndexer indexer = mat.createIndexer()) {
+            for (long i = 0; i < indexer.size(0); i++) {
+                for (long j = 0; j < indexer.size(1); j++) {
+                    for (long c = 0; c < indexer.size(2); c++) {
+                        indexer.put(i, j, c, rng.nextFloat());
+                    }
+                }
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Create a roughly circular polygon ROI with jittered vertices, resembling an annotation drawn by hand.
+     * @param cx center x
+     * @param cy center y
+     * @param radius approximate radius
+     * @param nVertices number of vertices
+     * @return the polygon ROI
+     */
+    static ROI createPolygon(double cx, double cy, double radius, int nVertices) {
+        var rng = new Random(SEED);
+        List<Point2> points = new ArrayList<>(nVertices);
+        for (int i = 0; i < nVertices; i++) {
+            double theta = 2 * Math.PI * i / nVertices;
+            double r = radius * (0.9 + 0.2 * rng.nextDouble());
+            points.add(new Point2(cx + r * Math.cos(theta), cy + r * Math.sin(theta)));
+        }
+        return ROIs.createPolygonROI(points, ImagePlane.getDefaultPlane());
+    }
+
+}
@@ -0,0 +1,61 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for converting a label image into objects, at different object densities.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ContourConversionBenchmark {
+
+    @Param({"512"})
+    public int tileSize;
+
+    /**
+     * Number of objects per tile.
+     */
+    @Param({"10", "100", "1000"})
+    public int density;
+
+    private Mat labels;
+    private RegionRequest request;
+    private InstanSegOutputToObjectConverter converter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // Approximate a nucleus with a radius of 8 pixels, then shrink as density increases so the tile doesn't saturate
+        int radius = (int)Math.max(3, Math.min(8, tileSize / Math.sqrt(density) / 3));
+        labels = BenchmarkData.createLabels(tileSize, density, radius);
+        request = RegionRequest.createInstance("benchmark", 1.0, 0, 0, tileSize, tileSize);
+        converter = new InstanSegOutputToObjectConverter(List.of(), PathDetectionObject.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        labels.close();
+    }
+
+    @Benchmark
+    public List<PathObject> convertToObjects() {
+        return converter.convertToObjects(request, new Mat[]{labels});
+    }
+
+}
@@ -0,0 +1,78 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import qupath.ext.djl.DjlTools;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for converting between OpenCV Mats and DJL NDArrays, as done by {@link MatTranslator}.
+ * <p>
+ * This doesn't require a model, but does require the PyTorch engine to be available offline
+ * (i.e. downloaded previously, for example by QuPath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MatTranslationBenchmark {
+
+    private static final String LAYOUT = "CHW";
+
+    @Param({"256", "512", "1024"})
+    public int tileSize;
+
+    @Param({"3"})
+    public int nChannels;
+
+    private NDManager baseManager;
+    private Mat input;
+    private NDArray labels;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var engine = PytorchManager.getEngineOffline();
+        if (engine == null)
+            throw new IllegalStateException("PyTorch engine is not available - it must be downloaded before running this benchmark");
+        baseManager = engine.newBaseManager(Device.cpu());
+        input = BenchmarkData.createImage(tileSize, nChannels);
+        try (var mat = BenchmarkData.createLabels(tileSize, tileSize / 4, 6)) {
+            labels = DjlTools.matToNDArray(baseManager, mat, LAYOUT);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        labels.close();
+        baseManager.close();
+        input.close();
+    }
+
+    @Benchmark
+    public long matToNDArray() {
+        try (var manager = baseManager.newSubManager()) {
+            var array = DjlTools.matToNDArray(manager, input, LAYOUT);
+            return array.size();
+        }
+    }
+
+    @Benchmark
+    public long ndArrayToMat() {
+        try (var mat = DjlTools.ndArrayToMat(labels, LAYOUT)) {
+            return mat.total();
+        }
+    }
+
+}
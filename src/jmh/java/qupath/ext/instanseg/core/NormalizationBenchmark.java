@@ -0,0 +1,65 @@
+package qupath.ext.instanseg.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ops.ImageOp;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmark for computing percentile normalization values for a parent ROI.
+ * The image is held in memory, so this measures the downsampled read and the percentile computation
+ * rather than file access.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NormalizationBenchmark {
+
+    @Param({"1024", "4096"})
+    public int imageSize;
+
+    @Param({"3"})
+    public int nChannels;
+
+    private ImageData<BufferedImage> imageData;
+    private ROI roi;
+    private List<ColorTransforms.ColorTransform> channels;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var img = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
+        var rng = new Random(42L);
+        for (int y = 0; y < imageSize; y++) {
+            for (int x = 0; x < imageSize; x++) {
+                img.setRGB(x, y, rng.nextInt(0xFFFFFF));
+            }
+        }
+        imageData = new ImageData<>(new WrappedBufferedImageServer("benchmark", img));
+        roi = BenchmarkData.createPolygon(imageSize / 2.0, imageSize / 2.0, imageSize * 0.45, 200);
+        channels = IntStream.range(0, nChannels)
+                .mapToObj(ColorTransforms::createChannelExtractor)
+                .toList();
+    }
+
+    @Benchmark
+    public ImageOp getNormalization() {
+        return TilePredictionProcessor.getNormalization(imageData, roi, channels, 0.1, 99.9);
+    }
+
+}
@@ -0,0 +1,71 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for removing objects near tile boundaries and masking them with the parent ROI.
+ * The parent is a polygon that crosses the tile, so that some objects need to be clipped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PruneObjectsBenchmark {
+
+    private static final int IMAGE_SIZE = 8192;
+
+    @Param({"512"})
+    public int tileSize;
+
+    @Param({"500"})
+    public int density;
+
+    /**
+     * Number of vertices in the parent ROI; hand-drawn annotations can be very detailed.
+     */
+    @Param({"100", "10000"})
+    public int parentVertices;
+
+    private List<PathObject> objects;
+    private RegionRequest request;
+    private ROI parent;
+    private ParentMask.Cache masks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // Place the tile away from the image edges, with the right-hand boundary of the parent passing through it
+        int x = IMAGE_SIZE / 2;
+        int y = IMAGE_SIZE / 2;
+        double radius = tileSize * 4.0;
+        request = RegionRequest.createInstance("benchmark", 1.0, x, y, tileSize, tileSize);
+        parent = BenchmarkData.createPolygon(x + tileSize / 2.0 - radius, y + tileSize / 2.0, radius, parentVertices);
+        try (var labels = BenchmarkData.createLabels(tileSize, density, 6)) {
+            var converter = new InstanSegOutputToObjectConverter(List.of(), PathDetectionObject.class);
+            objects = converter.convertToObjects(request, new Mat[]{labels});
+        }
+        // Masks are shared between the tiles of a run
+        masks = new ParentMask.Cache();
+    }
+
+    @Benchmark
+    public List<PathObject> pruneObjects() {
+        return PruneObjectOutputHandler.pruneObjects(objects, request, masks.get(parent), 5, IMAGE_SIZE, IMAGE_SIZE,
+                ThreadBudget.UNMANAGED);
+    }
+
+}
@@ -0,0 +1,87 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A large RGB image server that generates pixels on demand, so that whole-slide throughput can be measured
+ * without any image files.
+ * <p>
+ * Each tile is filled with noise around a pink 'tissue' background, seeded by the tile position so that
+ * repeated reads return the same pixels.
+ */
+class SyntheticImageServer extends AbstractTileableImageServer {
+
+    private final ImageServerMetadata metadata;
+    private final String id = UUID.randomUUID().toString();
+
+    SyntheticImageServer(int width, int height, int tileSize) {
+        this.metadata = new ImageServerMetadata.Builder()
+                .width(width)
+                .height(height)
+                .rgb(true)
+                .pixelType(PixelType.UINT8)
+                .channels(ImageServerMetadata.Channel.getDefaultRGBChannels())
+                .preferredTileSize(tileSize, tileSize)
+                .levelsFromDownsamples(1, 4, 16, 64)
+                .pixelSizeMicrons(0.5, 0.5)
+                .name("Synthetic " + width + "x" + height)
+                .build();
+    }
+
+    @Override
+    protected BufferedImage readTile(TileRequest tileRequest) {
+        int width = tileRequest.getTileWidth();
+        int height = tileRequest.getTileHeight();
+        var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var random = new Random(31L * tileRequest.getImageX() + tileRequest.getImageY() + tileRequest.getLevel());
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(48);
+                int r = 200 + noise / 2;
+                int g = 120 + noise;
+                int b = 180 + noise / 2;
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return img;
+    }
+
+    @Override
+    protected ImageServerBuilder.ServerBuilder<BufferedImage> createServerBuilder() {
+        return null;
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + id;
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return List.of();
+    }
+
+    @Override
+    public String getServerType() {
+        return "Synthetic";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+}
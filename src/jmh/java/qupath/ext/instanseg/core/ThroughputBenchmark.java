@@ -0,0 +1,125 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * End-to-end throughput benchmark, running the full pipeline (tiling, reading, normalization, conversion,
+ * pruning, merging and adding to the hierarchy) on a synthetic whole-slide image with a synthetic predictor.
+ * <p>
+ * Options are passed as {@code key=value} arguments, e.g.
+ * <pre>
+ * gradlew throughputBenchmark --args="width=40000 height=40000 density=1500 latency=40 threads=8"
+ * </pre>
+ * To compare inference backends, specify a model directory with {@code model=/path/to/model} and optionally
+ * {@code backend=name}; the synthetic predictor is then replaced by the real model.
+ * <p>
+ * This isn't a JMH benchmark, because a single run is long enough to be meaningful and we care about the
+ * total throughput (including parallelism) rather than the time per operation.
+ */
+public class ThroughputBenchmark {
+
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("width", "20000"),
+            Map.entry("height", "20000"),
+            Map.entry("tileSize", "512"),
+            Map.entry("padding", "80"),
+            Map.entry("density", "1000"),
+            Map.entry("radius", "6"),
+            Map.entry("latency", "20"),
+            Map.entry("channels", "1"),
+            Map.entry("threads", String.valueOf(Runtime.getRuntime().availableProcessors())),
+            Map.entry("runs", "2"),
+            Map.entry("model", ""),
+            Map.entry("backend", "")
+    );
+
+    public static void main(String[] args) throws Exception {
+        var options = parseOptions(args);
+        int width = Integer.parseInt(options.get("width"));
+        int height = Integer.parseInt(options.get("height"));
+        int tileSize = Integer.parseInt(options.get("tileSize"));
+        int runs = Integer.parseInt(options.get("runs"));
+
+        var builder = InstanSeg.builder();
+        if (options.get("model").isBlank()) {
+            builder.syntheticPredictions(
+                    Double.parseDouble(options.get("density")),
+                    Double.parseDouble(options.get("radius")),
+                    Long.parseLong(options.get("latency")),
+                    Integer.parseInt(options.get("channels")))
+                    .downsample(1.0);
+        } else {
+            builder.modelPath(options.get("model"));
+            if (!options.get("backend").isBlank())
+                builder.backend(options.get("backend"));
+        }
+        var instanSeg = builder
+                .tileDims(tileSize)
+                .interTilePadding(Integer.parseInt(options.get("padding")))
+                .nThreads(Integer.parseInt(options.get("threads")))
+                .warmUp()
+                .build();
+
+        System.out.println("Options: " + options);
+        // The first run includes JIT warm-up and class loading, so is reported separately
+        for (int run = 0; run < runs; run++) {
+            var server = new SyntheticImageServer(width, height, tileSize);
+            var imageData = new ImageData<>(server);
+            var annotation = PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(0, 0, width, height, ImagePlane.getDefaultPlane()));
+            imageData.getHierarchy().addObject(annotation);
+
+            System.gc();
+            var heapPools = getHeapPools();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            var results = instanSeg.detectObjects(imageData, List.of(annotation));
+
+            long peakHeap = heapPools.stream().mapToLong(p -> p.getPeakUsage().getUsed()).sum();
+            double seconds = (results.processingTimeMillis() - results.warmUpTimeMillis()) / 1000.0;
+            System.out.printf("Run %d%s: %d tiles, %d objects in %.1f s (+ %.1f s warm-up) | %.1f tiles/s | %.0f objects/s | %.1f MPixels/s | peak heap %.0f MB%n",
+                    run + 1,
+                    run == 0 ? " (warm-up)" : "",
+                    results.nTilesProcessed(),
+                    results.nObjectsDetected(),
+                    seconds,
+                    results.warmUpTimeMillis() / 1000.0,
+                    results.nTilesProcessed() / seconds,
+                    results.nObjectsDetected() / seconds,
+                    results.nPixelsProcessed() / seconds / 1e6,
+                    peakHeap / 1024.0 / 1024.0);
+            server.close();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (var arg : args) {
+            int ind = arg.indexOf('=');
+            if (ind <= 0)
+                throw new IllegalArgumentException("Expected key=value, but got " + arg);
+            var key = arg.substring(0, ind).strip();
+            if (!DEFAULTS.containsKey(key))
+                throw new IllegalArgumentException("Unknown option " + key + " - valid options are " + DEFAULTS.keySet());
+            options.put(key, arg.substring(ind + 1).strip());
+        }
+        return options;
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(p -> p.getType() == MemoryType.HEAP)
+                .toList();
+    }
+
+}
@@ -0,0 +1,47 @@
+package qupath.ext.instanseg.core;
+
+/**
+ * Thread settings for the inference engine.
+ * <p>
+ * Engines such as PyTorch use their own thread pools for each operation, in addition to the threads used to
+ * process tiles. Without limits, running several predictors in parallel can oversubscribe the available cores.
+ *
+ * @param intraOpThreads threads used within each operation, or &leq; 0 to use the engine default
+ * @param interOpThreads threads used to run independent operations in parallel, or &leq; 0 to use the engine default
+ */
+record EngineThreads(int intraOpThreads, int interOpThreads) {
+
+    /**
+     * Use the engine defaults.
+     */
+    static final EngineThreads DEFAULT = new EngineThreads(0, 0);
+
+    /**
+     * Check if the engine defaults should be used.
+     * @return true if neither the intra-op nor inter-op threads are specified
+     */
+    boolean isDefault() {
+        return intraOpThreads <= 0 && interOpThreads <= 0;
+    }
+
+    /**
+     * Split the available cores between predictors, so that the engine threads for all predictors that can run
+     * at the same time roughly match the number of cores.
+     * <p>
+     * Task threads that aren't running the model may still be busy reading and converting tiles, so some cores
+     * are reserved for these (up to a quarter of the total).
+     * Inter-op parallelism is turned off, since running predictors in parallel already provides this.
+     *
+     * @param nCores the number of available processors
+     * @param nTaskThreads the number of threads used to process tiles
+     * @param nPredictors the number of predictors
+     * @return balanced thread settings
+     */
+    static EngineThreads balance(int nCores, int nTaskThreads, int nPredictors) {
+        int activePredictors = Math.max(1, Math.min(nPredictors, nTaskThreads));
+        int reserved = Math.min(Math.max(0, nTaskThreads - activePredictors), nCores / 4);
+        int intraOpThreads = Math.max(1, (nCores - reserved) / activePredictors);
+        return new EngineThreads(intraOpThreads, 1);
+    }
+
+}
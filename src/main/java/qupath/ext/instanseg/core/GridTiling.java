@@ -0,0 +1,209 @@
+package qupath.ext.instanseg.core;
+
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.utils.ObjectProcessor;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tiles aligned to the native tile grid of an image, to reduce the number of stored tiles that need to be decoded.
+ * <p>
+ * The default tiler centres tiles on each parent object, and padding extends each tile further - so tile requests
+ * are out of phase with the tiles stored in the image, and each request can decode up to nine stored tiles.
+ * Here, tile origins and sizes are multiples of the stored tile size at the pyramid level that will be read,
+ * and padding is a whole number of stored tiles whenever this still fits within the model's tile size.
+ * <p>
+ * QuPath's tiler aligns tiles to the bounds of each ROI, so instead we create a proxy object for each tile and
+ * process these without a tiler, then merge the results for each parent ourselves.
+ * Anything that needs the parent of a tile should use {@link #getParent(PathObject)} for the same tiling.
+ */
+class GridTiling {
+
+    private static final Logger logger = LoggerFactory.getLogger(GridTiling.class);
+
+    private final ImageServer<BufferedImage> server;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int padding;
+    private final Map<PathObject, List<PathObject>> proxies = new LinkedHashMap<>();
+    /**
+     * Map each proxy to its parent.
+     * This is only modified when creating proxies, before any tiles are processed.
+     */
+    private final Map<PathObject, PathObject> proxyParents = new HashMap<>();
+
+    private GridTiling(ImageServer<BufferedImage> server, int tileWidth, int tileHeight, int padding) {
+        this.server = server;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.padding = padding;
+    }
+
+    /**
+     * Create grid-aligned tiling for an image, if possible.
+     * @param server the image server
+     * @param downsample the downsample at which the model is applied
+     * @param tileDims the width and height of each tile read for the model, including padding
+     * @param padding the minimum padding, in pixels at the resolution of the model
+     * @return the tiling, or null if the image isn't tiled, or its tiles are too large to fit within a tile
+     */
+    static GridTiling create(ImageServer<BufferedImage> server, double downsample, int tileDims, int padding) {
+        var metadata = server.getMetadata();
+        int level = ServerTools.getPreferredResolutionLevel(server, downsample);
+        double levelDownsample = server.getDownsampleForResolution(level);
+        int stepX = (int)Math.round(metadata.getPreferredTileWidth() * levelDownsample);
+        int stepY = (int)Math.round(metadata.getPreferredTileHeight() * levelDownsample);
+        if (stepX <= 0 || stepY <= 0 || (stepX >= server.getWidth() && stepY >= server.getHeight())) {
+            logger.debug("Image is not tiled - tiles can't be aligned");
+            return null;
+        }
+        double maxSize = tileDims * downsample;
+        double minPadding = padding * downsample;
+        // Use whole stored tiles for padding if we can, so that padding only ever reads tiles that neighbours need too
+        int step = Math.max(stepX, stepY);
+        int pad = (int)Math.ceil(minPadding / step) * step;
+        if (maxSize - 2 * pad < Math.max(stepX, stepY)) {
+            pad = (int)Math.ceil(minPadding);
+        }
+        int nx = (int)Math.floor((maxSize - 2 * pad) / stepX);
+        int ny = (int)Math.floor((maxSize - 2 * pad) / stepY);
+        if (nx < 1 || ny < 1) {
+            logger.debug("Stored tiles ({}x{}) are too large to align with tiles of size {}", stepX, stepY, tileDims);
+            return null;
+        }
+        return new GridTiling(server, nx * stepX, ny * stepY, pad);
+    }
+
+    /**
+     * Get the padding to use around each tile.
+     * @return the padding, in full-resolution pixels
+     */
+    int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Create grid-aligned tile proxies for parent objects.
+     * Proxies are created for every tile that intersects the parent ROI (or the full image, if there is no ROI),
+     * and are not added to the hierarchy.
+     * @param parents the parent objects
+     * @return the proxies, in order of parent
+     */
+    List<PathObject> createProxies(Collection<? extends PathObject> parents) {
+        List<PathObject> allProxies = new ArrayList<>();
+        for (var parent : parents) {
+            var roi = parent.getROI();
+            if (roi == null)
+                roi = ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), ImagePlane.getDefaultPlane());
+            var geometry = PreparedGeometryFactory.prepare(roi.getGeometry());
+            List<PathObject> parentProxies = new ArrayList<>();
+            int x1 = Math.floorDiv((int)Math.floor(roi.getBoundsX()), tileWidth) * tileWidth;
+            int y1 = Math.floorDiv((int)Math.floor(roi.getBoundsY()), tileHeight) * tileHeight;
+            int x2 = (int)Math.ceil(roi.getBoundsX() + roi.getBoundsWidth());
+            int y2 = (int)Math.ceil(roi.getBoundsY() + roi.getBoundsHeight());
+            for (int y = y1; y < y2; y += tileHeight) {
+                for (int x = x1; x < x2; x += tileWidth) {
+                    int w = Math.min(tileWidth, server.getWidth() - x);
+                    int h = Math.min(tileHeight, server.getHeight() - y);
+                    if (w <= 0 || h <= 0)
+                        continue;
+                    var tile = ROIs.createRectangleROI(x, y, w, h, roi.getImagePlane());
+                    if (!geometry.intersects(tile.getGeometry()))
+                        continue;
+                    var proxy = PathObjects.createAnnotationObject(tile);
+                    proxyParents.put(proxy, parent);
+                    parentProxies.add(proxy);
+                }
+            }
+            proxies.put(parent, parentProxies);
+            allProxies.addAll(parentProxies);
+        }
+        return allProxies;
+    }
+
+    /**
+     * Merge the objects detected for each proxy, and add them to the parent objects.
+     * @param postProcessor the processor used to merge objects between tiles; may be null
+     */
+    void mergeProxies(ObjectProcessor postProcessor) {
+        for (var entry : proxies.entrySet()) {
+            var parent = entry.getKey();
+            Collection<PathObject> children = entry.getValue().stream()
+                    .flatMap(p -> p.getChildObjects().stream())
+                    .toList();
+            if (postProcessor != null) {
+                children = postProcessor.process(children);
+            }
+            parent.clearChildObjects();
+            parent.addChildObjects(children);
+            parent.setLocked(true);
+        }
+    }
+
+    /**
+     * Get the parent of a tile proxy created by this tiling.
+     * @param proxyOrParent the object passed to the processor
+     * @return the parent object, or the input if it isn't a proxy
+     */
+    PathObject getParent(PathObject proxyOrParent) {
+        var parent = proxyParents.get(proxyOrParent);
+        return parent == null ? proxyOrParent : parent;
+    }
+
+    /**
+     * Estimate the read amplification for a collection of tiles, i.e. the ratio of the area of stored tiles that
+     * must be decoded to the area that is requested.
+     * This assumes that every request decodes its stored tiles independently; caching can reduce this in practice.
+     * @param server the image server
+     * @param downsample the downsample at which tiles are read
+     * @param tiles the tile ROIs, excluding padding
+     * @param padding the padding added to each tile, in full-resolution pixels
+     * @return the read amplification (where 1 means only the requested pixels are decoded)
+     */
+    static double estimateReadAmplification(ImageServer<BufferedImage> server, double downsample,
+                                            Collection<? extends ROI> tiles, int padding) {
+        var metadata = server.getMetadata();
+        int level = ServerTools.getPreferredResolutionLevel(server, downsample);
+        double levelDownsample = server.getDownsampleForResolution(level);
+        double stepX = metadata.getPreferredTileWidth() * levelDownsample;
+        double stepY = metadata.getPreferredTileHeight() * levelDownsample;
+        double requested = 0;
+        double decoded = 0;
+        for (var tile : tiles) {
+            double x1 = Math.max(0, tile.getBoundsX() - padding);
+            double y1 = Math.max(0, tile.getBoundsY() - padding);
+            double x2 = Math.min(server.getWidth(), tile.getBoundsX() + tile.getBoundsWidth() + padding);
+            double y2 = Math.min(server.getHeight(), tile.getBoundsY() + tile.getBoundsHeight() + padding);
+            if (x2 <= x1 || y2 <= y1)
+                continue;
+            requested += (x2 - x1) * (y2 - y1);
+            double storedX1 = Math.floor(x1 / stepX) * stepX;
+            double storedY1 = Math.floor(y1 / stepY) * stepY;
+            double storedX2 = Math.min(server.getWidth(), Math.ceil(x2 / stepX) * stepX);
+            double storedY2 = Math.min(server.getHeight(), Math.ceil(y2 / stepY) * stepY);
+            decoded += (storedX2 - storedX1) * (storedY2 - storedY1);
+        }
+        return requested == 0 ? 1.0 : decoded / requested;
+    }
+
+    @Override
+    public String toString() {
+        return "GridTiling[" + tileWidth + "x" + tileHeight + ", padding=" + padding + "]";
+    }
+
+}
@@ -0,0 +1,96 @@
+package qupath.ext.instanseg.core;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A runtime that can run an InstanSeg model to convert tiles into labels.
+ * <p>
+ * Backends are responsible for loading the model and creating predictors; all reading, normalization,
+ * conversion and merging is handled independently of the backend.
+ * Additional backends can be registered with {@link java.util.ServiceLoader}, and selected by name using
+ * {@link InstanSeg.Builder#backend(String)}.
+ *
+ * @see InferenceBackends
+ */
+public interface InferenceBackend {
+
+    /**
+     * Get the name used to select this backend, e.g. "pytorch".
+     * @return the backend name
+     */
+    String getName();
+
+    /**
+     * Check whether this backend can load a specific model, e.g. because it contains the required file.
+     * This should not attempt to load the model itself.
+     * @param model the model
+     * @return true if the model can (probably) be loaded by this backend
+     */
+    boolean supportsModel(InstanSegModel model);
+
+    /**
+     * Load a model, returning a session that can be used to create predictors.
+     * @param model the model to load
+     * @param options options for loading the model
+     * @return a session for the loaded model, which should be closed when it is no longer needed
+     * @throws IOException if the model could not be loaded
+     */
+    Session load(InstanSegModel model, Options options) throws IOException;
+
+    /**
+     * A loaded model.
+     */
+    interface Session extends AutoCloseable {
+
+        /**
+         * Create a new predictor.
+         * Each predictor will only be used by a single thread at a time, but different predictors may be used
+         * in parallel.
+         * @return a new predictor
+         */
+        TilePredictor newPredictor();
+
+        /**
+         * Release the model, and any resources it holds.
+         * This is only called after all predictors have been closed.
+         */
+        @Override
+        void close();
+
+    }
+
+    /**
+     * Options for loading a model.
+     * @param device the name of the device requested to run the model, e.g. "cpu", "gpu0" or "mps";
+     *               backends that don't support the device should fall back to the CPU
+     * @param outputChannels an array indicating which output channels are required, or null if all are required
+     * @param optionalArgs additional arguments to pass to the model
+     * @param intraOpThreads threads used within each operation, or &leq; 0 to use the backend default
+     * @param interOpThreads threads used to run independent operations in parallel, or &leq; 0 to use the backend default
+     */
+    record Options(String device, boolean[] outputChannels, Map<String, ?> optionalArgs,
+                   int intraOpThreads, int interOpThreads) {
+
+        /**
+         * Create options, with an unmodifiable copy of the optional arguments.
+         * @throws IllegalArgumentException if any optional argument has a null name or value
+         */
+        public Options {
+            outputChannels = outputChannels == null ? null : outputChannels.clone();
+            if (optionalArgs == null) {
+                optionalArgs = Map.of();
+            } else {
+                for (var entry : optionalArgs.entrySet()) {
+                    if (entry.getKey() == null)
+                        throw new IllegalArgumentException("Optional model arguments must have a name");
+                    if (entry.getValue() == null)
+                        throw new IllegalArgumentException("No value for optional model argument '" + entry.getKey() + "'");
+                }
+                optionalArgs = Map.copyOf(optionalArgs);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Static methods to find available {@link InferenceBackend} implementations.
+ */
+public final class InferenceBackends {
+
+    private static final Logger logger = LoggerFactory.getLogger(InferenceBackends.class);
+
+    /**
+     * Name of the default backend, which runs TorchScript models through Deep Java Library.
+     */
+    public static final String PYTORCH = "pytorch";
+
+    /**
+     * Name of the ONNX Runtime backend, which runs exported ONNX models.
+     */
+    public static final String ONNX = OnnxRuntimeBackend.NAME;
+
+    private InferenceBackends() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Get all available backends, starting with the built-in backends and followed by any registered via
+     * {@link ServiceLoader}.
+     * @return a list of backends
+     */
+    public static List<InferenceBackend> getAvailableBackends() {
+        List<InferenceBackend> backends = new ArrayList<>();
+        backends.add(new PytorchBackend());
+        backends.add(new OnnxRuntimeBackend());
+        try {
+            for (var backend : ServiceLoader.load(InferenceBackend.class, InferenceBackend.class.getClassLoader())) {
+                backends.add(backend);
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.warn("Unable to load inference backends: {}", e.getMessage(), e);
+        }
+        return backends;
+    }
+
+    /**
+     * Get a backend by name, ignoring case.
+     * @param name the name of the backend
+     * @return the backend, or empty if no backend with the name is available
+     */
+    public static Optional<InferenceBackend> getBackend(String name) {
+        return getAvailableBackends().stream()
+                .filter(b -> b.getName().equalsIgnoreCase(name.strip()))
+                .findFirst();
+    }
+
+    /**
+     * Create a backend that runs exported ONNX models (instanseg.onnx) with ONNX Runtime.
+     * @param intraOpThreads threads used within each operation, or &leq; 0 to use the ONNX Runtime default
+     * @param interOpThreads threads used to run independent operations in parallel, or &leq; 0 to run sequentially
+     * @param optimizationLevel graph optimization level: one of "none", "basic", "extended" or "all"
+     * @return the backend
+     * @throws IllegalArgumentException if the optimization level is not recognized
+     */
+    public static InferenceBackend createOnnxRuntimeBackend(int intraOpThreads, int interOpThreads, String optimizationLevel)
+            throws IllegalArgumentException {
+        return new OnnxRuntimeBackend(intraOpThreads, interOpThreads, optimizationLevel);
+    }
+
+    /**
+     * Get the default backend for a model.
+     * This is the backend named by the system property {@code instanseg.backend} if set, otherwise PyTorch -
+     * unless the model only provides a file supported by another backend (e.g. only instanseg.onnx).
+     * @param model the model
+     * @return the default backend
+     */
+    public static InferenceBackend getDefaultBackend(InstanSegModel model) {
+        String name = System.getProperty("instanseg.backend");
+        if (name != null && !name.isBlank()) {
+            var backend = getBackend(name);
+            if (backend.isPresent())
+                return backend.get();
+            logger.warn("Unknown inference backend {} - using the default", name);
+        }
+        var pytorch = new PytorchBackend();
+        if (model == null || pytorch.supportsModel(model))
+            return pytorch;
+        return getAvailableBackends().stream()
+                .filter(b -> b.supportsModel(model))
+                .findFirst()
+                .orElse(pytorch);
+    }
+
+}
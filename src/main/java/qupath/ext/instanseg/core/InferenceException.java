@@ -0,0 +1,19 @@
+package qupath.ext.instanseg.core;
+
+/**
+ * Exception thrown when an {@link InferenceBackend} fails to run a model.
+ * <p>
+ * Backends should wrap any engine-specific exception as the cause.
+ */
+public class InferenceException extends Exception {
+
+    /**
+     * Create a new exception.
+     * @param message the error message
+     * @param cause the underlying exception thrown by the backend
+     */
+    public InferenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
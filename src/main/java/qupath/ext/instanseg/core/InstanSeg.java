@@ -1,19 +1,17 @@
 package qupath.ext.instanseg.core;
 
 import ai.djl.Device;
-import ai.djl.inference.Predictor;
-import ai.djl.ndarray.BaseNDManager;
-import ai.djl.repository.zoo.Criteria;
-import ai.djl.training.util.ProgressBar;
 import java.util.Comparator;
 import java.util.Random;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.bioimageio.spec.tensor.OutputTensor;
 import qupath.lib.common.ColorTools;
-import qupath.lib.common.LogTools;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.experimental.pixels.OpenCVProcessor;
 import qupath.lib.experimental.pixels.OutputHandler;
 import qupath.lib.experimental.pixels.Parameters;
@@ -21,6 +19,8 @@ import qupath.lib.experimental.pixels.PixelProcessor;
 import qupath.lib.experimental.pixels.Processor;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathDetectionObject;
@@ -33,6 +33,9 @@ import qupath.lib.objects.utils.OverlapFixer;
 import qupath.lib.objects.utils.Tiler;
 import qupath.lib.plugins.TaskRunner;
 import qupath.lib.plugins.TaskRunnerUtils;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
 import qupath.opencv.ops.ImageOps;
 
@@ -48,8 +51,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 public class InstanSeg {
 
@@ -63,10 +69,27 @@ public class InstanSeg {
     private final boolean makeMeasurements;
     private final List<ColorTransforms.ColorTransform> inputChannels;
     private final InstanSegModel model;
-    private final Device device;
+    private final String device;
     private final TaskRunner taskRunner;
     private final Class<? extends PathObject> preferredOutputType;
     private final Map<String, Object> optionalArgs = new LinkedHashMap<>();
+    private final TileShard shard;
+    private final Path shardOutput;
+    private final Path checkpoint;
+    private final InferenceBackend backend;
+    private final int nThreads;
+    private final int nPredictors;
+    private final EngineThreads engineThreads;
+    private final boolean autoEngineThreads;
+    private final int[] shapeBuckets;
+    private final boolean warmUp;
+    private final boolean autoTune;
+    private final long memoryBudget;
+    private final TissueScreen tissueScreen;
+    private final TileScheduler tileScheduler;
+    private final boolean packSmallParents;
+    private final boolean alignTilesToGrid;
+    private final double pyramidTolerance;
 
     // This was previously an adjustable parameter, but it's now fixed at 1 because we handle overlaps differently.
     // However, we might want to reinstate it, possibly as a proportion of the padding amount.
@@ -86,6 +109,69 @@ public class InstanSeg {
         this.randomColors = builder.randomColors;
         this.makeMeasurements = builder.makeMeasurements;
         this.optionalArgs.putAll(builder.optionalArgs);
+        this.shard = builder.shard;
+        this.shardOutput = builder.shardOutput;
+        this.checkpoint = builder.checkpoint;
+        this.backend = builder.backend;
+        this.nThreads = builder.nThreads;
+        this.nPredictors = builder.nPredictors;
+        this.engineThreads = builder.engineThreads;
+        this.autoEngineThreads = builder.autoEngineThreads;
+        this.shapeBuckets = builder.shapeBuckets == null ? null : builder.shapeBuckets.clone();
+        this.warmUp = builder.warmUp;
+        this.autoTune = builder.autoTune;
+        this.memoryBudget = builder.memoryBudget;
+        this.tissueScreen = builder.tissueScreen;
+        this.tileScheduler = builder.tileScheduler;
+        this.packSmallParents = builder.packSmallParents;
+        this.alignTilesToGrid = builder.alignTilesToGrid;
+        this.pyramidTolerance = builder.pyramidTolerance;
+    }
+
+    /**
+     * Create a segmenter that can process individual tiles on demand, keeping the model loaded between tiles.
+     * <p>
+     * This is intended for interactive previews. Checkpoints, sharding, auto-tuning and the tissue pre-screen
+     * are not used.
+     * The segmenter must be closed when it is no longer needed.
+     * @param imageData the image to segment
+     * @return the segmenter
+     * @throws IOException if the model could not be loaded
+     * @throws IllegalArgumentException if no model is available, or it is not supported by the backend
+     */
+    public TileSegmenter createTileSegmenter(ImageData<BufferedImage> imageData) throws IOException, IllegalArgumentException {
+        Objects.requireNonNull(imageData, "No imageData available");
+        var backend = this.backend == null ? InferenceBackends.getDefaultBackend(model) : this.backend;
+        List<OutputTensor> outputTensors = List.of();
+        if (model != null) {
+            outputTensors = model.getOutputs()
+                    .orElseThrow(() -> new IllegalArgumentException("No output tensors available for " + model));
+            if (!backend.supportsModel(model)) {
+                throw new IllegalArgumentException("Model " + model + " is not supported by the " + backend.getName() + " backend");
+            }
+        } else if (!(backend instanceof SyntheticBackend)) {
+            throw new IllegalArgumentException("No model specified");
+        }
+        int nPredictors = Math.max(1, this.nPredictors);
+        var engineThreads = getEngineThreads(nPredictors);
+        var inputChannels = getInputChannels(imageData);
+        var session = backend.load(model, new InferenceBackend.Options(device, getOutputChannelArray(), optionalArgs,
+                engineThreads.intraOpThreads(), engineThreads.interOpThreads()));
+        BlockingQueue<TilePredictor> predictors = new LinkedBlockingQueue<>();
+        try {
+            for (int i = 0; i < nPredictors; i++) {
+                predictors.add(session.newPredictor());
+            }
+            if (warmUp) {
+                warmUp(predictors, List.of(new int[]{tileDims, tileDims}), inputChannels.size());
+            }
+        } catch (InferenceException | RuntimeException e) {
+            predictors.forEach(TilePredictor::close);
+            session.close();
+            throw new IOException("Unable to initialize model", e);
+        }
+        return new TileSegmenter(imageData, inputChannels, getDownsample(imageData), tileDims, padding, randomColors,
+                session, predictors, new InstanSegOutputToObjectConverter(outputTensors, preferredOutputType));
     }
 
     /**
@@ -108,13 +194,17 @@ public class InstanSeg {
      */
     public InstanSegResults detectObjects(Collection<? extends PathObject> pathObjects) {
         var imageData = QP.getCurrentImageData();
-        var results = runInstanSeg(imageData, pathObjects);
+        var timer = new StageTimer();
+        var results = runInstanSeg(imageData, pathObjects, timer);
         if (makeMeasurements) {
+            long start = StageTimer.start();
             for (var pathObject : pathObjects) {
                 makeMeasurements(imageData, pathObject.getChildObjects());
             }
+            timer.record(StageTimings.Stage.MEASUREMENT, start);
         }
-        return results;
+        writeShardOutput(pathObjects);
+        return withStageTimings(results, timer);
     }
 
     /**
@@ -124,12 +214,85 @@ public class InstanSeg {
     public InstanSegResults detectObjects(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects)
             throws IllegalArgumentException {
         validateImageAndObjectsOrThrow(imageData, pathObjects);
-        var results = runInstanSeg(imageData, pathObjects);
+        var timer = new StageTimer();
+        var results = runInstanSeg(imageData, pathObjects, timer);
         if (makeMeasurements) {
+            long start = StageTimer.start();
             var detections = pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList();
             makeMeasurements(imageData, detections);
+            timer.record(StageTimings.Stage.MEASUREMENT, start);
+        }
+        writeShardOutput(pathObjects);
+        return withStageTimings(results, timer);
+    }
+
+    private static InstanSegResults withStageTimings(InstanSegResults results, StageTimer timer) {
+        var timings = timer.summarize();
+        if (!timings.stages().isEmpty()) {
+            logger.info("InstanSeg stage timings:\n{}", timings.toTable());
+        }
+        return results.withStageTimings(timings);
+    }
+
+    /**
+     * Merge the partial results written by several sharded runs, and add them to the specified parent objects.
+     * <p>
+     * Each shard has already removed objects touching the boundaries of its tiles, in the same way as for a
+     * regular run, so the only objects that remain to be reconciled are those detected twice within the padding
+     * of neighboring tiles on either side of a seam.
+     * These are resolved using the same merging and overlap fixing that is applied between tiles.
+     * <p>
+     * Each object is added to exactly one parent: the smallest that contains its centroid.
+     * Parents without a ROI (e.g. when processing the whole image) are treated as covering the whole image.
+     * @param imageData the image containing the parent objects
+     * @param pathObjects the parent objects that were passed to each shard
+     * @param partialFiles the files written by each shard (see {@link Builder#shardOutput(Path)})
+     * @return the total number of objects added to the parent objects
+     * @throws IOException if the partial files could not be read
+     * @throws IllegalArgumentException if the image or objects are null, or if the objects are not found within the image's hierarchy
+     */
+    public int mergeShards(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects,
+                           Collection<Path> partialFiles) throws IOException, IllegalArgumentException {
+        validateImageAndObjectsOrThrow(imageData, pathObjects);
+        List<PathObject> shardObjects = new ArrayList<>();
+        for (var file : partialFiles) {
+            var objects = PathIO.readObjects(file.toFile());
+            logger.debug("Read {} objects from {}", objects.size(), file);
+            shardObjects.addAll(objects);
+        }
+        var postProcessor = createPostProcessor(randomColors);
+        int nObjects = 0;
+        for (var entry : TileShard.assignToParents(pathObjects, shardObjects).entrySet()) {
+            var parent = entry.getKey();
+            Collection<PathObject> children = entry.getValue();
+            if (postProcessor != null) {
+                children = postProcessor.process(children);
+            }
+            parent.clearChildObjects();
+            parent.addChildObjects(children);
+            parent.setLocked(true);
+            nObjects += children.size();
+        }
+        imageData.getHierarchy().fireHierarchyChangedEvent(this);
+        logger.info("Merged {} objects from {} shard(s)", nObjects, partialFiles.size());
+        return nObjects;
+    }
+
+    /**
+     * Write the objects detected by this shard to the shard output file, if one has been specified.
+     * @param pathObjects the parent objects
+     */
+    private void writeShardOutput(Collection<? extends PathObject> pathObjects) {
+        if (shardOutput == null) {
+            return;
+        }
+        var detections = pathObjects.stream().flatMap(p -> p.getChildObjects().stream()).toList();
+        try {
+            PathIO.exportObjectsAsGeoJSON(shardOutput.toFile(), detections, PathIO.GeoJsonExportOptions.FEATURE_COLLECTION);
+            logger.info("Wrote {} objects for shard {} to {}", detections.size(), shard, shardOutput);
+        } catch (IOException e) {
+            logger.error("Unable to write shard output to {}", shardOutput, e);
         }
-        return results;
     }
 
     private void validateImageAndObjectsOrThrow(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects) {
@@ -157,7 +320,7 @@ public class InstanSeg {
      * @param detections The objects to measure.
      */
     private void makeMeasurements(ImageData<BufferedImage> imageData, Collection<? extends PathObject> detections) {
-        double downsample = model.getPreferredDownsample(imageData.getServer().getPixelCalibration());
+        double downsample = model == null ? 1.0 : model.getPreferredDownsample(imageData.getServer().getPixelCalibration());
         DetectionMeasurer.builder()
                 .taskRunner(taskRunner)
                 .downsample(downsample)
@@ -165,35 +328,301 @@ public class InstanSeg {
                 .makeMeasurements(imageData, detections);
     }
 
-    private InstanSegResults runInstanSeg(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects) {
+    private InstanSegResults runInstanSeg(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects,
+                                          StageTimer timer) {
         long startTime = System.currentTimeMillis();
-        Optional<Path> oModelPath = model.getPath();
-        if (oModelPath.isEmpty()) {
-            return InstanSegResults.emptyInstance();
+        var backend = this.backend == null ? InferenceBackends.getDefaultBackend(model) : this.backend;
+        List<OutputTensor> outputTensors = List.of();
+        if (model != null) {
+            if (model.getPath().isEmpty()) {
+                return InstanSegResults.emptyInstance();
+            }
+            Optional<List<OutputTensor>> oOutputTensors = this.model.getOutputs();
+            if (oOutputTensors.isEmpty()) {
+                throw new IllegalArgumentException("No output tensors available even though model is available");
+            }
+            outputTensors = oOutputTensors.get();
+            if (!backend.supportsModel(model)) {
+                throw new IllegalArgumentException("Model " + model + " is not supported by the " + backend.getName() + " backend");
+            }
+        } else if (!(backend instanceof SyntheticBackend)) {
+            throw new IllegalArgumentException("No model specified");
         }
-        Path modelPath = oModelPath.get().resolve("instanseg.pt");
-
-        Optional<List<OutputTensor>> oOutputTensors = this.model.getOutputs();
-        if (oOutputTensors.isEmpty()) {
-            throw new IllegalArgumentException("No output tensors available even though model is available");
+        if (backend instanceof SyntheticBackend) {
+            logger.warn("Using synthetic predictions - no model will be run! {}", backend);
+        } else {
+            logger.debug("Using {} backend", backend.getName());
         }
-        var outputTensors = oOutputTensors.get();
 
         // Provide some way to change the number of predictors, even if this can't be specified through the UI
         // See https://forum.image.sc/t/instanseg-under-utilizing-cpu-only-2-3-cores/104496/7
-        int nPredictors = Integer.parseInt(System.getProperty("instanseg.numPredictors", "1"));
+        int nPredictors = this.nPredictors > 0 ? this.nPredictors :
+                Integer.parseInt(System.getProperty("instanseg.numPredictors", "1"));
 
         // Optionally pad images so that every tile has the required size.
         // This is useful if the model requires a specific input size - but InstanSeg should be able to handle this
         // and inference can be much faster if we permit tiles to be cropped.
         boolean padToInputSize = System.getProperty("instanseg.padToInputSize", "false").strip().equalsIgnoreCase("true");
-        if (padToInputSize) {
+        if (shapeBuckets == null && padToInputSize) {
             logger.warn("Padding to input size is turned on - this is likely to be slower (but could help fix any issues)");
         }
-        String layout = "CHW";
-        String layoutOutput = "CHW";
 
         // Get the downsample - this may be specified by the user, or determined from the model spec
+        double downsample = getDownsample(imageData);
+
+        // Create an int[] representing a boolean array of channels to use
+        boolean[] outputChannelArray = getOutputChannelArray();
+
+        // If no input channels are specified, use all channels
+        var inputChannels = getInputChannels(imageData);
+
+        // Apply any previous tuning before choosing the engine threads, which depend upon the number of predictors
+        int tileDims = this.tileDims;
+        int padding = this.padding;
+        TileAutoTuner tuner = null;
+        String tuningKey = TileAutoTuner.createKey(device, backend.getName());
+        TileAutoTuner.TuningResult tuning = null;
+        if (autoTune) {
+            tuner = createAutoTuner(imageData, inputChannels, downsample, outputTensors, outputChannelArray);
+            tuning = readPreviousTuning(tuner, tuningKey).orElse(null);
+            if (tuning != null) {
+                tileDims = tuning.tileDims();
+                padding = tuning.padding();
+                nPredictors = tuning.nPredictors();
+            }
+        }
+        var engineThreads = getEngineThreads(nPredictors);
+        if (!engineThreads.isDefault()) {
+            logger.debug("Using {} predictor(s) with {}", nPredictors, engineThreads);
+        }
+
+        TileJournal journal = null;
+        InferenceBackend.Session session = null;
+        BlockingQueue<TilePredictor> predictors = new LinkedBlockingQueue<>();
+        TilePredictionProcessor activeProcessor = null;
+        MemoryBudget budget = null;
+        ThreadBudget threads = ThreadBudget.UNMANAGED;
+        var memoryTracker = new NativeMemoryTracker();
+        long warmUpTime = 0;
+        try {
+            session = backend.load(model, new InferenceBackend.Options(device, outputChannelArray, optionalArgs,
+                    engineThreads.intraOpThreads(), engineThreads.interOpThreads()));
+
+            if (tuner != null && tuning == null) {
+                tuning = autoTune(tuner, tuningKey, pathObjects, session, nPredictors);
+                tileDims = tuning.tileDims();
+                padding = tuning.padding();
+                nPredictors = tuning.nPredictors();
+                // The engine threads were chosen for the original number of predictors, so reload if they change
+                var tunedEngineThreads = getEngineThreads(nPredictors);
+                if (!tunedEngineThreads.equals(engineThreads)) {
+                    logger.debug("Reloading model for {} predictor(s) with {}", nPredictors, tunedEngineThreads);
+                    session.close();
+                    session = null;
+                    engineThreads = tunedEngineThreads;
+                    session = backend.load(model, new InferenceBackend.Options(device, outputChannelArray, optionalArgs,
+                            engineThreads.intraOpThreads(), engineThreads.interOpThreads()));
+                }
+            }
+            // Share the cores left by the engine between object post-processing and OpenCV
+            threads = ThreadBudget.create(Runtime.getRuntime().availableProcessors(), getTaskThreads(), engineThreads, nPredictors);
+
+            var shapeBuckets = createShapeBuckets(tileDims);
+            if (shapeBuckets != null) {
+                logger.debug("Padding tiles to {}", shapeBuckets);
+            }
+
+            if (checkpoint != null) {
+                try {
+                    journal = TileJournal.open(checkpoint,
+                            describeConfiguration(imageData, downsample, inputChannels, tileDims, padding));
+                } catch (IOException e) {
+                    logger.error("Unable to open checkpoint journal {} - continuing without checkpoints", checkpoint, e);
+                }
+            }
+
+            for (int i = 0; i < nPredictors; i++) {
+                predictors.put(session.newPredictor());
+            }
+            if (shapeBuckets != null || warmUp) {
+                long warmUpStart = System.currentTimeMillis();
+                var shapes = shapeBuckets == null ? List.of(new int[]{tileDims, tileDims}) : shapeBuckets.getShapes();
+                warmUp(predictors, shapes, inputChannels.size());
+                warmUpTime = System.currentTimeMillis() - warmUpStart;
+                logger.info("Model warm-up completed in {} ms", warmUpTime);
+            }
+
+            var tiler = createTiler(downsample, tileDims, padding);
+            GridTiling gridTiling = null;
+            if (alignTilesToGrid) {
+                gridTiling = GridTiling.create(imageData.getServer(), downsample, tileDims, padding);
+                if (gridTiling == null) {
+                    logger.info("Tiles can't be aligned to the image grid - using default tiling");
+                } else {
+                    logger.debug("Using {}", gridTiling);
+                }
+            }
+            // Tiles may be processed for proxy objects, so anything that needs the parent must look it up
+            UnaryOperator<PathObject> parents = gridTiling == null ? UnaryOperator.identity() : gridTiling::getParent;
+            var predictionProcessor = createProcessor(predictors, inputChannels, tileDims, padToInputSize, shapeBuckets,
+                    tissueScreen, timer, parents);
+            var processor = predictionProcessor;
+            if (memoryBudget < Long.MAX_VALUE) {
+                var estimate = TileMemoryEstimate.forTile(tileDims, inputChannels.size(), getOutputChannelCount(outputChannelArray));
+                budget = MemoryBudget.create(memoryBudget, estimate, nPredictors, getTaskThreads());
+                if (budget.getMaxTiles() < getTaskThreads()) {
+                    logger.info("Memory budget limits processing to {} tile(s) at a time, rather than {} ({})",
+                            budget.getMaxTiles(), getTaskThreads(), budget);
+                } else {
+                    logger.debug("Using {}", budget);
+                }
+                processor = budget.wrap(processor);
+            }
+            if (predictionProcessor instanceof TilePredictionProcessor tileProcessor) {
+                activeProcessor = tileProcessor;
+                InstanSegMetrics.getInstance().runStarted(tileProcessor);
+            }
+            if (shard != null) {
+                logger.info("Processing shard {} of {}", shard.shardIndex() + 1, shard.shardCount());
+                // Filter outside the budget, so that tiles owned by other shards don't wait for memory
+                processor = filterTiles(processor, shard.createTileFilter(pathObjects));
+            }
+            // Parent masks are shared between tiles, but only for this run
+            var masks = new ParentMask.Cache();
+            var outputHandler = createOutputHandler(preferredOutputType, randomColors, boundaryThreshold, outputTensors, timer, threads,
+                    masks, parents);
+            if (journal != null) {
+                processor = journal.wrap(processor, parents);
+                outputHandler = journal.wrap(outputHandler, parents);
+            }
+            if (budget != null) {
+                outputHandler = budget.wrap(outputHandler);
+            }
+            if (NativeMemoryTracker.scopeTiles()) {
+                // Wrap last, so that every tile is scoped - including those that are skipped
+                processor = memoryTracker.wrap(processor);
+                outputHandler = memoryTracker.wrap(outputHandler);
+            }
+            // Parents that fit in a single tile bypass the tiling and merging entirely,
+            // and may optionally be packed into shared tiles
+            Collection<? extends PathObject> tiledObjects = pathObjects;
+            TilePacker packer = null;
+            List<TilePacker.Canvas> canvases = List.of();
+            if ((packSmallParents || useSingleTileFastPath()) && shard == null && activeProcessor != null) {
+                packer = new TilePacker(imageData, inputChannels, downsample, tileDims, padding, packSmallParents, timer, masks);
+                var smallObjects = pathObjects.stream().filter(packer::canPack).toList();
+                if (!smallObjects.isEmpty()) {
+                    canvases = packer.pack(smallObjects);
+                    var smallSet = Set.copyOf(smallObjects);
+                    tiledObjects = pathObjects.stream().filter(p -> !smallSet.contains(p)).toList();
+                    logger.debug("Processing {} small parent objects as {} single tiles", smallObjects.size(), canvases.size());
+                }
+            }
+
+            var postProcessor = instrumentPostProcessor(createPostProcessor(randomColors), timer);
+            var pixelProcessorBuilder = new PixelProcessor.Builder<Mat, Mat, Mat[]>()
+                    .processor(processor)
+                    .maskSupplier(OpenCVProcessor.createMatMaskSupplier())
+                    .imageSupplier((parameters) -> ImageOps.buildImageDataOp(inputChannels)
+                            .apply(parameters.getImageData(), parameters.getRegionRequest()))
+                    .outputHandler(outputHandler)
+                    .downsample(downsample);
+            Collection<? extends PathObject> processedObjects;
+            List<PriorityTaskRunner.Tile> tiles;
+            if (gridTiling == null) {
+                pixelProcessorBuilder.tiler(tiler)
+                        .padding((int)Math.round(padding * downsample))
+                        .postProcess(postProcessor);
+                processedObjects = tiledObjects;
+                tiles = createTiles(imageData, tiler, tiledObjects);
+            } else {
+                // Each grid-aligned proxy is processed as a single region, and we merge the results ourselves
+                pixelProcessorBuilder.padding(gridTiling.getPadding());
+                processedObjects = gridTiling.createProxies(tiledObjects);
+                tiles = createTiles(gridTiling, processedObjects, tiledObjects);
+                logReadAmplification(imageData, downsample, tiles, gridTiling.getPadding(),
+                        createTiles(imageData, tiler, tiledObjects), (int)Math.round(padding * downsample));
+            }
+            var pixelProcessor = pixelProcessorBuilder.build();
+
+            // Prioritize tiles, and interleave tiles from different parents (largest first) so threads aren't left idle
+            // waiting for one parent. This depends upon the order in which tasks are created, so is only used on request.
+            // Single tiles are run alongside the other tiles, so that neither has to wait for the other to finish.
+            var runner = taskRunner;
+            if (tileScheduler != null || !canvases.isEmpty()) {
+                var priorityRunner = new PriorityTaskRunner(taskRunner, tiles, tileScheduler);
+                if (!canvases.isEmpty()) {
+                    // Single tiles are processed from start to finish in one task, so use the same wrappers as tiles
+                    List<Runnable> canvasTasks = new ArrayList<>();
+                    for (var task : packer.createTasks(canvases, activeProcessor,
+                            new InstanSegOutputToObjectConverter(outputTensors, preferredOutputType), postProcessor, journal)) {
+                        if (budget != null)
+                            task = budget.wrap(task);
+                        if (NativeMemoryTracker.scopeTiles())
+                            task = memoryTracker.wrap(task);
+                        canvasTasks.add(task);
+                    }
+                    priorityRunner.addTasks(canvasTasks, createTiles(canvases, tiledObjects.size()));
+                }
+                runner = priorityRunner;
+            }
+            if (!processedObjects.isEmpty()) {
+                pixelProcessor.processObjects(runner, imageData, processedObjects);
+            }
+            if (runner instanceof PriorityTaskRunner priorityRunner) {
+                priorityRunner.runAddedTasks("Processing " + canvases.size() + (packSmallParents ? " packed tiles" : " single-tile objects"));
+            }
+            if (gridTiling != null) {
+                gridTiling.mergeProxies(postProcessor);
+            }
+            int nObjects = pathObjects.stream().mapToInt(PathObject::nChildObjects).sum();
+            if (predictionProcessor instanceof TilePredictionProcessor tileProcessor) {
+                return new InstanSegResults(
+                        tileProcessor.getPixelsProcessedCount(),
+                        tileProcessor.getTilesProcessedCount(),
+                        tileProcessor.getTilesFailedCount(),
+                        journal == null ? 0 : journal.getTilesRestoredCount(),
+                        tileProcessor.getTilesSkippedCount(),
+                        nObjects,
+                        System.currentTimeMillis() - startTime,
+                        warmUpTime,
+                        tileProcessor.wasInterrupted(),
+                        StageTimings.emptyInstance()
+                );
+            } else {
+                return InstanSegResults.emptyInstance();
+            }
+        } catch (Exception e) {
+            logger.error("Error running InstanSeg", e);
+            return new InstanSegResults(0, 0, 0, 0, 0, 0,
+                    System.currentTimeMillis() - startTime, warmUpTime, e instanceof InterruptedException,
+                    StageTimings.emptyInstance());
+        } finally {
+            if (activeProcessor != null) {
+                InstanSegMetrics.getInstance().runFinished(activeProcessor);
+            }
+            if (budget != null && budget.getTilesThrottledCount() > 0) {
+                logger.info("{} tiles waited for memory ({})", budget.getTilesThrottledCount(), budget);
+            }
+            for (var predictor: predictors) {
+                predictor.close();
+            }
+            if (session != null) {
+                session.close();
+            }
+            threads.close();
+            memoryTracker.logReport();
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close checkpoint journal {}", checkpoint, e);
+                }
+            }
+        }
+    }
+
+    private double getDownsample(ImageData<BufferedImage> imageData) {
         if (!imageData.getServerMetadata().pixelSizeCalibrated()) {
             logger.warn("Running InstanSeg without pixel calibration --- results may not be as expected!");
         }
@@ -201,17 +630,46 @@ public class InstanSeg {
         if (this.downsample > 0) {
             downsample = this.downsample;
             logger.debug("Calling InstanSeg with user-specified downsample {}", downsample);
-        } else if (!imageData.getServerMetadata().pixelSizeCalibrated()) {
+        } else if (!imageData.getServerMetadata().pixelSizeCalibrated() || model == null) {
             downsample = 1.0;
-            logger.debug("No pixel calibration - defaulting to a downsample of 1.0");
+            logger.debug("No pixel calibration or model - defaulting to a downsample of 1.0");
         } else {
             downsample = this.model.getPreferredDownsample(imageData.getServer().getPixelCalibration());
             logger.debug("Calling InstanSeg with calculated downsample {}", downsample);
+            if (pyramidTolerance >= 0) {
+                downsample = snapToPyramidLevel(imageData.getServer(), downsample, pyramidTolerance);
+            }
         }
+        return downsample;
+    }
 
-        // Create an int[] representing a boolean array of channels to use
+    /**
+     * Snap a downsample to the closest pyramid level within a tolerance, so that regions can be read without resampling.
+     * @param server the image server
+     * @param downsample the preferred downsample
+     * @param tolerance the maximum relative difference between the preferred downsample and the level downsample
+     * @return the downsample of the closest pyramid level within the tolerance, or the preferred downsample if there
+     *         is no such level
+     */
+    static double snapToPyramidLevel(ImageServer<BufferedImage> server, double downsample, double tolerance) {
+        double bestDownsample = downsample;
+        double bestDifference = Double.POSITIVE_INFINITY;
+        for (double levelDownsample : server.getPreferredDownsamples()) {
+            double difference = Math.abs(levelDownsample / downsample - 1);
+            if (difference <= tolerance && difference < bestDifference) {
+                bestDownsample = levelDownsample;
+                bestDifference = difference;
+            }
+        }
+        if (bestDownsample != downsample) {
+            logger.info("Using pyramid level downsample {} instead of {}", bestDownsample, downsample);
+        }
+        return bestDownsample;
+    }
+
+    private boolean[] getOutputChannelArray() {
         boolean[] outputChannelArray = null;
-        if (outputChannels != null && outputChannels.length > 0) {
+        if (outputChannels != null && outputChannels.length > 0 && model != null) {
             //noinspection OptionalGetWithoutIsPresent
             outputChannelArray = new boolean[model.getOutputChannels().get()]; // safe to call get because of previous checks
             for (int c : outputChannels) {
@@ -221,73 +679,96 @@ public class InstanSeg {
                 outputChannelArray[c] = true;
             }
         }
+        return outputChannelArray;
+    }
 
-        // If no input channels are specified, use all channels
-        var inputChannels = getInputChannels(imageData);
+    /**
+     * Get the engine thread settings to use, balancing the available cores between predictors if requested.
+     * @param nPredictors the number of predictors that will be created
+     * @return the thread settings
+     */
+    private EngineThreads getEngineThreads(int nPredictors) {
+        if (!autoEngineThreads)
+            return engineThreads;
+        return EngineThreads.balance(Runtime.getRuntime().availableProcessors(), getTaskThreads(), nPredictors);
+    }
 
-        try (var model = Criteria.builder()
-                .setTypes(Mat.class, Mat[].class)
-                .optModelUrls(String.valueOf(modelPath.toUri()))
-                .optProgress(new ProgressBar())
-                .optDevice(device) // Remove this line if devices are problematic!
-                .optTranslator(new MatTranslator(layout, layoutOutput, outputChannelArray, optionalArgs))
-                .build()
-                .loadModel()) {
+    private int getOutputChannelCount(boolean[] outputChannelArray) {
+        if (outputChannelArray != null) {
+            int n = 0;
+            for (boolean b : outputChannelArray) {
+                if (b)
+                    n++;
+            }
+            return n;
+        }
+        return model == null ? 1 : model.getOutputChannels().orElse(1);
+    }
 
-            BaseNDManager baseManager = (BaseNDManager)model.getNDManager();
-            printResourceCount("Resource count before prediction",
-                    (BaseNDManager)baseManager.getParentManager());
-            BlockingQueue<Predictor<Mat, Mat[]>> predictors = new ArrayBlockingQueue<>(nPredictors);
+    private int getTaskThreads() {
+        return this.nThreads > 0 ? this.nThreads : ThreadTools.getParallelism();
+    }
 
-            try {
-                for (int i = 0; i < nPredictors; i++) {
-                    predictors.put(model.newPredictor());
-                }
+    private TileAutoTuner createAutoTuner(ImageData<BufferedImage> imageData, List<ColorTransforms.ColorTransform> inputChannels,
+                                          double downsample, List<OutputTensor> outputTensors, boolean[] outputChannelArray) {
+        return new TileAutoTuner(imageData, inputChannels, downsample,
+                new InstanSegOutputToObjectConverter(outputTensors, preferredOutputType),
+                getOutputChannelCount(outputChannelArray), getTaskThreads(),
+                memoryBudget < Long.MAX_VALUE ? memoryBudget : TileMemoryEstimate.getDefaultBudget());
+    }
 
-                printResourceCount("Resource count after creating predictors",
-                        (BaseNDManager)baseManager.getParentManager());
-
-                var tiler = createTiler(downsample, tileDims, padding);
-                var predictionProcessor = createProcessor(predictors, inputChannels, tileDims, padToInputSize);
-                var outputHandler = createOutputHandler(preferredOutputType, randomColors, boundaryThreshold, outputTensors);
-                var postProcessor = createPostProcessor(randomColors);
-                var processor = new PixelProcessor.Builder<Mat, Mat, Mat[]>()
-                        .processor(predictionProcessor)
-                        .maskSupplier(OpenCVProcessor.createMatMaskSupplier())
-                        .imageSupplier((parameters) -> ImageOps.buildImageDataOp(inputChannels)
-                                .apply(parameters.getImageData(), parameters.getRegionRequest()))
-                        .tiler(tiler)
-                        .outputHandler(outputHandler)
-                        .padding((int)Math.round(padding * downsample))
-                        .postProcess(postProcessor)
-                        .downsample(downsample)
-                        .build();
-
-                processor.processObjects(taskRunner, imageData, pathObjects);
-                int nObjects = pathObjects.stream().mapToInt(PathObject::nChildObjects).sum();
-                if (predictionProcessor instanceof TilePredictionProcessor tileProcessor) {
-                    return new InstanSegResults(
-                            tileProcessor.getPixelsProcessedCount(),
-                            tileProcessor.getTilesProcessedCount(),
-                            tileProcessor.getTilesFailedCount(),
-                            nObjects,
-                            System.currentTimeMillis() - startTime,
-                            tileProcessor.wasInterrupted()
-                    );
-                } else {
-                    return InstanSegResults.emptyInstance();
-                }
-            } finally {
-                for (var predictor: predictors) {
-                    predictor.close();
-                }
-                printResourceCount("Resource count after prediction", (BaseNDManager)baseManager.getParentManager());
-            }
-        } catch (Exception e) {
-            logger.error("Error running InstanSeg", e);
-            return new InstanSegResults(0, 0, 0, 0,
-                    System.currentTimeMillis() - startTime, e instanceof InterruptedException);
-        }
+    /**
+     * Get a previous tuning result for the model, device and backend, if it can be reused.
+     */
+    private Optional<TileAutoTuner.TuningResult> readPreviousTuning(TileAutoTuner tuner, String key) {
+        boolean recalibrate = System.getProperty("instanseg.autotune.recalibrate", "false").strip().equalsIgnoreCase("true");
+        if (recalibrate)
+            return Optional.empty();
+        var previous = TileAutoTuner.getResultsPath(model)
+                .flatMap(path -> TileAutoTuner.readResult(path, key))
+                .filter(tuner::isCompatible);
+        previous.ifPresent(result -> logger.info("Using previous tuning for {}: {}", key, result));
+        return previous;
+    }
+
+    /**
+     * Choose the tile size, padding and number of predictors for the model and device, and store the result so that
+     * it can be reused.
+     * If the number of predictors was set explicitly, it is used as the maximum when tuning.
+     */
+    private TileAutoTuner.TuningResult autoTune(TileAutoTuner tuner, String key, Collection<? extends PathObject> pathObjects,
+                                                InferenceBackend.Session session,
+                                                int nPredictors) throws IOException, InferenceException, InterruptedException {
+        int maxPredictors = this.nPredictors > 0 ? nPredictors : getTaskThreads();
+        long start = System.currentTimeMillis();
+        var result = tuner.tune(session, pathObjects, maxPredictors, this.padding);
+        logger.info("Tuning for {} completed in {} ms: {}", key, System.currentTimeMillis() - start, result);
+        TileAutoTuner.getResultsPath(model).ifPresent(path -> TileAutoTuner.writeResult(path, key, result));
+        return result;
+    }
+
+    /**
+     * Create a description of everything that could influence the objects detected for a tile.
+     * This is used to ensure that a checkpoint journal is only reused by a matching run.
+     */
+    private String describeConfiguration(ImageData<BufferedImage> imageData, double downsample,
+                                         List<ColorTransforms.ColorTransform> inputChannels,
+                                         int tileDims, int padding) {
+        return String.join(";",
+                "image=" + imageData.getServerPath(),
+                "model=" + model,
+                "backend=" + (backend == null ? InferenceBackends.getDefaultBackend(model) : backend).getName(),
+                "downsample=" + downsample,
+                "tileDims=" + tileDims,
+                "padding=" + padding,
+                "gridAligned=" + alignTilesToGrid,
+                "smallParents=" + (packSmallParents ? "packed" : useSingleTileFastPath() ? "single" : "tiled"),
+                "shapeBuckets=" + Arrays.toString(shapeBuckets),
+                "inputChannels=" + inputChannels.stream().map(ColorTransforms.ColorTransform::getName).toList(),
+                "outputChannels=" + Arrays.toString(outputChannels),
+                "outputType=" + (preferredOutputType == null ? "default" : preferredOutputType.getSimpleName()),
+                "args=" + optionalArgs,
+                "shard=" + shard);
     }
 
 
@@ -300,12 +781,67 @@ public class InstanSeg {
         return System.getProperty("instanseg.debug.tiles", "false").strip().equalsIgnoreCase("true");
     }
 
-    private static Processor<Mat, Mat, Mat[]> createProcessor(BlockingQueue<Predictor<Mat, Mat[]>> predictors,
+    /**
+     * Check if parent objects that fit within a single tile should be processed directly, without tiling or merging.
+     * This is off by default, but can be turned on with the system property {@code instanseg.singleTileFastPath=true}.
+     * Parents are always processed this way if {@link Builder#packSmallParents()} is used.
+     * @return Whether the single-tile fast path should be used.
+     */
+    private static boolean useSingleTileFastPath() {
+        return System.getProperty("instanseg.singleTileFastPath", "false").strip().equalsIgnoreCase("true");
+    }
+
+    private static Processor<Mat, Mat, Mat[]> createProcessor(BlockingQueue<TilePredictor> predictors,
                                                             Collection<? extends ColorTransforms.ColorTransform> inputChannels,
-                                                            int tileDims, boolean padToInputSize) {
+                                                            int tileDims, boolean padToInputSize,
+                                                            ShapeBuckets shapeBuckets, TissueScreen tissueScreen,
+                                                            StageTimer timer, UnaryOperator<PathObject> parents) {
         if (debugTiles())
             return InstanSeg::createOnes;
-        return new TilePredictionProcessor(predictors, inputChannels, tileDims, tileDims, padToInputSize);
+        return new TilePredictionProcessor(predictors, inputChannels, tileDims, tileDims, padToInputSize, shapeBuckets,
+                tissueScreen, timer, parents);
+    }
+
+    private ShapeBuckets createShapeBuckets(int tileDims) {
+        if (shapeBuckets == null)
+            return null;
+        return shapeBuckets.length == 0 ? ShapeBuckets.createDefault(tileDims) : ShapeBuckets.of(shapeBuckets);
+    }
+
+    /**
+     * Run each predictor on blank inputs of each shape, so that the engine can load and optimize the model before
+     * processing any real tiles.
+     * The first predictor runs each shape twice, because the TorchScript profiling executor only optimizes the
+     * (shared) model on the second run; others run each shape once, to initialize any per-predictor resources.
+     * @param predictors the predictors
+     * @param shapes the {width, height} of each input
+     * @param nChannels the number of input channels
+     * @throws InferenceException if prediction fails
+     */
+    private static void warmUp(Collection<TilePredictor> predictors, List<int[]> shapes, int nChannels) throws InferenceException {
+        boolean first = true;
+        for (var predictor : predictors) {
+            for (var shape : shapes) {
+                for (int i = 0; i < (first ? 2 : 1); i++) {
+                    try (var mat = new Mat(shape[1], shape[0], opencv_core.CV_32FC(nChannels), Scalar.all(0))) {
+                        for (var output : predictor.predict(mat)) {
+                            output.close();
+                        }
+                    }
+                }
+            }
+            first = false;
+        }
+    }
+
+    /**
+     * Wrap a processor so that it only processes tiles accepted by a filter, returning null for all others.
+     * @param processor the processor to wrap
+     * @param tileFilter a predicate to test the (unpadded) tile ROI
+     * @return a processor that skips tiles rejected by the filter
+     */
+    private static Processor<Mat, Mat, Mat[]> filterTiles(Processor<Mat, Mat, Mat[]> processor, Predicate<ROI> tileFilter) {
+        return params -> tileFilter.test(params.getParentOrProxy().getROI()) ? processor.process(params) : null;
     }
 
     private static Mat[] createOnes(Parameters<Mat, Mat> parameters) {
@@ -328,18 +864,98 @@ public class InstanSeg {
     private static OutputHandler<Mat, Mat, Mat[]> createOutputHandler(Class<? extends PathObject> preferredOutputType,
                                                                       boolean randomColors,
                                                                       int boundaryThreshold,
-                                                                      List<OutputTensor> outputTensors) {
+                                                                      List<OutputTensor> outputTensors,
+                                                                      StageTimer timer,
+                                                                      ThreadBudget threads,
+                                                                      ParentMask.Cache masks,
+                                                                      UnaryOperator<PathObject> parents) {
         // TODO: Reinstate this for Mat[] output (it was written for Mat output)
 //        if (debugTiles())
 //            return OutputHandler.createUnmaskedObjectOutputHandler(OpenCVProcessor.createAnnotationConverter());
         var converter = new InstanSegOutputToObjectConverter(outputTensors, preferredOutputType);
         if (boundaryThreshold >= 0) {
-            return new PruneObjectOutputHandler<>(converter, boundaryThreshold);
+            return new PruneObjectOutputHandler<>(converter, boundaryThreshold, timer, threads, masks, parents);
         } else {
             return OutputHandler.createObjectOutputHandler(converter);
         }
     }
 
+    /**
+     * Create the tiles for each parent object, in the order that their tasks will be created.
+     */
+    private static List<PriorityTaskRunner.Tile> createTiles(ImageData<BufferedImage> imageData, Tiler tiler,
+                                                             Collection<? extends PathObject> pathObjects) {
+        List<PriorityTaskRunner.Tile> tiles = new ArrayList<>();
+        int parentIndex = 0;
+        for (var pathObject : pathObjects) {
+            var roi = pathObject.getROI();
+            if (roi == null) {
+                var server = imageData.getServer();
+                roi = ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), ImagePlane.getDefaultPlane());
+            }
+            for (var tile : tiler.createAnnotations(roi)) {
+                tiles.add(new PriorityTaskRunner.Tile(tile.getROI(), parentIndex));
+            }
+            parentIndex++;
+        }
+        return tiles;
+    }
+
+    /**
+     * Create the tiles for grid-aligned proxies, identifying the parent of each by its index.
+     */
+    private static List<PriorityTaskRunner.Tile> createTiles(GridTiling gridTiling, Collection<? extends PathObject> proxies,
+                                                             Collection<? extends PathObject> parents) {
+        List<PathObject> parentList = List.copyOf(parents);
+        List<PriorityTaskRunner.Tile> tiles = new ArrayList<>();
+        int parentIndex = -1;
+        PathObject lastParent = null;
+        for (var proxy : proxies) {
+            var parent = gridTiling.getParent(proxy);
+            if (parent != lastParent) {
+                parentIndex = parentList.indexOf(parent);
+                lastParent = parent;
+            }
+            tiles.add(new PriorityTaskRunner.Tile(proxy.getROI(), parentIndex));
+        }
+        return tiles;
+    }
+
+    /**
+     * Create a tile for each canvas of small parent objects, covering the bounds of its parents.
+     * Each canvas is given its own parent index, starting from the specified index.
+     */
+    private static List<PriorityTaskRunner.Tile> createTiles(List<TilePacker.Canvas> canvases, int firstIndex) {
+        List<PriorityTaskRunner.Tile> tiles = new ArrayList<>();
+        int parentIndex = firstIndex;
+        for (var canvas : canvases) {
+            var rois = canvas.placements().stream().map(p -> p.parent().getROI()).toList();
+            double x = rois.stream().mapToDouble(ROI::getBoundsX).min().orElse(0);
+            double y = rois.stream().mapToDouble(ROI::getBoundsY).min().orElse(0);
+            double x2 = rois.stream().mapToDouble(r -> r.getBoundsX() + r.getBoundsWidth()).max().orElse(0);
+            double y2 = rois.stream().mapToDouble(r -> r.getBoundsY() + r.getBoundsHeight()).max().orElse(0);
+            tiles.add(new PriorityTaskRunner.Tile(
+                    ROIs.createRectangleROI(x, y, x2 - x, y2 - y, rois.getFirst().getImagePlane()), parentIndex++));
+        }
+        return tiles;
+    }
+
+    /**
+     * Log the estimated read amplification of grid-aligned tiles, compared to the default tiles.
+     */
+    private static void logReadAmplification(ImageData<BufferedImage> imageData, double downsample,
+                                              List<PriorityTaskRunner.Tile> gridTiles, int gridPadding,
+                                              List<PriorityTaskRunner.Tile> defaultTiles, int defaultPadding) {
+        var server = imageData.getServer();
+        double gridAmplification = GridTiling.estimateReadAmplification(server, downsample,
+                gridTiles.stream().map(PriorityTaskRunner.Tile::roi).toList(), gridPadding);
+        double defaultAmplification = GridTiling.estimateReadAmplification(server, downsample,
+                defaultTiles.stream().map(PriorityTaskRunner.Tile::roi).toList(), defaultPadding);
+        logger.info("Using {} grid-aligned tiles (estimated read amplification {}x, compared to {}x for {} default tiles)",
+                gridTiles.size(), GeneralTools.formatNumber(gridAmplification, 2),
+                GeneralTools.formatNumber(defaultAmplification, 2), defaultTiles.size());
+    }
+
     private static Tiler createTiler(double downsample, int tileDims, int padding) {
         int sizeWithoutPadding = (int) Math.round(downsample * (tileDims - (double) padding*2));
         return Tiler.builder(sizeWithoutPadding)
@@ -385,26 +1001,29 @@ public class InstanSeg {
 
 
     /**
-     * Print resource count for debugging purposes.
-     * If we are not logging at debug level, do nothing.
-     * @param title The name to be used in the log.
-     * @param manager The NDManager to print from.
+     * Wrap a post-processor so that the time it takes is recorded, and emitted as a flight recorder event.
+     * @param postProcessor the post-processor; may be null
+     * @param timer the timer used to record the post-processing time
+     * @return the wrapped post-processor, or null if the input was null
      */
-    private static void printResourceCount(String title, BaseNDManager manager) {
-        if (logger.isDebugEnabled()) {
-            try {
-                // This is broken in DJL v0.34.0
-                // See https://github.com/deepjavalibrary/djl/pull/3780
-                logger.debug(title);
-                manager.debugDump(2);
-            } catch (Exception e) {
-                LogTools.warnOnce(logger, "BaseNDManager.debugDump(2) failed with an exception");
-                logger.debug(e.getMessage(), e);
+    private static ObjectProcessor instrumentPostProcessor(ObjectProcessor postProcessor, StageTimer timer) {
+        if (postProcessor == null)
+            return null;
+        return input -> {
+            var mergeEvent = new InstanSegEvents.Merge();
+            mergeEvent.begin();
+            long start = StageTimer.start();
+            var output = postProcessor.process(input);
+            timer.record(StageTimings.Stage.POST_PROCESSING, start);
+            if (mergeEvent.shouldCommit()) {
+                mergeEvent.nInputObjects = input.size();
+                mergeEvent.nOutputObjects = output.size();
+                mergeEvent.commit();
             }
-        }
+            return output;
+        };
     }
 
-
     /**
      * A builder class for InstanSeg.
      */
@@ -421,15 +1040,239 @@ public class InstanSeg {
         private int[] outputChannels = null;
         private boolean randomColors = true;
         private boolean makeMeasurements = false;
-        private Device device = Device.fromName("cpu");
+        private String device = "cpu";
         private TaskRunner taskRunner = TaskRunnerUtils.getDefaultInstance().createTaskRunner();
         private Collection<? extends ColorTransforms.ColorTransform> channels;
         private InstanSegModel model;
         private Class<? extends PathObject> preferredOutputType;
         private final Map<String, Object> optionalArgs = new LinkedHashMap<>();
+        private TileShard shard;
+        private Path shardOutput;
+        private Path checkpoint;
+        private InferenceBackend backend;
+        private int nThreads = -1;
+        private int nPredictors = -1;
+        private EngineThreads engineThreads = EngineThreads.DEFAULT;
+        private boolean autoEngineThreads = false;
+        private int[] shapeBuckets = null;
+        private boolean warmUp = false;
+        private boolean autoTune = false;
+        private long memoryBudget = Long.MAX_VALUE;
+        private TissueScreen tissueScreen = null;
+        private TileScheduler tileScheduler = null;
+        private boolean packSmallParents = false;
+        private boolean alignTilesToGrid = false;
+        private double pyramidTolerance = -1;
 
         Builder() {}
 
+        /**
+         * Use the downsample of a pyramid level if it is close to the downsample preferred by the model.
+         * <p>
+         * When the pixel size of the image doesn't match the model, every region is resampled from a finer pyramid
+         * level as it is read - which can be slow for large images, and makes caching less effective.
+         * Snapping to a nearby level avoids this, at the cost of applying the model at a slightly different scale.
+         * This only applies if the downsample is determined from the model, not if it is set explicitly.
+         * @param tolerance the maximum relative difference in downsample (e.g. 0.1 for 10%), or a negative value to
+         *                  always use the preferred downsample
+         * @return this builder
+         */
+        public Builder snapToPyramidLevels(double tolerance) {
+            this.pyramidTolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Align tiles to the grid of tiles stored in the image, at the pyramid level that will be read.
+         * <p>
+         * By default, tiles are centred on each parent object, so tile requests (with padding) usually overlap
+         * several stored tiles that must all be decoded.
+         * Aligning tiles to the stored grid, with padding in whole stored tiles where possible, can substantially
+         * reduce the amount of the image that is decoded - especially for slow or remote images.
+         * The estimated read amplification is logged for each run.
+         * The tile size may be slightly smaller than requested, so that it is a whole number of stored tiles.
+         * @return this builder
+         */
+        public Builder alignTilesToGrid() {
+            return alignTilesToGrid(true);
+        }
+
+        /**
+         * Optionally align tiles to the grid of tiles stored in the image.
+         * @param doAlign whether to align tiles
+         * @return this builder
+         * @see #alignTilesToGrid()
+         */
+        public Builder alignTilesToGrid(boolean doAlign) {
+            this.alignTilesToGrid = doAlign;
+            return this;
+        }
+
+        /**
+         * Pack parent objects that are smaller than a tile into shared tiles, so that the model runs once for many
+         * parents.
+         * <p>
+         * This can greatly improve throughput when there are many small parents (e.g. TMA cores or small annotations).
+         * Each parent is still normalized independently, but results may differ slightly from processing parents
+         * separately because neighbouring parents fall within the receptive field of the model.
+         * Packing is not used when processing shards.
+         * @return this builder
+         */
+        public Builder packSmallParents() {
+            return packSmallParents(true);
+        }
+
+        /**
+         * Optionally pack parent objects that are smaller than a tile into shared tiles.
+         * @param doPack whether to pack small parents
+         * @return this builder
+         * @see #packSmallParents()
+         */
+        public Builder packSmallParents(boolean doPack) {
+            this.packSmallParents = doPack;
+            return this;
+        }
+
+        /**
+         * Set a scheduler to control the order in which tiles are processed.
+         * <p>
+         * This can be used to process the region the user is looking at first, and can be updated during the run.
+         * It doesn't change the results.
+         * Tiles outside the priority regions are interleaved across parent objects, largest first - so a scheduler
+         * without any priority regions can be used to help keep all threads busy when there are many parents of
+         * different sizes.
+         * @param scheduler the scheduler, or null to process tiles in their default order
+         * @return this builder
+         */
+        public Builder tileScheduler(TileScheduler scheduler) {
+            this.tileScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Skip tiles that contain little foreground, without reading them at full resolution or running the model.
+         * <p>
+         * A coarse foreground mask is created from the low-resolution image used for normalization.
+         * Pixels are foreground if any input channel is darker than its threshold (for brightfield images)
+         * or brighter than its threshold (for other images).
+         * If no thresholds are given, they are determined for each channel using Otsu's method - this works best
+         * when the parent object contains a reasonable amount of background.
+         * The number of skipped tiles is reported in {@link InstanSegResults#nTilesSkipped()}.
+         * @param minCoverage the minimum proportion of foreground pixels needed to process a tile (e.g. 0.01)
+         * @param thresholds optional thresholds for each input channel, in the units of the input channel
+         * @return this builder
+         * @throws IllegalArgumentException if the minimum coverage is not between 0 and 1
+         */
+        public Builder tissuePrescreen(double minCoverage, double... thresholds) throws IllegalArgumentException {
+            this.tissueScreen = new TissueScreen(minCoverage, thresholds);
+            return this;
+        }
+
+        /**
+         * Limit the memory for tiles that are being processed to half the maximum heap size.
+         * @return this builder
+         * @see #memoryBudget(long)
+         */
+        public Builder memoryBudget() {
+            return memoryBudget(TileMemoryEstimate.getDefaultBudget());
+        }
+
+        /**
+         * Set the memory budget for tiles that are being processed.
+         * <p>
+         * The memory needed for each tile is estimated from the tile size and the number of input and output channels,
+         * and the number of tiles in flight is limited so that the total stays within the budget.
+         * This helps avoid running out of memory when using large tiles and many threads, at the cost of some
+         * parallelism.
+         * The estimate is rough, and includes both heap and native memory.
+         * By default, no budget is applied.
+         * @param bytes the budget in bytes, or &leq; 0 to apply no limit
+         * @return this builder
+         * @see #memoryBudget()
+         */
+        public Builder memoryBudget(long bytes) {
+            this.memoryBudget = bytes <= 0 ? Long.MAX_VALUE : bytes;
+            return this;
+        }
+
+        /**
+         * Choose the tile size, padding and number of predictors automatically, by timing the model on a sample
+         * of the image.
+         * <p>
+         * Tile sizes are compared by the number of objects detected per second, taking into account the proportion of
+         * each tile used for padding. Only settings that are expected to fit within the memory budget are considered
+         * (or half the maximum heap size, if no budget is set).
+         * The result is stored for each model, device and backend, and reused by later runs - set the system property
+         * {@code instanseg.autotune.recalibrate=true} to force tuning to run again.
+         * Results are stored in {@code .instanseg/tuning} within the user's home directory, unless the system property
+         * {@code instanseg.autotune.directory} specifies another directory.
+         * <p>
+         * This overrides any values passed to {@link #tileDims(int)} and {@link #interTilePadding(int)}.
+         * The padding is only used if no objects are found in the sample.
+         * @return this builder
+         * @see #memoryBudget(long)
+         */
+        public Builder autoTune() {
+            return autoTune(true);
+        }
+
+        /**
+         * Optionally choose the tile size, padding and number of predictors automatically.
+         * @param doAutoTune whether to tune automatically
+         * @return this builder
+         * @see #autoTune()
+         */
+        public Builder autoTune(boolean doAutoTune) {
+            this.autoTune = doAutoTune;
+            return this;
+        }
+
+        /**
+         * Pad tiles up to a small number of canonical sizes, and crop the output afterwards.
+         * <p>
+         * Tiles at image boundaries are otherwise cropped, which can give the model many different input shapes.
+         * Some engines (notably TorchScript) optimize the model for each new shape, which can make processing slow
+         * and unpredictable. With shape buckets, each possible shape is warmed up once when the model is loaded.
+         * Widths and heights are padded independently, using the smallest bucket that is large enough.
+         * @param sizes the bucket sizes, in pixels; if none are specified, half and full tile size are used
+         * @return this builder
+         * @throws IllegalArgumentException if any size is &leq; 0
+         * @see #tileDims(int)
+         */
+        public Builder shapeBuckets(int... sizes) throws IllegalArgumentException {
+            if (sizes.length > 0)
+                ShapeBuckets.of(sizes); // Validate now, rather than when running
+            this.shapeBuckets = sizes.clone();
+            return this;
+        }
+
+        /**
+         * Request that the model is warmed up when it is loaded, by running each predictor on a blank tile before
+         * processing the image.
+         * <p>
+         * Engines such as TorchScript optimize the model lazily, which can make the first tiles much slower.
+         * Warming up doesn't make the overall run faster (and adds extra predictions, which can make short runs
+         * slower), but makes the time per tile more consistent and reports the warm-up time separately in
+         * {@link InstanSegResults#warmUpTimeMillis()}. This is mostly useful for benchmarking.
+         * If shape buckets are used, the model is always warmed up for every bucket.
+         * @return this builder
+         * @see #shapeBuckets(int...)
+         */
+        public Builder warmUp() {
+            return warmUp(true);
+        }
+
+        /**
+         * Optionally request that the model is warmed up when it is loaded. This is off by default.
+         * @param doWarmUp whether to warm up the model
+         * @return this builder
+         * @see #warmUp()
+         */
+        public Builder warmUp(boolean doWarmUp) {
+            this.warmUp = doWarmUp;
+            return this;
+        }
+
         /**
          * Set the width and height of tiles
          * @param tileDims The tile width and height
@@ -600,6 +1443,47 @@ public class InstanSeg {
          */
         public Builder nThreads(int nThreads) {
             this.taskRunner = TaskRunnerUtils.getDefaultInstance().createTaskRunner(nThreads);
+            this.nThreads = nThreads;
+            return this;
+        }
+
+        /**
+         * Set the number of predictors, i.e. the number of tiles that can be passed to the model in parallel.
+         * If this isn't set, the system property {@code instanseg.numPredictors} is used (default 1).
+         * @param nPredictors the number of predictors
+         * @return this builder
+         */
+        public Builder nPredictors(int nPredictors) {
+            this.nPredictors = nPredictors;
+            return this;
+        }
+
+        /**
+         * Set the number of threads used by the inference engine itself.
+         * <p>
+         * For PyTorch, these settings apply to the whole process - and the inter-op threads can only be changed
+         * before the engine is first used.
+         * @param intraOpThreads threads used within each operation, or &leq; 0 to use the engine default
+         * @param interOpThreads threads used to run independent operations in parallel, or &leq; 0 to use the engine default
+         * @return this builder
+         * @see #autoEngineThreads()
+         */
+        public Builder engineThreads(int intraOpThreads, int interOpThreads) {
+            this.engineThreads = new EngineThreads(intraOpThreads, interOpThreads);
+            this.autoEngineThreads = false;
+            return this;
+        }
+
+        /**
+         * Automatically set the number of threads used by the inference engine, by dividing the available cores
+         * between predictors (taking into account the number of threads used to process tiles).
+         * This avoids oversubscribing the CPU when several predictors run in parallel.
+         * @return this builder
+         * @see #engineThreads(int, int)
+         * @see #nPredictors(int)
+         */
+        public Builder autoEngineThreads() {
+            this.autoEngineThreads = true;
             return this;
         }
 
@@ -610,6 +1494,7 @@ public class InstanSeg {
          */
         public Builder taskRunner(TaskRunner taskRunner) {
             this.taskRunner = taskRunner;
+            this.nThreads = -1;
             return this;
         }
 
@@ -647,7 +1532,7 @@ public class InstanSeg {
          * @return this builder
          */
         public Builder device(String deviceName) {
-            this.device = Device.fromName(deviceName);
+            this.device = Objects.requireNonNull(deviceName, "Device name must not be null").strip();
             return this;
         }
 
@@ -657,8 +1542,9 @@ public class InstanSeg {
          * @return this builder
          */
         public Builder device(Device device) {
-            this.device = device;
-            return this;
+            // Use the same format as Device.fromName(String), e.g. "gpu0" - the CPU has no device ID
+            int id = device.getDeviceId();
+            return device(device.isCpu() || id < 0 ? device.getDeviceType() : device.getDeviceType() + id);
         }
 
         /**
@@ -751,6 +1637,87 @@ public class InstanSeg {
             return this;
         }
 
+        /**
+         * Process only one shard of the tiles, so that several processes (or machines) can split the work for a
+         * single image.
+         * <p>
+         * The tiles are divided into spatial bands in a deterministic way, so each shard should be run with the same
+         * parent objects and settings. The partial results can then be combined with
+         * {@link InstanSeg#mergeShards(ImageData, Collection, Collection)}.
+         * @param shardIndex 0-based index of the shard to process
+         * @param shardCount total number of shards
+         * @return this builder
+         * @see #shardOutput(Path)
+         */
+        public Builder shard(int shardIndex, int shardCount) {
+            this.shard = new TileShard(shardIndex, shardCount);
+            return this;
+        }
+
+        /**
+         * Set a file where the objects detected by this shard should be written, as GeoJSON.
+         * @param path The output file
+         * @return this builder
+         * @see #shard(int, int)
+         */
+        public Builder shardOutput(Path path) {
+            this.shardOutput = path;
+            return this;
+        }
+
+        /**
+         * Set a journal file used to checkpoint progress, so that a long run can be resumed if it is cancelled or
+         * fails.
+         * <p>
+         * The objects detected for each tile are appended to the journal as soon as the tile is complete.
+         * If the journal already exists and was created with the same configuration, any tiles it contains are
+         * skipped and their objects restored before merging.
+         * @param journal The journal file
+         * @return this builder
+         */
+        public Builder checkpoint(Path journal) {
+            this.checkpoint = journal;
+            return this;
+        }
+
+        /**
+         * Replace the model with a synthetic predictor that generates random labels, for benchmarking the rest of
+         * the pipeline without a GPU or a downloaded model.
+         * If this is set, no model is required and the downsample defaults to 1 unless specified.
+         * @param density the mean number of objects per 1000x1000 pixels
+         * @param meanRadius the mean object radius, in pixels at the processing resolution
+         * @param latencyMillis the time spent 'predicting' each tile, to simulate the model
+         * @param nOutputChannels 1 to generate nuclei only, or 2 to generate nuclei and cells
+         * @return this builder
+         */
+        Builder syntheticPredictions(double density, double meanRadius, long latencyMillis, int nOutputChannels) {
+            return backend(new SyntheticBackend(new SyntheticPredictor.Spec(density, meanRadius, latencyMillis, nOutputChannels)));
+        }
+
+        /**
+         * Set the backend used to run the model.
+         * If this isn't set, {@link InferenceBackends#getDefaultBackend(InstanSegModel)} is used.
+         * @param backend the backend
+         * @return this builder
+         * @see InferenceBackends#getAvailableBackends()
+         */
+        public Builder backend(InferenceBackend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        /**
+         * Set the backend used to run the model, by name.
+         * @param name the backend name, e.g. "pytorch" or "onnx"
+         * @return this builder
+         * @throws IllegalArgumentException if no backend with the specified name is available
+         * @see InferenceBackends#getAvailableBackends()
+         */
+        public Builder backend(String name) throws IllegalArgumentException {
+            return backend(InferenceBackends.getBackend(name)
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown inference backend: " + name)));
+        }
+
         /**
          * Build the InstanSeg instance.
          * @return An InstanSeg instance ready for object detection.
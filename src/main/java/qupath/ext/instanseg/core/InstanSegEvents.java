@@ -0,0 +1,101 @@
+package qupath.ext.instanseg.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Custom JDK Flight Recorder events for the main stages of the InstanSeg pipeline.
+ * <p>
+ * These are disabled unless a recording is started (e.g. with {@code -XX:StartFlightRecording} or via JDK Mission
+ * Control), in which case they have a very low overhead.
+ */
+final class InstanSegEvents {
+
+    private static final String CATEGORY_QUPATH = "QuPath";
+    private static final String CATEGORY_INSTANSEG = "InstanSeg";
+
+    private InstanSegEvents() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Base class for events associated with a single tile.
+     */
+    @StackTrace(false)
+    abstract static class TileEvent extends Event {
+
+        @Label("X")
+        int x;
+
+        @Label("Y")
+        int y;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Downsample")
+        double downsample;
+
+        /**
+         * Set the region fields, and commit the event.
+         * This should only be called if {@link #shouldCommit()} returns true.
+         * @param request the region of the tile
+         */
+        void commit(RegionRequest request) {
+            x = request.getX();
+            y = request.getY();
+            width = request.getWidth();
+            height = request.getHeight();
+            downsample = request.getDownsample();
+            commit();
+        }
+
+    }
+
+    @Name("qupath.instanseg.TileRead")
+    @Label("Tile Read")
+    @Category({CATEGORY_QUPATH, CATEGORY_INSTANSEG})
+    @Description("Reading the pixels for a tile")
+    static class TileRead extends TileEvent {}
+
+    @Name("qupath.instanseg.Predict")
+    @Label("Predict")
+    @Category({CATEGORY_QUPATH, CATEGORY_INSTANSEG})
+    @Description("Running the model for a tile")
+    static class Predict extends TileEvent {}
+
+    @Name("qupath.instanseg.Convert")
+    @Label("Convert")
+    @Category({CATEGORY_QUPATH, CATEGORY_INSTANSEG})
+    @Description("Converting the model output for a tile into objects")
+    static class Convert extends TileEvent {
+
+        @Label("Objects")
+        int nObjects;
+
+    }
+
+    @Name("qupath.instanseg.Merge")
+    @Label("Merge")
+    @Category({CATEGORY_QUPATH, CATEGORY_INSTANSEG})
+    @Description("Merging objects across tiles for a parent object")
+    @StackTrace(false)
+    static class Merge extends Event {
+
+        @Label("Input Objects")
+        int nInputObjects;
+
+        @Label("Output Objects")
+        int nOutputObjects;
+
+    }
+
+}
@@ -0,0 +1,110 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Live metrics for InstanSeg runs, aggregated from the counters of each {@link TilePredictionProcessor}.
+ * A single instance is registered with the platform MBean server the first time it is requested.
+ */
+class InstanSegMetrics implements InstanSegMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanSegMetrics.class);
+
+    private static final String OBJECT_NAME = "qupath.ext.instanseg:type=Metrics";
+
+    private static final InstanSegMetrics INSTANCE = createInstance();
+
+    private final Set<TilePredictionProcessor> activeProcessors = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong completedTilesProcessed = new AtomicLong();
+    private final AtomicLong completedTilesFailed = new AtomicLong();
+    private final AtomicLong completedPixelsProcessed = new AtomicLong();
+
+    private InstanSegMetrics() {}
+
+    private static InstanSegMetrics createInstance() {
+        var metrics = new InstanSegMetrics();
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException | SecurityException e) {
+            logger.debug("Unable to register InstanSeg metrics MBean", e);
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the shared metrics instance.
+     * @return the metrics
+     */
+    static InstanSegMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start reporting the counters of a processor.
+     * @param processor the processor for the run that has started
+     */
+    void runStarted(TilePredictionProcessor processor) {
+        activeProcessors.add(processor);
+    }
+
+    /**
+     * Stop reporting the counters of a processor, adding its final counts to the totals.
+     * @param processor the processor for the run that has finished
+     */
+    void runFinished(TilePredictionProcessor processor) {
+        if (activeProcessors.remove(processor)) {
+            completedTilesProcessed.addAndGet(processor.getTilesProcessedCount());
+            completedTilesFailed.addAndGet(processor.getTilesFailedCount());
+            completedPixelsProcessed.addAndGet(processor.getPixelsProcessedCount());
+        }
+    }
+
+    private long sumActive(ToLongFunction<TilePredictionProcessor> fun) {
+        return activeProcessors.stream().mapToLong(fun).sum();
+    }
+
+    @Override
+    public int getActiveRuns() {
+        return activeProcessors.size();
+    }
+
+    @Override
+    public long getTilesProcessed() {
+        return completedTilesProcessed.get() + sumActive(TilePredictionProcessor::getTilesProcessedCount);
+    }
+
+    @Override
+    public long getTilesFailed() {
+        return completedTilesFailed.get() + sumActive(TilePredictionProcessor::getTilesFailedCount);
+    }
+
+    @Override
+    public long getPixelsProcessed() {
+        return completedPixelsProcessed.get() + sumActive(TilePredictionProcessor::getPixelsProcessedCount);
+    }
+
+    @Override
+    public int getPredictorsAvailable() {
+        return (int)sumActive(TilePredictionProcessor::getPredictorsAvailableCount);
+    }
+
+    @Override
+    public int getPredictorQueueDepth() {
+        return (int)sumActive(TilePredictionProcessor::getPredictorWaitingCount);
+    }
+
+}
@@ -0,0 +1,46 @@
+package qupath.ext.instanseg.core;
+
+/**
+ * Management interface for live InstanSeg metrics, published through JMX as {@code qupath.ext.instanseg:type=Metrics}.
+ * <p>
+ * Counts include all runs since the extension was loaded, including any runs that are currently in progress.
+ */
+public interface InstanSegMetricsMXBean {
+
+    /**
+     * Get the number of runs currently in progress.
+     * @return the number of active runs
+     */
+    int getActiveRuns();
+
+    /**
+     * Get the total number of tiles that were processed, including any that failed.
+     * @return the number of tiles processed
+     */
+    long getTilesProcessed();
+
+    /**
+     * Get the total number of tiles that threw an exception during processing.
+     * @return the number of tiles that failed
+     */
+    long getTilesFailed();
+
+    /**
+     * Get the total number of pixels that were processed (including padding, excluding channels).
+     * @return the number of pixels processed
+     */
+    long getPixelsProcessed();
+
+    /**
+     * Get the number of predictors for active runs that are currently idle.
+     * @return the number of idle predictors
+     */
+    int getPredictorsAvailable();
+
+    /**
+     * Get the number of tiles for active runs that are currently waiting for a predictor.
+     * @return the predictor queue depth
+     */
+    int getPredictorQueueDepth();
+
+}
@@ -46,6 +46,9 @@ public class InstanSegModel {
      */
     public static final int ANY_CHANNELS = -1;
 
+    private static final String TORCHSCRIPT_FILENAME = "instanseg.pt";
+    private static final String ONNX_FILENAME = "instanseg.onnx";
+
     private Path path = null;
     private Model model = null;
     private final String name;
@@ -229,16 +232,33 @@ public class InstanSegModel {
         return name;
     }
 
+    /**
+     * Get the path to the TorchScript model file, if it exists.
+     * @return the path to instanseg.pt, or empty if the model isn't downloaded or doesn't include a TorchScript file
+     */
+    public Optional<Path> getTorchScriptPath() {
+        return getPath().map(p -> p.resolve(TORCHSCRIPT_FILENAME)).filter(Files::isRegularFile);
+    }
+
+    /**
+     * Get the path to the ONNX model file, if it exists.
+     * @return the path to instanseg.onnx, or empty if the model isn't downloaded or doesn't include an ONNX file
+     */
+    public Optional<Path> getOnnxPath() {
+        return getPath().map(p -> p.resolve(ONNX_FILENAME)).filter(Files::isRegularFile);
+    }
+
     /**
      * Check if a path is (likely) a valid InstanSeg model.
      * @param path The path to a folder.
-     * @return True if the folder contains an instanseg.pt file and an accompanying rdf.yaml.
+     * @return True if the folder contains an instanseg.pt or instanseg.onnx file and an accompanying rdf.yaml.
      * Does not currently validate the contents of either, but may in future check
-     * the yaml contents and the checksum of the pt file.
+     * the yaml contents and the checksum of the model file.
      */
     public static boolean isValidModel(Path path) {
         if (Files.isDirectory(path)) {
-            return Files.exists(path.resolve("instanseg.pt")) && Files.exists(path.resolve("rdf.yaml"));
+            return (Files.exists(path.resolve(TORCHSCRIPT_FILENAME)) || Files.exists(path.resolve(ONNX_FILENAME)))
+                    && Files.exists(path.resolve("rdf.yaml"));
         }
         return false;
     }
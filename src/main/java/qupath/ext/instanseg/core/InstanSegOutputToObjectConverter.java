@@ -18,6 +18,7 @@ import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.PathTileObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.opencv.tools.OpenCVTools;
@@ -49,6 +50,16 @@ class InstanSegOutputToObjectConverter implements OutputHandler.OutputToObjectCo
 
     @Override
     public List<PathObject> convertToObjects(Parameters<Mat, Mat> params, Mat[] output) {
+        return convertToObjects(params.getRegionRequest(), output);
+    }
+
+    /**
+     * Convert the output of the model for a single region into objects.
+     * @param request the region corresponding to the output (including any padding)
+     * @param output the model output, where the first element contains the labels
+     * @return the objects, in the coordinate space of the full-resolution image
+     */
+    List<PathObject> convertToObjects(RegionRequest request, Mat[] output) {
         if (output == null) {
             return List.of();
         }
@@ -59,10 +70,10 @@ class InstanSegOutputToObjectConverter implements OutputHandler.OutputToObjectCo
 
 
         List<Map<Number, ROI>> roiMaps = new ArrayList<>();
-        ImagePlane plane = params.getRegionRequest().getImagePlane();
+        ImagePlane plane = request.getImagePlane();
         for (var mat : OpenCVTools.splitChannels(matLabels)) {
             var image = OpenCVTools.matToSimpleImage(mat, 0);
-            var geoms = ContourTracing.createGeometries(image, params.getRegionRequest(), 1, -1);
+            var geoms = ContourTracing.createGeometries(image, request, 1, -1);
             roiMaps.add(geoms.entrySet().stream()
                     .collect(
                             Collectors.toMap(
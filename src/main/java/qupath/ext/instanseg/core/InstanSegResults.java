@@ -5,20 +5,44 @@ package qupath.ext.instanseg.core;
  * @param nPixelsProcessed total number of pixels passed to the model for inference (including padding, excluding channels)
  * @param nTilesProcessed total number of tiles that were processed, including any that failed
  * @param nTilesFailed number of tiles that threw an exception during processing
+ * @param nTilesRestored number of tiles whose objects were restored from a checkpoint journal, rather than processed
+ * @param nTilesSkipped number of tiles skipped by the tissue pre-screen, rather than processed
  * @param nObjectsDetected number of objects detected in the image
- * @param processingTimeMillis total time taken to process the image in milliseconds
+ * @param processingTimeMillis total time taken to process the image in milliseconds (including any warm-up)
+ * @param warmUpTimeMillis time taken to warm up the model before processing any tiles, in milliseconds
  * @param wasInterrupted whether the processing was interrupted; if so, failed tiles are not necessary problematic
+ * @param stageTimings cumulative and percentile timings for each stage of the pipeline
  */
 public record InstanSegResults(
         long nPixelsProcessed,
         int nTilesProcessed,
         int nTilesFailed,
+        int nTilesRestored,
+        int nTilesSkipped,
         int nObjectsDetected,
         long processingTimeMillis,
-        boolean wasInterrupted) {
+        long warmUpTimeMillis,
+        boolean wasInterrupted,
+        StageTimings stageTimings) {
 
     private static final InstanSegResults EMPTY = new InstanSegResults(0, 0, 0, 0, 0, false);
 
+    /**
+     * Create a summary of an InstanSeg run, with no restored or skipped tiles, no warm-up and no stage timings.
+     * This has the same signature as earlier versions.
+     * @param nPixelsProcessed total number of pixels passed to the model for inference (including padding, excluding channels)
+     * @param nTilesProcessed total number of tiles that were processed, including any that failed
+     * @param nTilesFailed number of tiles that threw an exception during processing
+     * @param nObjectsDetected number of objects detected in the image
+     * @param processingTimeMillis total time taken to process the image in milliseconds
+     * @param wasInterrupted whether the processing was interrupted; if so, failed tiles are not necessary problematic
+     */
+    public InstanSegResults(long nPixelsProcessed, int nTilesProcessed, int nTilesFailed, int nObjectsDetected,
+                            long processingTimeMillis, boolean wasInterrupted) {
+        this(nPixelsProcessed, nTilesProcessed, nTilesFailed, 0, 0, nObjectsDetected, processingTimeMillis, 0,
+                wasInterrupted, StageTimings.emptyInstance());
+    }
+
     /**
      * Get an empty instance of InstanSegResults.
      * @return An empty instance with default values.
@@ -27,4 +51,15 @@ public record InstanSegResults(
         return EMPTY;
     }
 
+    /**
+     * Create a copy of these results with different stage timings.
+     * This is used to add timings for stages that take place after the objects have been detected.
+     * @param stageTimings the stage timings
+     * @return a new instance with the specified timings
+     */
+    InstanSegResults withStageTimings(StageTimings stageTimings) {
+        return new InstanSegResults(nPixelsProcessed, nTilesProcessed, nTilesFailed, nTilesRestored, nTilesSkipped,
+                nObjectsDetected, processingTimeMillis, warmUpTimeMillis, wasInterrupted, stageTimings);
+    }
+
 }
@@ -68,6 +68,8 @@ class MatTranslator implements Translator<Mat, Mat[]> {
             var arrayCPU = array.toDevice(Device.cpu(), false);
             out.add(arrayCPU);
         }
+        // Optional args may include arrays provided by the caller, which we don't own
+        NativeMemoryTracker.recordNDArrays(out.stream().filter(a -> !optionalArgs.containsValue(a)).toList());
         return out;
     }
 
@@ -106,6 +108,7 @@ class MatTranslator implements Translator<Mat, Mat[]> {
 
     @Override
     public Mat[] processOutput(TranslatorContext ctx, NDList list) {
+        NativeMemoryTracker.recordNDArrays(list);
         var array = list.getFirst();
         var labels = DjlTools.ndArrayToMat(array, outputLayoutNd);
         var output = new Mat[list.size()];
@@ -0,0 +1,142 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.experimental.pixels.OutputHandler;
+import qupath.lib.experimental.pixels.Processor;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit the number of tiles in flight, so that the estimated memory needed to process them stays within a budget.
+ * <p>
+ * A permit is acquired before a tile is read, and released once its output has been handled (or processing failed).
+ * If the budget is too small for even one tile, tiles are processed one at a time.
+ */
+class MemoryBudget {
+
+    private final long budgetBytes;
+    private final int maxTiles;
+    private final Semaphore semaphore;
+    private final ThreadLocal<Boolean> holdsPermit = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private final AtomicInteger nTilesThrottled = new AtomicInteger(0);
+
+    private MemoryBudget(long budgetBytes, int maxTiles) {
+        this.budgetBytes = budgetBytes;
+        this.maxTiles = maxTiles;
+        this.semaphore = new Semaphore(maxTiles, true);
+    }
+
+    /**
+     * Create a memory budget for tiles with the specified estimate.
+     * @param budgetBytes the maximum estimated memory for all tiles in flight
+     * @param estimate the estimated memory for a single tile
+     * @param nPredictors the number of predictors, which limits how many tiles need engine memory at the same time
+     * @param nThreads the number of threads that will process tiles (the maximum number of tiles that could be in flight)
+     * @return the memory budget
+     */
+    static MemoryBudget create(long budgetBytes, TileMemoryEstimate estimate, int nPredictors, int nThreads) {
+        int maxTiles = 1;
+        while (maxTiles < nThreads && estimate.totalBytes(maxTiles + 1, nPredictors) <= budgetBytes) {
+            maxTiles++;
+        }
+        return new MemoryBudget(budgetBytes, maxTiles);
+    }
+
+    /**
+     * Get the maximum number of tiles that may be in flight at the same time.
+     * @return the maximum number of tiles
+     */
+    int getMaxTiles() {
+        return maxTiles;
+    }
+
+    /**
+     * Get the number of tiles that needed to wait for memory to become available.
+     * @return the number of throttled tiles
+     */
+    int getTilesThrottledCount() {
+        return nTilesThrottled.get();
+    }
+
+    /**
+     * Wrap a processor so that it waits for the budget before processing each tile.
+     * @param processor the processor to wrap
+     * @return a processor that acquires a permit before processing
+     */
+    <S, T, U> Processor<S, T, U> wrap(Processor<S, T, U> processor) {
+        return params -> {
+            acquire();
+            try {
+                return processor.process(params);
+            } catch (Exception e) {
+                release();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Wrap an output handler so that it releases the budget once the output for a tile has been handled.
+     * @param outputHandler the output handler to wrap
+     * @return an output handler that releases any permit held by the current thread
+     */
+    <S, T, U> OutputHandler<S, T, U> wrap(OutputHandler<S, T, U> outputHandler) {
+        return (params, output) -> {
+            try {
+                return outputHandler.handleOutput(params, output);
+            } finally {
+                release();
+            }
+        };
+    }
+
+    /**
+     * Wrap a task that processes a tile from start to finish, so that it waits for the budget before running and
+     * releases it afterwards.
+     * @param task the task to wrap
+     * @return a task that holds a permit while running; if interrupted while waiting, the task is not run
+     */
+    Runnable wrap(Runnable task) {
+        return () -> {
+            try {
+                acquire();
+            } catch (InterruptedIOException e) {
+                // The interrupted status is restored, so the run will be cancelled
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                release();
+            }
+        };
+    }
+
+    private void acquire() throws InterruptedIOException {
+        if (!semaphore.tryAcquire()) {
+            nTilesThrottled.incrementAndGet();
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory budget");
+            }
+        }
+        holdsPermit.set(Boolean.TRUE);
+    }
+
+    private void release() {
+        // Tiles that were skipped before reaching the processor won't hold a permit
+        if (holdsPermit.get()) {
+            holdsPermit.set(Boolean.FALSE);
+            semaphore.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget[" + (budgetBytes / (1024 * 1024)) + " MB, maxTiles=" + maxTiles + "]";
+    }
+
+}
@@ -0,0 +1,245 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.util.NativeResource;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.experimental.pixels.OutputHandler;
+import qupath.lib.experimental.pixels.Processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Track native memory used during a run, and release native resources for each tile as soon as it is complete.
+ * <p>
+ * Each tile is processed within its own JavaCPP {@link PointerScope}, and its output is handled within another.
+ * Each scope is opened and closed within a single call, so that it can't be left open if a tile is skipped or fails.
+ * This means that Mats created while processing the tile are released promptly, rather than waiting for the
+ * garbage collector, so that long runs have a flat native memory footprint.
+ * The output Mats are kept beyond the first scope, and released once the output has been handled.
+ * <p>
+ * NDArrays created by the translator are also recorded, and checked after prediction to ensure that they have been
+ * released by the engine.
+ */
+class NativeMemoryTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeMemoryTracker.class);
+
+    private static final ThreadLocal<TileScope> CURRENT_SCOPE = new ThreadLocal<>();
+
+    /**
+     * Number of tiles between samples of the physical memory, which can be expensive to query.
+     */
+    private static final int PHYSICAL_BYTES_INTERVAL = 32;
+
+    /**
+     * Native memory usage at a point in time.
+     * @param physicalBytes physical memory used by the process, as reported by the operating system
+     * @param pointerBytes bytes allocated by JavaCPP that have not yet been deallocated
+     * @param pointerCount number of JavaCPP pointers (e.g. Mats) that have not yet been deallocated
+     */
+    record Snapshot(long physicalBytes, long pointerBytes, long pointerCount) {
+
+        static Snapshot now() {
+            return new Snapshot(Pointer.physicalBytes(), Pointer.totalBytes(), Pointer.totalCount());
+        }
+
+    }
+
+    private final Snapshot start = Snapshot.now();
+    private final AtomicLong peakPhysicalBytes = new AtomicLong(start.physicalBytes());
+
+    private final AtomicLong nTiles = new AtomicLong(0);
+    private final AtomicLong nPointersAllocated = new AtomicLong(0);
+    private final AtomicLong nPointersReleased = new AtomicLong(0);
+    private final AtomicLong nNDArraysCreated = new AtomicLong(0);
+    private final AtomicLong nNDArraysUnreleased = new AtomicLong(0);
+
+    /**
+     * Check whether tiles should be processed within their own pointer scope.
+     * This is on by default, but can be turned off with the system property {@code instanseg.scopeTiles=false}
+     * if it causes any trouble.
+     * @return true if tiles should be scoped
+     */
+    static boolean scopeTiles() {
+        return !System.getProperty("instanseg.scopeTiles", "true").strip().equalsIgnoreCase("false");
+    }
+
+    /**
+     * Record NDArrays created for the current tile, so that they can be checked after prediction.
+     * This does nothing if the current thread isn't processing a tracked tile.
+     * @param arrays the arrays that were created
+     */
+    static void recordNDArrays(Collection<? extends NDArray> arrays) {
+        var scope = CURRENT_SCOPE.get();
+        if (scope != null) {
+            scope.ndArrays.addAll(arrays);
+        }
+    }
+
+    /**
+     * Check whether the NDArrays recorded for the current tile have been released.
+     * This should be called after prediction, once the engine has closed its own resources.
+     */
+    static void checkNDArrays() {
+        var scope = CURRENT_SCOPE.get();
+        if (scope == null || scope.ndArrays.isEmpty())
+            return;
+        var tracker = scope.tracker();
+        int nUnreleased = 0;
+        for (var array : scope.ndArrays) {
+            if (array instanceof NativeResource<?> resource && !resource.isReleased())
+                nUnreleased++;
+        }
+        tracker.nNDArraysCreated.addAndGet(scope.ndArrays.size());
+        tracker.nNDArraysUnreleased.addAndGet(nUnreleased);
+        scope.ndArrays.clear();
+    }
+
+    /**
+     * Wrap a processor so that each tile is processed within its own pointer scope.
+     * The output is retained when the scope is closed, and should be released by an output handler created with
+     * {@link #wrap(OutputHandler)}.
+     * @param processor the processor to wrap
+     * @return a processor that processes each tile within a scope
+     */
+    <S, T> Processor<S, T, Mat[]> wrap(Processor<S, T, Mat[]> processor) {
+        return params -> {
+            var scope = openScope();
+            try {
+                var output = processor.process(params);
+                if (output != null) {
+                    for (var mat : output) {
+                        if (mat != null) {
+                            mat.retainReference();
+                            scope.pointers.removeIf(p -> p == mat);
+                        }
+                    }
+                }
+                return output;
+            } finally {
+                closeScope(scope, false);
+            }
+        };
+    }
+
+    /**
+     * Wrap an output handler so that the output is handled within its own pointer scope, and released afterwards.
+     * @param outputHandler the output handler to wrap
+     * @return an output handler that releases the native resources of the tile
+     */
+    <S, T> OutputHandler<S, T, Mat[]> wrap(OutputHandler<S, T, Mat[]> outputHandler) {
+        return (params, output) -> {
+            var scope = openScope();
+            try {
+                return outputHandler.handleOutput(params, output);
+            } finally {
+                if (output != null) {
+                    for (var mat : output) {
+                        if (mat != null) {
+                            scope.pointers.add(mat);
+                            mat.releaseReference();
+                        }
+                    }
+                }
+                closeScope(scope, true);
+            }
+        };
+    }
+
+    /**
+     * Wrap a task that processes a tile from start to finish, so that it runs within its own pointer scope.
+     * @param task the task to wrap
+     * @return a task that releases the native resources of the tile when it finishes
+     */
+    Runnable wrap(Runnable task) {
+        return () -> {
+            var scope = openScope();
+            try {
+                task.run();
+            } finally {
+                closeScope(scope, true);
+            }
+        };
+    }
+
+    private TileScope openScope() {
+        var scope = new TileScope(this);
+        CURRENT_SCOPE.set(scope);
+        return scope;
+    }
+
+    private void closeScope(TileScope scope, boolean tileComplete) {
+        CURRENT_SCOPE.remove();
+        scope.close();
+        int nReleased = 0;
+        for (var pointer : scope.pointers) {
+            if (pointer.isNull() || pointer.referenceCount() <= 0)
+                nReleased++;
+        }
+        nPointersAllocated.addAndGet(scope.pointers.size());
+        nPointersReleased.addAndGet(nReleased);
+        if (tileComplete && nTiles.incrementAndGet() % PHYSICAL_BYTES_INTERVAL == 0)
+            peakPhysicalBytes.accumulateAndGet(Pointer.physicalBytes(), Math::max);
+    }
+
+    /**
+     * Log a summary of native memory use since the tracker was created, warning if resources appear to have leaked.
+     */
+    void logReport() {
+        var end = Snapshot.now();
+        peakPhysicalBytes.accumulateAndGet(end.physicalBytes(), Math::max);
+        long nLeakedPointers = nPointersAllocated.get() - nPointersReleased.get();
+        long nLeakedArrays = nNDArraysUnreleased.get();
+        String message = String.format(
+                "Native memory for %d tiles: physical %s -> %s (peak %s), JavaCPP %s -> %s, pointers %d -> %d; " +
+                        "%d Mats/pointers allocated in tiles, %d released; %d NDArrays created, %d unreleased",
+                nTiles.get(),
+                toMB(start.physicalBytes()), toMB(end.physicalBytes()), toMB(peakPhysicalBytes.get()),
+                toMB(start.pointerBytes()), toMB(end.pointerBytes()),
+                start.pointerCount(), end.pointerCount(),
+                nPointersAllocated.get(), nPointersReleased.get(),
+                nNDArraysCreated.get(), nLeakedArrays);
+        if (nLeakedPointers > 0 || nLeakedArrays > 0) {
+            logger.warn("Possible native memory leak - {}", message);
+        } else {
+            logger.debug(message);
+        }
+    }
+
+    private static String toMB(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Pointer scope that records every pointer attached to it, so that we can check they were released.
+     */
+    private static class TileScope extends PointerScope {
+
+        private final NativeMemoryTracker tracker;
+        private final List<Pointer> pointers = new ArrayList<>();
+        private final List<NDArray> ndArrays = new ArrayList<>();
+
+        private TileScope(NativeMemoryTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        private NativeMemoryTracker tracker() {
+            return tracker;
+        }
+
+        @Override
+        public PointerScope attach(Pointer p) {
+            pointers.add(p);
+            return super.attach(p);
+        }
+
+    }
+
+}
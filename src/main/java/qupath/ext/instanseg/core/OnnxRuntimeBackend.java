@@ -0,0 +1,358 @@
+package qupath.ext.instanseg.core;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Inference backend that runs exported ONNX models with ONNX Runtime.
+ * <p>
+ * This avoids the need to download PyTorch, and can provide lower latency on CPU.
+ * The model is expected to accept the same inputs as the TorchScript model (a batch of one NCHW float image,
+ * followed by any optional arguments matched by name) and to return the labels as its first output.
+ */
+class OnnxRuntimeBackend implements InferenceBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(OnnxRuntimeBackend.class);
+
+    static final String NAME = "onnx";
+
+    /**
+     * GPU device names, e.g. "gpu", "gpu1" or "cuda:0", with an optional device ID.
+     */
+    private static final Pattern GPU_DEVICE = Pattern.compile("(?:gpu|cuda):?(\\d*)");
+
+    private final int intraOpThreads;
+    private final int interOpThreads;
+    private final OrtSession.SessionOptions.OptLevel optimizationLevel;
+
+    /**
+     * Create a backend using the thread counts and optimization level specified by the system properties
+     * {@code instanseg.onnx.intraOpThreads}, {@code instanseg.onnx.interOpThreads} and
+     * {@code instanseg.onnx.optimization} - or the ONNX Runtime defaults if these aren't set.
+     */
+    OnnxRuntimeBackend() {
+        this(Integer.getInteger("instanseg.onnx.intraOpThreads", 0),
+                Integer.getInteger("instanseg.onnx.interOpThreads", 0),
+                System.getProperty("instanseg.onnx.optimization", "all"));
+    }
+
+    /**
+     * Create a backend with specific settings.
+     * @param intraOpThreads threads used within each operation, or &leq; 0 to use the ONNX Runtime default
+     * @param interOpThreads threads used to run independent operations in parallel, or &leq; 0 to run sequentially
+     * @param optimizationLevel graph optimization level: one of "none", "basic", "extended" or "all"
+     */
+    OnnxRuntimeBackend(int intraOpThreads, int interOpThreads, String optimizationLevel) {
+        this.intraOpThreads = intraOpThreads;
+        this.interOpThreads = interOpThreads;
+        this.optimizationLevel = parseOptimizationLevel(optimizationLevel);
+    }
+
+    private static OrtSession.SessionOptions.OptLevel parseOptimizationLevel(String level) {
+        return switch (level == null ? "all" : level.strip().toLowerCase(Locale.ROOT)) {
+            case "none", "no_opt" -> OrtSession.SessionOptions.OptLevel.NO_OPT;
+            case "basic", "basic_opt" -> OrtSession.SessionOptions.OptLevel.BASIC_OPT;
+            case "extended", "extended_opt" -> OrtSession.SessionOptions.OptLevel.EXTENDED_OPT;
+            case "all", "all_opt" -> OrtSession.SessionOptions.OptLevel.ALL_OPT;
+            default -> throw new IllegalArgumentException("Unknown ONNX optimization level: " + level);
+        };
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supportsModel(InstanSegModel model) {
+        return model != null && model.getOnnxPath().isPresent();
+    }
+
+    @Override
+    public Session load(InstanSegModel model, Options options) throws IOException {
+        var modelPath = model.getOnnxPath()
+                .orElseThrow(() -> new IOException("No ONNX file found for model " + model));
+        // Thread counts requested for the run take precedence over the backend defaults
+        int intraOpThreads = options.intraOpThreads() > 0 ? options.intraOpThreads() : this.intraOpThreads;
+        int interOpThreads = options.interOpThreads() > 0 ? options.interOpThreads() : this.interOpThreads;
+        var env = OrtEnvironment.getEnvironment();
+        try (var sessionOptions = new OrtSession.SessionOptions()) {
+            sessionOptions.setOptimizationLevel(optimizationLevel);
+            if (intraOpThreads > 0)
+                sessionOptions.setIntraOpNumThreads(intraOpThreads);
+            if (interOpThreads > 1) {
+                sessionOptions.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.PARALLEL);
+                sessionOptions.setInterOpNumThreads(interOpThreads);
+            }
+            addExecutionProvider(sessionOptions, options);
+            logger.debug("Loading {} with ONNX Runtime (optimization={}, intraOpThreads={}, interOpThreads={})",
+                    modelPath, optimizationLevel, intraOpThreads, interOpThreads);
+            var session = env.createSession(modelPath.toString(), sessionOptions);
+            return new OnnxSession(env, session, options);
+        } catch (OrtException e) {
+            throw new IOException("Unable to load ONNX model from " + modelPath, e);
+        }
+    }
+
+    private static void addExecutionProvider(OrtSession.SessionOptions sessionOptions, Options options) {
+        var device = options.device() == null ? "cpu" : options.device().strip().toLowerCase(Locale.ROOT);
+        if (device.isEmpty() || device.equals("cpu"))
+            return;
+        var matcher = GPU_DEVICE.matcher(device);
+        if (matcher.matches()) {
+            try {
+                sessionOptions.addCUDA(matcher.group(1).isEmpty() ? 0 : Integer.parseInt(matcher.group(1)));
+            } catch (OrtException e) {
+                logger.warn("CUDA is not available for ONNX Runtime - falling back to CPU ({})", e.getMessage());
+                logger.debug(e.getMessage(), e);
+            }
+        } else {
+            logger.warn("Device {} is not supported by ONNX Runtime - using CPU", device);
+        }
+    }
+
+    private static class OnnxSession implements Session {
+
+        private final OrtEnvironment env;
+        private final OrtSession session;
+        private final String imageInputName;
+        private final Map<String, Object> extraInputs = new LinkedHashMap<>();
+
+        private OnnxSession(OrtEnvironment env, OrtSession session, Options options) throws OrtException {
+            this.env = env;
+            this.session = session;
+            var inputInfo = session.getInputInfo();
+            var names = new ArrayList<>(inputInfo.keySet());
+            this.imageInputName = names.getFirst();
+            for (var name : names.subList(1, names.size())) {
+                var value = findArgument(name, options);
+                if (value == null) {
+                    logger.debug("No value for optional model input {}", name);
+                } else {
+                    extraInputs.put(name, value);
+                }
+            }
+        }
+
+        private static Object findArgument(String inputName, Options options) {
+            String name = inputName.startsWith("args.") ? inputName.substring("args.".length()) : inputName;
+            if ("target_segmentation".equals(name) && options.outputChannels() != null) {
+                return options.outputChannels();
+            }
+            return options.optionalArgs().get(name);
+        }
+
+        @Override
+        public TilePredictor newPredictor() {
+            // OrtSession.run is thread-safe, so predictors can share a session
+            return this::predict;
+        }
+
+        private Mat[] predict(Mat input) throws InferenceException {
+            Map<String, OnnxTensor> inputs = new LinkedHashMap<>();
+            try {
+                inputs.put(imageInputName, createImageTensor(input));
+                var inputInfo = session.getInputInfo();
+                for (var entry : extraInputs.entrySet()) {
+                    var info = (TensorInfo)inputInfo.get(entry.getKey()).getInfo();
+                    inputs.put(entry.getKey(), createArgumentTensor(info, entry.getValue()));
+                }
+                try (var result = session.run(inputs)) {
+                    var output = new Mat[result.size()];
+                    for (int i = 0; i < output.length; i++) {
+                        var tensor = (OnnxTensor)result.get(i);
+                        output[i] = i == 0 ? tensorToLabels(tensor) : tensorToMat(tensor);
+                    }
+                    return output;
+                }
+            } catch (OrtException e) {
+                throw new InferenceException("ONNX Runtime prediction failed", e);
+            } finally {
+                inputs.values().forEach(OnnxTensor::close);
+            }
+        }
+
+        /**
+         * Convert a channels-last float image into a 1xCxHxW tensor.
+         */
+        private OnnxTensor createImageTensor(Mat mat) throws OrtException {
+            float[] hwc;
+            if (mat.depth() != opencv_core.CV_32F || !mat.isContinuous()) {
+                try (var temp = new Mat()) {
+                    mat.convertTo(temp, opencv_core.CV_32F);
+                    hwc = toFloats(temp);
+                }
+            } else {
+                hwc = toFloats(mat);
+            }
+            int h = mat.rows(), w = mat.cols(), c = mat.channels();
+            float[] chw = new float[hwc.length];
+            int n = h * w;
+            for (int i = 0; i < n; i++) {
+                for (int ch = 0; ch < c; ch++) {
+                    chw[ch * n + i] = hwc[i * c + ch];
+                }
+            }
+            return OnnxTensor.createTensor(env, FloatBuffer.wrap(chw), new long[]{1, c, h, w});
+        }
+
+        private static float[] toFloats(Mat mat) {
+            float[] values = new float[(int)mat.total() * mat.channels()];
+            mat.<FloatBuffer>createBuffer().get(values);
+            return values;
+        }
+
+        private OnnxTensor createArgumentTensor(TensorInfo info, Object value) throws OrtException {
+            double[] values = toDoubles(value);
+            long[] shape = switch (info.getShape().length) {
+                case 0 -> new long[0];
+                case 1 -> new long[]{values.length};
+                default -> new long[]{1, values.length};
+            };
+            return switch (info.type) {
+                case FLOAT -> {
+                    float[] arr = new float[values.length];
+                    for (int i = 0; i < arr.length; i++)
+                        arr[i] = (float)values[i];
+                    yield OnnxTensor.createTensor(env, FloatBuffer.wrap(arr), shape);
+                }
+                case INT32 -> OnnxTensor.createTensor(env, IntBuffer.wrap(
+                        Arrays.stream(values).mapToInt(v -> (int)v).toArray()), shape);
+                case INT64 -> OnnxTensor.createTensor(env, LongBuffer.wrap(
+                        Arrays.stream(values).mapToLong(v -> (long)v).toArray()), shape);
+                case BOOL -> {
+                    var buffer = ByteBuffer.allocateDirect(values.length);
+                    for (double v : values)
+                        buffer.put((byte)(v != 0 ? 1 : 0));
+                    buffer.rewind();
+                    yield OnnxTensor.createTensor(env, buffer, shape, OnnxJavaType.BOOL);
+                }
+                default -> throw new OrtException("Unsupported input type " + info.type + " for model argument");
+            };
+        }
+
+        private static double[] toDoubles(Object value) {
+            return switch (value) {
+                case Boolean b -> new double[]{b ? 1 : 0};
+                case Number n -> new double[]{n.doubleValue()};
+                case boolean[] arr -> {
+                    double[] out = new double[arr.length];
+                    for (int i = 0; i < arr.length; i++)
+                        out[i] = arr[i] ? 1 : 0;
+                    yield out;
+                }
+                case int[] arr -> Arrays.stream(arr).asDoubleStream().toArray();
+                case long[] arr -> Arrays.stream(arr).asDoubleStream().toArray();
+                case double[] arr -> arr.clone();
+                case float[] arr -> {
+                    double[] out = new double[arr.length];
+                    for (int i = 0; i < arr.length; i++)
+                        out[i] = arr[i];
+                    yield out;
+                }
+                default -> throw new IllegalArgumentException("Unsupported model argument type: " + value.getClass());
+            };
+        }
+
+        /**
+         * Convert the labels tensor into a signed 32-bit integer Mat, as returned by the PyTorch backend.
+         */
+        private static Mat tensorToLabels(OnnxTensor tensor) throws OrtException {
+            try (var mat = tensorToMat(tensor)) {
+                var labels = new Mat();
+                mat.convertTo(labels, opencv_core.CV_32S);
+                return labels;
+            }
+        }
+
+        /**
+         * Convert an output tensor into a float Mat, removing the batch dimension.
+         * A CxHxW tensor becomes a channels-last Mat; a 2D tensor becomes a single-channel Mat.
+         */
+        private static Mat tensorToMat(OnnxTensor tensor) throws OrtException {
+            long[] shape = tensor.getInfo().getShape();
+            int offset = shape.length > 2 && shape[0] == 1 ? 1 : 0;
+            int rank = shape.length - offset;
+            int c = rank >= 3 ? (int)shape[offset] : 1;
+            int h = (int)shape[shape.length - 2];
+            int w = (int)shape[shape.length - 1];
+            float[] chw = toFloats(tensor, c * h * w);
+            if (c == 1) {
+                var mat = new Mat(h, w, opencv_core.CV_32FC1);
+                mat.<FloatBuffer>createBuffer().put(chw);
+                return mat;
+            }
+            float[] hwc = new float[chw.length];
+            int n = h * w;
+            for (int i = 0; i < n; i++) {
+                for (int ch = 0; ch < c; ch++) {
+                    hwc[i * c + ch] = chw[ch * n + i];
+                }
+            }
+            var mat = new Mat(h, w, opencv_core.CV_32FC(c));
+            mat.<FloatBuffer>createBuffer().put(hwc);
+            return mat;
+        }
+
+        private static float[] toFloats(OnnxTensor tensor, int length) throws OrtException {
+            float[] out = new float[length];
+            switch (tensor.getInfo().type) {
+                case FLOAT -> tensor.getFloatBuffer().get(out);
+                case INT32 -> {
+                    var buffer = tensor.getIntBuffer();
+                    for (int i = 0; i < length; i++)
+                        out[i] = buffer.get(i);
+                }
+                case INT64 -> {
+                    var buffer = tensor.getLongBuffer();
+                    for (int i = 0; i < length; i++)
+                        out[i] = buffer.get(i);
+                }
+                case DOUBLE -> {
+                    var buffer = tensor.getDoubleBuffer();
+                    for (int i = 0; i < length; i++)
+                        out[i] = (float)buffer.get(i);
+                }
+                default -> throw new OrtException("Unsupported output type " + tensor.getInfo().type);
+            }
+            return out;
+        }
+
+        @Override
+        public void close() {
+            try {
+                session.close();
+            } catch (OrtException e) {
+                logger.warn("Error closing ONNX session: {}", e.getMessage(), e);
+            }
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "OnnxRuntimeBackend[optimization=" + optimizationLevel + ", intraOpThreads=" + intraOpThreads
+                + ", interOpThreads=" + interOpThreads + "]";
+    }
+
+}
@@ -0,0 +1,103 @@
+package qupath.ext.instanseg.core;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import qupath.lib.experimental.pixels.PixelProcessorUtils;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mask detected objects by the ROI of a parent object, preparing the parent geometry once rather than for every object.
+ * <p>
+ * Most objects lie well inside the parent, and these are returned unchanged after a fast containment test
+ * (using a prepared geometry, which indexes the parent's edges).
+ * Objects that cross the parent boundary are clipped - but rather than intersecting with the full parent geometry
+ * (which can have thousands of vertices for hand-drawn annotations), they are intersected with the part of the parent
+ * within a coarse grid cell whenever the object fits within a single cell.
+ * The result is the same as {@link PixelProcessorUtils#maskObject(ROI, PathObject)}.
+ * <p>
+ * Masks are shared between the tiles of a parent using a {@link Cache}, which should be created for each run and
+ * discarded afterwards so that parent geometries aren't held longer than needed.
+ */
+class ParentMask {
+
+    /**
+     * Size of the grid cells used to split the parent for clipping, in full-resolution pixels.
+     * This should be much larger than the objects being detected.
+     */
+    private static final int CELL_SIZE = 512;
+
+    private final ROI roi;
+    private final PreparedGeometry geometry;
+    private final Envelope envelope;
+    private final Map<Long, Optional<ROI>> cells = new ConcurrentHashMap<>();
+
+    private ParentMask(ROI roi) {
+        this.roi = roi;
+        this.geometry = PreparedGeometryFactory.prepare(roi.getGeometry());
+        this.envelope = GeometryTools.roiToEnvelope(roi);
+    }
+
+    /**
+     * Mask an object by the parent ROI.
+     * @param pathObject the object to mask
+     * @return the object unchanged if it is inside the parent, a clipped copy if it crosses the parent boundary,
+     *         or empty if it is outside the parent
+     */
+    Optional<PathObject> mask(PathObject pathObject) {
+        var objectEnvelope = GeometryTools.roiToEnvelope(pathObject.getROI());
+        if (!envelope.intersects(objectEnvelope))
+            return Optional.empty();
+        var envelopeGeometry = GeometryTools.getDefaultFactory().toGeometry(objectEnvelope);
+        if (geometry.containsProperly(envelopeGeometry))
+            return Optional.of(pathObject);
+        if (geometry.disjoint(envelopeGeometry))
+            return Optional.empty();
+
+        int cx = (int)Math.floor(objectEnvelope.getMinX() / CELL_SIZE);
+        int cy = (int)Math.floor(objectEnvelope.getMinY() / CELL_SIZE);
+        if (cx == (int)Math.floor(objectEnvelope.getMaxX() / CELL_SIZE) &&
+                cy == (int)Math.floor(objectEnvelope.getMaxY() / CELL_SIZE)) {
+            var cellROI = cells.computeIfAbsent(((long)cx << 32) | (cy & 0xffffffffL), k -> createCellROI(cx, cy));
+            return cellROI.flatMap(r -> PixelProcessorUtils.maskObject(r, pathObject));
+        }
+        return PixelProcessorUtils.maskObject(roi, pathObject);
+    }
+
+    /**
+     * Get the part of the parent ROI within a grid cell.
+     */
+    private Optional<ROI> createCellROI(int cx, int cy) {
+        var cell = GeometryTools.getDefaultFactory().toGeometry(
+                new Envelope(cx * (double)CELL_SIZE, (cx + 1) * (double)CELL_SIZE, cy * (double)CELL_SIZE, (cy + 1) * (double)CELL_SIZE));
+        var piece = roi.getGeometry().intersection(cell);
+        if (piece.isEmpty())
+            return Optional.empty();
+        return Optional.of(GeometryTools.geometryToROI(piece, roi.getImagePlane()));
+    }
+
+    /**
+     * Masks for the parent objects of a single run.
+     */
+    static class Cache {
+
+        private final Map<ROI, ParentMask> masks = new ConcurrentHashMap<>();
+
+        /**
+         * Get the mask for a parent ROI, reusing a previous mask if possible.
+         * @param roi the parent ROI
+         * @return the mask
+         */
+        ParentMask get(ROI roi) {
+            return masks.computeIfAbsent(roi, ParentMask::new);
+        }
+
+    }
+
+}
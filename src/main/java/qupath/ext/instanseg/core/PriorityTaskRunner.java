@@ -0,0 +1,211 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.plugins.TaskRunner;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A task runner that processes tile tasks in order of priority, where priorities may change while tasks are running.
+ * <p>
+ * Tiles in the priority regions of a {@link TileScheduler} are processed first.
+ * All other tiles are ordered to reduce the time spent waiting for the last parent object to finish: the next tile
+ * is always taken from the parent with the most work remaining (longest-processing-time first), which interleaves
+ * tiles from different parents so that large parents start early and all threads stay busy until the end.
+ * Work is estimated from the number of tiles, since every tile is the same size.
+ * <p>
+ * The tasks created by {@link qupath.lib.experimental.pixels.PixelProcessor} don't expose their tiles, so we rely on
+ * them being created in the same order as the tiles we are given (i.e. using the same tiler, for each parent in turn).
+ * This isn't guaranteed by QuPath, so tasks are only reordered when a {@link TileScheduler} is requested.
+ * Each task passed to the wrapped runner is replaced by a 'slot' that runs the highest-priority task that hasn't
+ * started yet. This means the wrapped runner still reports progress and handles cancellation as usual.
+ * <p>
+ * If the number of tasks doesn't match the number of tiles, tasks are run in their original order.
+ * <p>
+ * Other tasks (e.g. for parents that are processed without tiling) can be added with
+ * {@link #addTasks(List, List)}, to be run alongside the next batch of tile tasks rather than after them - so that
+ * there is no point where some threads are left idle waiting for the other tasks to finish.
+ * These don't depend upon the order of the tile tasks, and so can be used without a scheduler.
+ */
+class PriorityTaskRunner implements TaskRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(PriorityTaskRunner.class);
+
+    /**
+     * A tile to be processed.
+     * @param roi the tile ROI (without padding)
+     * @param parentIndex the index of the parent object that the tile belongs to
+     */
+    record Tile(ROI roi, int parentIndex) {}
+
+    private final TaskRunner delegate;
+    private final List<Tile> tiles;
+    private final TileScheduler scheduler;
+
+    private int offset = 0;
+    private final List<Runnable> addedTasks = new ArrayList<>();
+    private final List<Tile> addedTiles = new ArrayList<>();
+
+    /**
+     * Create a task runner that orders tile tasks according to a scheduler.
+     * @param delegate the runner to use for running tasks
+     * @param tiles the tiles, in the order their tasks will be created
+     * @param scheduler the scheduler that determines priority regions; if null, tasks are run in their original order
+     */
+    PriorityTaskRunner(TaskRunner delegate, List<Tile> tiles, TileScheduler scheduler) {
+        this.delegate = delegate;
+        this.tiles = List.copyOf(tiles);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add tasks to be run alongside the next batch of tile tasks, after them in the original order.
+     * Each task should process a single tile, which is used for scheduling.
+     * Any tasks that haven't been run when all tile tasks are complete can be run with
+     * {@link #runAddedTasks(String)}.
+     * @param tasks the tasks
+     * @param tiles the tile for each task; parent indices should not be shared with the tiles given in the
+     *              constructor, unless the task belongs to the same parent
+     */
+    synchronized void addTasks(List<? extends Runnable> tasks, List<Tile> tiles) {
+        if (tasks.size() != tiles.size())
+            throw new IllegalArgumentException("Number of tasks (" + tasks.size() + ") doesn't match the number of tiles (" + tiles.size() + ")");
+        addedTasks.addAll(tasks);
+        addedTiles.addAll(tiles);
+    }
+
+    /**
+     * Run any added tasks that weren't run alongside tile tasks (e.g. because there were no tile tasks).
+     * @param message the message to display
+     */
+    void runAddedTasks(String message) {
+        if (hasAddedTasks())
+            runTasks(message, List.of());
+    }
+
+    private synchronized boolean hasAddedTasks() {
+        return !addedTasks.isEmpty();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return delegate.isCancelled();
+    }
+
+    @Override
+    public void runTasks(String message, Collection<? extends Runnable> tasks) {
+        int n = tasks.size();
+        List<Runnable> allTasks = new ArrayList<>(tasks);
+        List<Tile> extraTiles;
+        synchronized (this) {
+            allTasks.addAll(addedTasks);
+            extraTiles = List.copyOf(addedTiles);
+            addedTasks.clear();
+            addedTiles.clear();
+        }
+        if (scheduler == null) {
+            delegate.runTasks(message, allTasks);
+            return;
+        }
+        if (offset + n > tiles.size()) {
+            logger.warn("Expected {} tile tasks, but received {} - priorities will be ignored", tiles.size() - offset, n);
+            delegate.runTasks(message, allTasks);
+            return;
+        }
+        List<Tile> allTiles = new ArrayList<>(tiles.subList(offset, offset + n));
+        allTiles.addAll(extraTiles);
+        var queue = new TaskQueue(allTasks, allTiles);
+        offset += n;
+        List<Runnable> slots = new ArrayList<>(allTasks.size());
+        for (int i = 0; i < allTasks.size(); i++) {
+            slots.add(queue::runNext);
+        }
+        delegate.runTasks(message, slots);
+    }
+
+    private class TaskQueue {
+
+        private final List<? extends Runnable> tasks;
+        private final List<Tile> tiles;
+        private final double[] priorities;
+        private final Map<Integer, PriorityQueue<Integer>> parentQueues = new LinkedHashMap<>();
+        private int version = -1;
+
+        private TaskQueue(List<? extends Runnable> tasks, List<Tile> tiles) {
+            this.tasks = tasks;
+            this.tiles = tiles;
+            this.priorities = new double[tasks.size()];
+            List<Integer> all = new ArrayList<>(tasks.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                all.add(i);
+            }
+            updateQueues(all);
+        }
+
+        /**
+         * Recompute priorities, and sort the remaining tiles for each parent.
+         */
+        private void updateQueues(Collection<Integer> remaining) {
+            version = scheduler.getVersion();
+            parentQueues.clear();
+            // Break ties using the original order
+            Comparator<Integer> comparator = Comparator.<Integer>comparingDouble(i -> priorities[i]).thenComparingInt(i -> i);
+            for (int i : remaining) {
+                priorities[i] = scheduler.getPriority(tiles.get(i).roi());
+                parentQueues.computeIfAbsent(tiles.get(i).parentIndex(), k -> new PriorityQueue<>(comparator)).add(i);
+            }
+        }
+
+        private synchronized Runnable next() {
+            if (version != scheduler.getVersion()) {
+                List<Integer> remaining = new ArrayList<>();
+                for (var queue : parentQueues.values()) {
+                    remaining.addAll(queue);
+                }
+                updateQueues(remaining);
+            }
+            // Tiles within priority regions come first; otherwise take from the parent with most tiles remaining
+            int nRegions = scheduler.getRegions().size();
+            PriorityQueue<Integer> best = null;
+            int bestLevel = Integer.MAX_VALUE;
+            for (var queue : parentQueues.values()) {
+                var head = queue.peek();
+                if (head == null)
+                    continue;
+                int level = (int)(priorities[head] / TileScheduler.LEVEL_SPACING);
+                boolean better;
+                if (best == null || level < bestLevel) {
+                    better = true;
+                } else if (level > bestLevel) {
+                    better = false;
+                } else if (level < nRegions) {
+                    better = priorities[head] < priorities[best.peek()];
+                } else {
+                    better = queue.size() > best.size();
+                }
+                if (better) {
+                    best = queue;
+                    bestLevel = level;
+                }
+            }
+            var ind = best == null ? null : best.poll();
+            return ind == null ? null : tasks.get(ind);
+        }
+
+        private void runNext() {
+            var task = next();
+            if (task != null)
+                task.run();
+        }
+
+    }
+
+}
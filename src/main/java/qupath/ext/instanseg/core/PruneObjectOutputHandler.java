@@ -3,16 +3,21 @@ package qupath.ext.instanseg.core;
 import org.locationtech.jts.geom.Envelope;
 import qupath.lib.experimental.pixels.OutputHandler;
 import qupath.lib.experimental.pixels.Parameters;
-import qupath.lib.experimental.pixels.PixelProcessorUtils;
 import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.GeometryTools;
 
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
 
     private final OutputToObjectConverter<S, T, U> converter;
     private final int boundaryThreshold;
+    private final StageTimer timer;
+    private final ThreadBudget threads;
+    private final ParentMask.Cache masks;
+    private final UnaryOperator<PathObject> parents;
 
     /**
      * An output handler that prunes the output, removing any objects that are
@@ -27,10 +32,19 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
      * @param converter An output to object converter.
      * @param boundaryThreshold The size of the boundary, in pixels, to use for removing objects.
      *                          See {@link #doesntTouchBoundaries} for more details.
+     * @param timer Timer used to record the time spent converting and pruning objects.
+     * @param threads The threads to use for pruning and masking objects.
+     * @param masks The masks of the parent objects for the current run.
+     * @param parents Function to get the parent object of a tile proxy.
      */
-    PruneObjectOutputHandler(OutputToObjectConverter<S, T, U> converter, int boundaryThreshold) {
+    PruneObjectOutputHandler(OutputToObjectConverter<S, T, U> converter, int boundaryThreshold, StageTimer timer,
+                             ThreadBudget threads, ParentMask.Cache masks, UnaryOperator<PathObject> parents) {
         this.converter = converter;
         this.boundaryThreshold = boundaryThreshold;
+        this.timer = timer;
+        this.threads = threads;
+        this.masks = masks;
+        this.parents = parents;
     }
 
     @Override
@@ -38,39 +52,58 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
         if (output == null)
             return false;
         else {
+            var convertEvent = new InstanSegEvents.Convert();
+            convertEvent.begin();
+            long start = StageTimer.start();
             List<PathObject> newObjects = converter.convertToObjects(params, output);
+            timer.record(StageTimings.Stage.CONVERSION, start);
+            if (convertEvent.shouldCommit()) {
+                convertEvent.nObjects = newObjects == null ? 0 : newObjects.size();
+                convertEvent.commit(params.getRegionRequest());
+            }
             if (newObjects == null)
                 return false;
+            start = StageTimer.start();
             // If using a proxy object (e.g. tile),
             // we want to remove things touching the tile boundary,
             // then add the objects to the proxy rather than the parent
             var parentOrProxy = params.getParentOrProxy();
             parentOrProxy.clearChildObjects();
 
-            // remove features within N pixels of the region request boundaries
-            var bounds = GeometryTools.regionToEnvelope(params.getRegionRequest());
-
-            int width = params.getServer().getWidth();
-            int height = params.getServer().getHeight();
-
-            newObjects = newObjects.parallelStream()
-                    .filter(p -> doesntTouchBoundaries(GeometryTools.roiToEnvelope(p.getROI()), bounds, boundaryThreshold, width, height))
-                    .toList();
-
-            if (!newObjects.isEmpty()) {
-                // Apply the mask of the parent region to the objects
-                var parent = params.getParent().getROI();
-                newObjects = newObjects.parallelStream()
-                        .flatMap(p -> PixelProcessorUtils.maskObject(parent, p).stream())
-                        .toList();
-            }
+            newObjects = pruneObjects(newObjects, params.getRegionRequest(), masks.get(parents.apply(params.getParent()).getROI()),
+                    boundaryThreshold, params.getServer().getWidth(), params.getServer().getHeight(), threads);
             parentOrProxy.addChildObjects(newObjects);
             parentOrProxy.setLocked(true);
+            timer.record(StageTimings.Stage.PRUNING, start);
             return true;
         }
     }
 
 
+    /**
+     * Remove objects that touch the boundaries of a region (except where the region is at the edge of the image),
+     * and apply the mask of the parent ROI to those that remain.
+     * @param objects the objects detected within the region
+     * @param request the region used for detection (including any padding)
+     * @param mask the mask of the parent object
+     * @param boundaryThreshold the size of the boundary, in pixels, to use for removing objects
+     * @param imageWidth the width of the image, in pixels
+     * @param imageHeight the height of the image, in pixels
+     * @param threads the threads to use
+     * @return the remaining objects, masked by the parent ROI
+     */
+    static List<PathObject> pruneObjects(List<PathObject> objects, RegionRequest request, ParentMask mask,
+                                         int boundaryThreshold, int imageWidth, int imageHeight, ThreadBudget threads) {
+        if (objects.isEmpty())
+            return objects;
+        // remove features within N pixels of the region request boundaries,
+        // then apply the mask of the parent region to the objects
+        var bounds = GeometryTools.regionToEnvelope(request);
+        return threads.process(objects, stream -> stream
+                .filter(p -> doesntTouchBoundaries(GeometryTools.roiToEnvelope(p.getROI()), bounds, boundaryThreshold, imageWidth, imageHeight))
+                .flatMap(p -> mask.mask(p).stream()));
+    }
+
     /**
      * Tests if a detection is near the boundary of a parent region.
      * It first checks if the detection is on the edge of the overall image, in which case it should be kept,
@@ -85,7 +118,7 @@ class PruneObjectOutputHandler<S, T, U> implements OutputHandler<S, T, U> {
      * @param imageHeight    The height of the image, in pixels.
      * @return Whether the detection object should be removed, based on these criteria.
      */
-    private boolean doesntTouchBoundaries(Envelope det, Envelope region, int boundaryPixels, int imageWidth, int imageHeight) {
+    private static boolean doesntTouchBoundaries(Envelope det, Envelope region, int boundaryPixels, int imageWidth, int imageHeight) {
         // keep any objects at the boundary of the annotation, except the stuff around region boundaries
         if (touchesLeftOfImage(det, boundaryPixels)) {
             if (touchesTopOfImage(det, boundaryPixels) || touchesBottomOfImage(det, imageHeight, boundaryPixels)) {
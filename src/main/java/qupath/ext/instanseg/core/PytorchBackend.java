@@ -0,0 +1,216 @@
+package qupath.ext.instanseg.core;
+
+import ai.djl.Device;
+import ai.djl.MalformedModelException;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.repository.zoo.Criteria;
+import ai.djl.repository.zoo.ModelNotFoundException;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.training.util.ProgressBar;
+import ai.djl.translate.TranslateException;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.LogTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inference backend that runs TorchScript models with PyTorch, via Deep Java Library.
+ */
+class PytorchBackend implements InferenceBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(PytorchBackend.class);
+
+    /**
+     * System property that DJL reads for the intra-op threads when the PyTorch engine is first initialized.
+     */
+    private static final SharedSetting<String> NUM_THREADS_PROPERTY = createPropertySetting("ai.djl.pytorch.num_threads");
+
+    /**
+     * System property that DJL reads for the inter-op threads when the PyTorch engine is first initialized.
+     */
+    private static final SharedSetting<String> NUM_INTEROP_THREADS_PROPERTY = createPropertySetting("ai.djl.pytorch.num_interop_threads");
+
+    /**
+     * Intra-op threads for an engine that may already have been initialized.
+     * Reflection is used to avoid depending upon the internal PyTorch engine classes at compile time.
+     */
+    private static final SharedSetting<Integer> NUM_THREADS = new SharedSetting<>("PyTorch intra-op threads",
+            () -> (Integer)invokeJniUtils("getNumThreads"),
+            n -> invokeJniUtils("setNumThreads", n));
+
+    @Override
+    public String getName() {
+        return InferenceBackends.PYTORCH;
+    }
+
+    @Override
+    public boolean supportsModel(InstanSegModel model) {
+        return model != null && model.getTorchScriptPath().isPresent();
+    }
+
+    @Override
+    public Session load(InstanSegModel model, Options options) throws IOException {
+        var modelPath = model.getTorchScriptPath()
+                .orElseThrow(() -> new IOException("No TorchScript file found for model " + model));
+        String layout = "CHW";
+        String layoutOutput = "CHW";
+        List<SharedSetting.Scope> engineSettings = new ArrayList<>();
+        try {
+            setEngineProperties(options, engineSettings);
+            var zooModel = Criteria.builder()
+                    .setTypes(Mat.class, Mat[].class)
+                    .optModelUrls(String.valueOf(modelPath.toUri()))
+                    .optProgress(new ProgressBar())
+                    .optDevice(Device.fromName(options.device())) // Remove this line if devices are problematic!
+                    .optTranslator(new MatTranslator(layout, layoutOutput, options.outputChannels(), options.optionalArgs()))
+                    .build()
+                    .loadModel();
+            setEngineThreads(options, engineSettings);
+            return new PytorchSession(zooModel, engineSettings);
+        } catch (ModelNotFoundException | MalformedModelException e) {
+            engineSettings.forEach(SharedSetting.Scope::close);
+            throw new IOException("Unable to load model from " + modelPath, e);
+        } catch (IOException | RuntimeException e) {
+            engineSettings.forEach(SharedSetting.Scope::close);
+            throw e;
+        }
+    }
+
+    /**
+     * Set the system properties that DJL reads when the PyTorch engine is first initialized.
+     * These are restored when the session is closed.
+     */
+    private static void setEngineProperties(Options options, List<SharedSetting.Scope> engineSettings) {
+        if (options.intraOpThreads() > 0)
+            engineSettings.add(NUM_THREADS_PROPERTY.override(Integer.toString(options.intraOpThreads())));
+        if (options.interOpThreads() > 0)
+            engineSettings.add(NUM_INTEROP_THREADS_PROPERTY.override(Integer.toString(options.interOpThreads())));
+    }
+
+    /**
+     * Update the intra-op threads for an engine that may already have been initialized, restoring the previous value
+     * when the session is closed.
+     * <p>
+     * PyTorch's thread pools are shared across the whole process, so this affects any other models in use until
+     * then.
+     * The inter-op threads are only set through the system property, since PyTorch only permits them to be set once,
+     * before any parallel work has started - and so they couldn't be restored afterwards.
+     */
+    private static void setEngineThreads(Options options, List<SharedSetting.Scope> engineSettings) {
+        if (options.intraOpThreads() <= 0)
+            return;
+        try {
+            engineSettings.add(NUM_THREADS.override(options.intraOpThreads()));
+        } catch (RuntimeException e) {
+            logger.warn("Unable to set PyTorch threads: {}", e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private static SharedSetting<String> createPropertySetting(String key) {
+        return new SharedSetting<>(key, () -> System.getProperty(key), value -> {
+            if (value == null)
+                System.clearProperty(key);
+            else
+                System.setProperty(key, value);
+        });
+    }
+
+    private static Object invokeJniUtils(String method, int... args) {
+        try {
+            var jniUtils = Class.forName("ai.djl.pytorch.jni.JniUtils");
+            if (args.length == 0)
+                return jniUtils.getMethod(method).invoke(null);
+            return jniUtils.getMethod(method, int.class).invoke(null, args[0]);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new RuntimeException("Unable to call JniUtils." + method, e);
+        }
+    }
+
+    private static class PytorchSession implements Session {
+
+        private final ZooModel<Mat, Mat[]> model;
+        private final BaseNDManager baseManager;
+        private final List<SharedSetting.Scope> engineSettings;
+        private boolean predictorsCreated = false;
+
+        private PytorchSession(ZooModel<Mat, Mat[]> model, List<SharedSetting.Scope> engineSettings) {
+            this.model = model;
+            this.engineSettings = List.copyOf(engineSettings);
+            this.baseManager = (BaseNDManager)model.getNDManager();
+            printResourceCount("Resource count before prediction", (BaseNDManager)baseManager.getParentManager());
+        }
+
+        @Override
+        public TilePredictor newPredictor() {
+            predictorsCreated = true;
+            return new PytorchPredictor(model.newPredictor());
+        }
+
+        @Override
+        public void close() {
+            if (predictorsCreated) {
+                printResourceCount("Resource count after prediction", (BaseNDManager)baseManager.getParentManager());
+            }
+            model.close();
+            engineSettings.forEach(SharedSetting.Scope::close);
+        }
+
+    }
+
+    /**
+     * Tile predictor that delegates to a DJL predictor, converting any DJL exceptions.
+     */
+    private static class PytorchPredictor implements TilePredictor {
+
+        private final Predictor<Mat, Mat[]> predictor;
+
+        private PytorchPredictor(Predictor<Mat, Mat[]> predictor) {
+            this.predictor = predictor;
+        }
+
+        @Override
+        public Mat[] predict(Mat input) throws InferenceException {
+            try {
+                return predictor.predict(input);
+            } catch (TranslateException e) {
+                throw new InferenceException("PyTorch prediction failed", e);
+            } finally {
+                // The translator context should have been closed by now, releasing all its arrays
+                NativeMemoryTracker.checkNDArrays();
+            }
+        }
+
+        @Override
+        public void close() {
+            predictor.close();
+        }
+
+    }
+
+    /**
+     * Print resource count for debugging purposes.
+     * If we are not logging at debug level, do nothing.
+     * @param title The name to be used in the log.
+     * @param manager The NDManager to print from.
+     */
+    private static void printResourceCount(String title, BaseNDManager manager) {
+        if (logger.isDebugEnabled()) {
+            try {
+                // This is broken in DJL v0.34.0
+                // See https://github.com/deepjavalibrary/djl/pull/3780
+                logger.debug(title);
+                manager.debugDump(2);
+            } catch (Exception e) {
+                LogTools.warnOnce(logger, "BaseNDManager.debugDump(2) failed with an exception");
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+}
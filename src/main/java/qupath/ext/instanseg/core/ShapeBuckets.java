@@ -0,0 +1,99 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.regions.Padding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A small set of canonical tile sizes, used to limit the number of distinct input shapes seen by the model.
+ * <p>
+ * Tiles at the image boundary are often cropped, which can give many different shapes.
+ * Engines that optimize for each new shape (such as the TorchScript profiling executor) then need to recompile
+ * repeatedly. Padding each tile up to the nearest bucket means only a few shapes need to be optimized, and these
+ * can be warmed up in advance.
+ * <p>
+ * Widths and heights are bucketed independently.
+ */
+final class ShapeBuckets {
+
+    private final int[] sizes;
+
+    private ShapeBuckets(int[] sizes) {
+        this.sizes = sizes;
+    }
+
+    /**
+     * Create buckets for specific sizes.
+     * @param sizes the bucket sizes, in pixels; duplicates are removed and the sizes sorted
+     * @return the buckets
+     * @throws IllegalArgumentException if no sizes are provided, or any size is &leq; 0
+     */
+    static ShapeBuckets of(int... sizes) throws IllegalArgumentException {
+        if (sizes.length == 0)
+            throw new IllegalArgumentException("At least one bucket size is required");
+        if (Arrays.stream(sizes).anyMatch(s -> s <= 0))
+            throw new IllegalArgumentException("Bucket sizes must be > 0");
+        return new ShapeBuckets(Arrays.stream(sizes).distinct().sorted().toArray());
+    }
+
+    /**
+     * Create the default buckets for a tile size, which are half and full size.
+     * These are enough to keep the number of shapes low (4 in total), without excessive padding of small tiles.
+     * @param tileDims the maximum tile width and height
+     * @return the buckets
+     */
+    static ShapeBuckets createDefault(int tileDims) {
+        return of(tileDims / 2, tileDims);
+    }
+
+    /**
+     * Get the bucket size for a dimension.
+     * @param size the width or height of a tile
+     * @return the smallest bucket that is at least as large as the size, or the size itself if it is larger
+     *         than every bucket
+     */
+    int getBucket(int size) {
+        for (int s : sizes) {
+            if (s >= size)
+                return s;
+        }
+        return size;
+    }
+
+    /**
+     * Get the padding required to increase a tile to the size of its bucket.
+     * Padding is only added to the right and bottom, so that the output can be cropped easily.
+     * @param width the tile width
+     * @param height the tile height
+     * @return the padding, or null if no padding is needed
+     */
+    Padding getPadding(int width, int height) {
+        int dx = getBucket(width) - width;
+        int dy = getBucket(height) - height;
+        if (dx == 0 && dy == 0)
+            return null;
+        return Padding.getPadding(0, dx, 0, dy);
+    }
+
+    /**
+     * Get all the shapes that tiles can be padded to.
+     * @return a list of {width, height} arrays
+     */
+    List<int[]> getShapes() {
+        List<int[]> shapes = new ArrayList<>();
+        for (int h : sizes) {
+            for (int w : sizes) {
+                shapes.add(new int[]{w, h});
+            }
+        }
+        return shapes;
+    }
+
+    @Override
+    public String toString() {
+        return "ShapeBuckets" + Arrays.toString(sizes);
+    }
+
+}
@@ -0,0 +1,99 @@
+package qupath.ext.instanseg.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A process-wide setting (such as a thread count used by a native library) that is overridden for the duration of
+ * a run, and restored afterwards.
+ * <p>
+ * Overrides are reference counted: the original value is read when the first override begins, and restored only
+ * when the last override ends, so overlapping runs can't leave behind each other's values.
+ * While several overrides are active, the most recent value applies.
+ *
+ * @param <T> the type of the setting
+ */
+class SharedSetting<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedSetting.class);
+
+    private final String name;
+    private final Supplier<T> getter;
+    private final Consumer<T> setter;
+
+    private T original;
+    private int nOverrides;
+
+    /**
+     * Create a shared setting.
+     * @param name the name of the setting, for logging
+     * @param getter function to read the current value
+     * @param setter function to apply a value
+     */
+    SharedSetting(String name, Supplier<T> getter, Consumer<T> setter) {
+        this.name = name;
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    /**
+     * Apply a value until the returned override is closed.
+     * @param value the value to apply
+     * @return the scope of the override, which should be closed when the run finishes
+     * @throws RuntimeException if the value can't be read or applied; in this case, nothing needs to be closed
+     */
+    synchronized Scope override(T value) throws RuntimeException {
+        if (nOverrides == 0)
+            original = getter.get();
+        setter.accept(value);
+        nOverrides++;
+        logger.debug("Set {} to {} (originally {})", name, value, original);
+        return new Scope(this);
+    }
+
+    private synchronized void release() {
+        nOverrides--;
+        if (nOverrides == 0) {
+            try {
+                setter.accept(original);
+                logger.debug("Restored {} to {}", name, original);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to restore {} to {}: {}", name, original, e.getMessage());
+                logger.debug(e.getMessage(), e);
+            }
+            original = null;
+        }
+    }
+
+    /**
+     * A temporary value for a shared setting.
+     */
+    static class Scope implements AutoCloseable {
+
+        private final SharedSetting<?> setting;
+        private boolean closed;
+
+        private Scope(SharedSetting<?> setting) {
+            this.setting = setting;
+        }
+
+        /**
+         * End the override, restoring the original value if no other overrides are active.
+         * Calling this more than once has no effect.
+         */
+        @Override
+        public void close() {
+            synchronized (setting) {
+                if (closed)
+                    return;
+                closed = true;
+                setting.release();
+            }
+        }
+
+    }
+
+}
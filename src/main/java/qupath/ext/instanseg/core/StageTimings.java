@@ -0,0 +1,131 @@
+package qupath.ext.instanseg.core;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Record for storing a summary of the time spent in each stage of an InstanSeg run.
+ * <p>
+ * Stages that run in parallel (e.g. reading and predicting different tiles) are timed independently,
+ * so the total across all stages can be larger than the wall time of the run.
+ *
+ * @param stages summaries for each stage that was timed at least once
+ */
+public record StageTimings(Map<Stage, StageSummary> stages) {
+
+    private static final StageTimings EMPTY = new StageTimings(Map.of());
+
+    /**
+     * Create a new instance, with an unmodifiable copy of the stage summaries.
+     * @param stages summaries for each stage
+     */
+    public StageTimings {
+        stages = stages.isEmpty() ? Map.of() : Collections.unmodifiableMap(new EnumMap<>(stages));
+    }
+
+    /**
+     * Get an empty instance of StageTimings.
+     * @return An instance with no stages.
+     */
+    public static StageTimings emptyInstance() {
+        return EMPTY;
+    }
+
+    /**
+     * Get the summary for a single stage.
+     * @param stage the stage
+     * @return the summary, or empty if the stage was not timed
+     */
+    public Optional<StageSummary> get(Stage stage) {
+        return Optional.ofNullable(stages.get(stage));
+    }
+
+    /**
+     * Create a table of the timings, with one row per stage, suitable for logging.
+     * @return a multi-line string
+     */
+    public String toTable() {
+        var sb = new StringBuilder(String.format("%-16s %8s %12s %10s %10s %10s %10s %10s",
+                "Stage", "Count", "Total (ms)", "Mean", "p50", "p90", "p99", "Max"));
+        for (var entry : stages.entrySet()) {
+            var summary = entry.getValue();
+            sb.append(System.lineSeparator()).append(String.format("%-16s %8d %12.1f %10.2f %10.2f %10.2f %10.2f %10.2f",
+                    entry.getKey(),
+                    summary.count(),
+                    summary.totalMillis(),
+                    summary.meanMillis(),
+                    summary.p50Millis(),
+                    summary.p90Millis(),
+                    summary.p99Millis(),
+                    summary.maxMillis()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The stages of the InstanSeg pipeline that are timed.
+     */
+    public enum Stage {
+        /**
+         * Reading the pixels for a tile.
+         */
+        REGION_READ,
+        /**
+         * Computing (or fetching cached) normalization values for a parent object.
+         */
+        NORMALIZATION,
+        /**
+         * Converting, normalizing and padding a tile before prediction.
+         */
+        PREPROCESSING,
+        /**
+         * Waiting for a predictor to become available.
+         */
+        PREDICTOR_WAIT,
+        /**
+         * Running the model for a tile.
+         */
+        PREDICT,
+        /**
+         * Converting the model output into objects.
+         */
+        CONVERSION,
+        /**
+         * Removing objects near tile boundaries, and masking objects with the parent ROI.
+         */
+        PRUNING,
+        /**
+         * Merging objects across tiles and resolving overlaps.
+         */
+        POST_PROCESSING,
+        /**
+         * Adding measurements to the detected objects.
+         */
+        MEASUREMENT
+    }
+
+    /**
+     * Summary of the timings for a single stage.
+     * Percentiles are approximate, and accurate to within around 10%.
+     *
+     * @param count number of times the stage was run
+     * @param totalMillis cumulative time spent in the stage, in milliseconds
+     * @param meanMillis mean time spent in the stage, in milliseconds
+     * @param p50Millis approximate median time, in milliseconds
+     * @param p90Millis approximate 90th percentile time, in milliseconds
+     * @param p99Millis approximate 99th percentile time, in milliseconds
+     * @param maxMillis maximum time, in milliseconds
+     */
+    public record StageSummary(
+            long count,
+            double totalMillis,
+            double meanMillis,
+            double p50Millis,
+            double p90Millis,
+            double p99Millis,
+            double maxMillis) {
+    }
+
+}
@@ -0,0 +1,46 @@
+package qupath.ext.instanseg.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inference backend that doesn't run a model at all, but creates {@link SyntheticPredictor} instances.
+ * This is not registered as a service, because it is only intended for benchmarking.
+ */
+class SyntheticBackend implements InferenceBackend {
+
+    private final SyntheticPredictor.Spec spec;
+
+    SyntheticBackend(SyntheticPredictor.Spec spec) {
+        this.spec = spec;
+    }
+
+    @Override
+    public String getName() {
+        return "synthetic";
+    }
+
+    @Override
+    public boolean supportsModel(InstanSegModel model) {
+        return true;
+    }
+
+    @Override
+    public Session load(InstanSegModel model, Options options) {
+        var seed = new AtomicLong();
+        return new Session() {
+            @Override
+            public TilePredictor newPredictor() {
+                return new SyntheticPredictor(spec, seed.getAndIncrement());
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "SyntheticBackend[" + spec + "]";
+    }
+
+}
@@ -0,0 +1,113 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.util.Random;
+
+/**
+ * A stand-in for a real model, which generates random instance labels without running any inference.
+ * <p>
+ * This is intended for benchmarking the rest of the pipeline (reading, conversion, pruning, merging)
+ * without needing a GPU or a downloaded model.
+ * Labels are drawn as randomly-oriented ellipses, optionally with a larger 'cell' ellipse around each 'nucleus'
+ * in a second channel, and a fixed latency can be added to approximate the time taken by a real model.
+ */
+class SyntheticPredictor implements TilePredictor {
+
+    private final Spec spec;
+    private final Random random;
+
+    /**
+     * Settings for synthetic predictions.
+     * @param density the mean number of objects per 1000x1000 pixels of the input
+     * @param meanRadius the mean radius of each object, in pixels of the input
+     * @param latencyMillis the time to wait before returning each prediction, to simulate inference
+     * @param nOutputChannels the number of label channels to create; 1 for nuclei, or 2 for nuclei and cells
+     */
+    record Spec(double density, double meanRadius, long latencyMillis, int nOutputChannels) {
+
+        Spec {
+            if (density < 0)
+                throw new IllegalArgumentException("Density must be >= 0");
+            if (meanRadius <= 0)
+                throw new IllegalArgumentException("Mean radius must be > 0");
+            if (latencyMillis < 0)
+                throw new IllegalArgumentException("Latency must be >= 0");
+            if (nOutputChannels < 1 || nOutputChannels > 2)
+                throw new IllegalArgumentException("Number of output channels must be 1 or 2");
+        }
+
+    }
+
+    SyntheticPredictor(Spec spec, long seed) {
+        this.spec = spec;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public Mat[] predict(Mat input) {
+        int width = input.cols();
+        int height = input.rows();
+        int nObjects = samplePoisson(spec.density() * width * height / 1e6);
+        var nuclei = new Mat(height, width, opencv_core.CV_32SC1, Scalar.all(0));
+        var cells = spec.nOutputChannels() > 1 ? new Mat(height, width, opencv_core.CV_32SC1, Scalar.all(0)) : null;
+        for (int label = 1; label <= nObjects; label++) {
+            double radius = Math.max(1, spec.meanRadius() * (0.7 + 0.6 * random.nextDouble()));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            double angle = random.nextDouble() * 180;
+            double aspect = 0.6 + 0.4 * random.nextDouble();
+            if (cells != null) {
+                drawEllipse(cells, x, y, radius * 1.8, radius * 1.8 * aspect, angle, label);
+            }
+            drawEllipse(nuclei, x, y, radius, radius * aspect, angle, label);
+        }
+        if (spec.latencyMillis() > 0) {
+            try {
+                Thread.sleep(spec.latencyMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Synthetic prediction interrupted", e);
+            }
+        }
+        if (cells == null)
+            return new Mat[]{nuclei};
+        var output = new Mat();
+        try (var channels = new MatVector(nuclei, cells)) {
+            opencv_core.merge(channels, output);
+        }
+        nuclei.close();
+        cells.close();
+        return new Mat[]{output};
+    }
+
+    private static void drawEllipse(Mat mat, int x, int y, double radiusX, double radiusY, double angle, int label) {
+        try (var center = new Point(x, y);
+             var axes = new Size((int)Math.round(radiusX), (int)Math.round(radiusY));
+             var color = Scalar.all(label)) {
+            opencv_imgproc.ellipse(mat, center, axes, angle, 0, 360, color,
+                    opencv_imgproc.FILLED, opencv_imgproc.LINE_8, 0);
+        }
+    }
+
+    private int samplePoisson(double mean) {
+        // For large means, a normal approximation is accurate enough (and avoids underflow)
+        if (mean > 50)
+            return (int)Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        double limit = Math.exp(-mean);
+        double p = random.nextDouble();
+        int k = 0;
+        while (p > limit) {
+            p *= random.nextDouble();
+            k++;
+        }
+        return k;
+    }
+
+}
@@ -0,0 +1,140 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Share the available cores between the thread pools used during a single run.
+ * <p>
+ * Tiles are processed by the task runner threads, and each of these may also use the inference engine's threads,
+ * OpenCV's threads (e.g. for padding and type conversion), and the common fork-join pool (for parallel streams
+ * when pruning and masking objects).
+ * Left alone, each of these assumes it has the whole machine, so large runs can have several times more busy threads
+ * than cores.
+ * <p>
+ * Here, the cores that aren't needed by the engine threads for the predictors that can run at the same time are
+ * given to a dedicated fork-join pool for object post-processing.
+ * If no cores are spare, post-processing runs in the calling thread.
+ * If the engine uses its default threads, we can't know how many cores it needs, so the budget is unmanaged.
+ * The budget can be turned off with {@code -Dinstanseg.threadBudget=false}.
+ * <p>
+ * OpenCV's thread count is global to the whole application, so it is left unchanged unless requested with
+ * {@code -Dinstanseg.threadBudget.opencv=true}.
+ * In that case, the spare cores are divided between task threads for OpenCV, and the original setting is restored
+ * when the last run using it is closed.
+ */
+class ThreadBudget implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadBudget.class);
+
+    private static final SharedSetting<Integer> OPENCV_THREADS = new SharedSetting<>("OpenCV threads",
+            opencv_core::getNumThreads, opencv_core::setNumThreads);
+
+    /**
+     * Run parallel streams in the common pool, and leave OpenCV unchanged.
+     */
+    static final ThreadBudget UNMANAGED = new ThreadBudget(-1, -1, null, null);
+
+    private final int objectThreads;
+    private final int openCVThreads;
+    private final ForkJoinPool pool;
+    private final SharedSetting.Scope openCVScope;
+
+    private ThreadBudget(int objectThreads, int openCVThreads, ForkJoinPool pool, SharedSetting.Scope openCVScope) {
+        this.objectThreads = objectThreads;
+        this.openCVThreads = openCVThreads;
+        this.pool = pool;
+        this.openCVScope = openCVScope;
+    }
+
+    /**
+     * Create a budget for a run, and apply the OpenCV thread count if requested.
+     * The budget should be closed when the run finishes.
+     * @param nCores the number of available processors
+     * @param nTaskThreads the number of threads used to process tiles
+     * @param engineThreads the engine thread settings used by each predictor
+     * @param nPredictors the number of predictors
+     * @return the budget, or {@link #UNMANAGED} if thread budgets are turned off or the engine threads aren't set
+     */
+    static ThreadBudget create(int nCores, int nTaskThreads, EngineThreads engineThreads, int nPredictors) {
+        if (System.getProperty("instanseg.threadBudget", "true").strip().equalsIgnoreCase("false"))
+            return UNMANAGED;
+        if (engineThreads.intraOpThreads() <= 0) {
+            // Otherwise we'd have to assume the engine uses every core, and process objects sequentially
+            logger.debug("Engine threads are not set - using unmanaged thread budget");
+            return UNMANAGED;
+        }
+        nTaskThreads = Math.max(1, nTaskThreads);
+        int activePredictors = Math.max(1, Math.min(nPredictors, nTaskThreads));
+        int engineCores = Math.min(nCores, activePredictors * engineThreads.intraOpThreads());
+        int spareCores = Math.max(0, nCores - engineCores);
+        int objectThreads = Math.max(1, spareCores);
+        int openCVThreads = Math.max(1, spareCores / nTaskThreads);
+
+        ForkJoinPool pool = null;
+        if (objectThreads > 1) {
+            pool = new ForkJoinPool(objectThreads, p -> {
+                var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("instanseg-objects-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+        }
+        SharedSetting.Scope openCVScope = null;
+        if (System.getProperty("instanseg.threadBudget.opencv", "false").strip().equalsIgnoreCase("true")) {
+            try {
+                openCVScope = OPENCV_THREADS.override(openCVThreads);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to set OpenCV threads: {}", e.getMessage());
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        var budget = new ThreadBudget(objectThreads, openCVScope == null ? -1 : openCVThreads, pool, openCVScope);
+        logger.debug("Using {} ({} cores, {} task threads, {})", budget, nCores, nTaskThreads, engineThreads);
+        return budget;
+    }
+
+    /**
+     * Apply a stream pipeline to a collection, using the threads available for object post-processing.
+     * @param items the items to process
+     * @param pipeline the operations to apply to the stream of items
+     * @return the results
+     * @param <T> the type of the items
+     * @param <R> the type of the results
+     */
+    <T, R> List<R> process(Collection<T> items, Function<Stream<T>, Stream<R>> pipeline) {
+        if (this == UNMANAGED)
+            return pipeline.apply(items.parallelStream()).toList();
+        if (pool == null)
+            return pipeline.apply(items.stream()).toList();
+        return pool.submit(() -> pipeline.apply(items.parallelStream()).toList()).join();
+    }
+
+    /**
+     * Shut down the object pool and end any change to the OpenCV thread count.
+     */
+    @Override
+    public void close() {
+        if (this == UNMANAGED)
+            return;
+        if (pool != null)
+            pool.shutdown();
+        if (openCVScope != null)
+            openCVScope.close();
+    }
+
+    @Override
+    public String toString() {
+        if (this == UNMANAGED)
+            return "ThreadBudget[unmanaged]";
+        return "ThreadBudget[objectThreads=" + objectThreads + ", openCVThreads=" +
+                (openCVThreads > 0 ? openCVThreads : "unchanged") + "]";
+    }
+
+}
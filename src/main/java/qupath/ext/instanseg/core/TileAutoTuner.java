@@ -0,0 +1,414 @@
+package qupath.ext.instanseg.core;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ops.ImageOp;
+import qupath.opencv.ops.ImageOps;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * Choose the tile size, padding and number of predictors by timing the model on a sample of the image.
+ * <p>
+ * The padding is set from the size of the objects detected in a sample tile, so that objects touching the tile
+ * boundary can still be detected in full by a neighbouring tile.
+ * Each candidate tile size is then timed, and the one that detects the most objects per second is chosen - which
+ * means taking into account the proportion of each tile that is wasted on padding.
+ * Finally, the number of predictors is increased until it no longer gives a worthwhile improvement.
+ * <p>
+ * Only configurations that are expected to fit within the memory budget are considered.
+ * Results are stored in a user directory for each model, so that calibration only needs to be done once for each
+ * device and backend.
+ */
+class TileAutoTuner {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileAutoTuner.class);
+
+    /**
+     * System property that can be used to set the directory in which tuning results are stored.
+     */
+    static final String TUNING_DIRECTORY_PROPERTY = "instanseg.autotune.directory";
+
+    private static final Type RESULTS_TYPE = new TypeToken<Map<String, TuningResult>>() {}.getType();
+
+    private static final int[] CANDIDATE_TILE_DIMS = {256, 384, 512, 768, 1024};
+
+    private static final int SAMPLE_TILE_DIMS = 512;
+
+    private static final int MIN_PADDING = 16;
+
+    private static final int N_REPEATS = 3;
+
+    /**
+     * Minimum relative improvement in throughput needed to add more predictors.
+     */
+    private static final double MIN_PREDICTOR_GAIN = 0.1;
+
+    /**
+     * The result of tuning.
+     * @param tileDims the tile width and height, including padding (i.e. the model input size)
+     * @param padding the padding added to each side of the tile
+     * @param nPredictors the number of predictors
+     * @param objectsPerSecond the estimated throughput, or 0 if no objects were found in the sample
+     * @param memoryBudget the memory budget used for tuning, in bytes
+     */
+    record TuningResult(int tileDims, int padding, int nPredictors, double objectsPerSecond, long memoryBudget) {}
+
+    private final ImageData<BufferedImage> imageData;
+    private final List<ColorTransforms.ColorTransform> channels;
+    private final double downsample;
+    private final InstanSegOutputToObjectConverter converter;
+    private final int nOutputChannels;
+    private final int nTaskThreads;
+    private final long memoryBudget;
+
+    /**
+     * Create a tuner for a specific image.
+     * @param imageData the image to sample
+     * @param channels the input channels
+     * @param downsample the downsample at which the model is applied
+     * @param converter the converter used to count detected objects
+     * @param nOutputChannels the number of label channels output by the model
+     * @param nTaskThreads the number of threads that will process tiles
+     * @param memoryBudget the maximum memory for tiles in flight, in bytes
+     */
+    TileAutoTuner(ImageData<BufferedImage> imageData, List<ColorTransforms.ColorTransform> channels,
+                  double downsample, InstanSegOutputToObjectConverter converter,
+                  int nOutputChannels, int nTaskThreads, long memoryBudget) {
+        this.imageData = imageData;
+        this.channels = List.copyOf(channels);
+        this.downsample = downsample;
+        this.converter = converter;
+        this.nOutputChannels = Math.max(1, nOutputChannels);
+        this.nTaskThreads = Math.max(1, nTaskThreads);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Get the key used to store tuning results for a combination of device and backend.
+     * @param device the device name
+     * @param backend the backend name
+     * @return the key
+     */
+    static String createKey(String device, String backend) {
+        return device + "/" + backend;
+    }
+
+    /**
+     * Get the file used to store tuning results for a model.
+     * <p>
+     * Results are kept out of the model directory, which may be shared or read-only.
+     * Instead, they are stored in the directory set by the system property {@code instanseg.autotune.directory},
+     * or in {@code .instanseg/tuning} within the user's home directory.
+     * Each model has its own file, named from the model name and its location.
+     * @param model the model
+     * @return the results file, or empty if the model has no path
+     */
+    static Optional<Path> getResultsPath(InstanSegModel model) {
+        if (model == null)
+            return Optional.empty();
+        return model.getPath().map(modelPath -> {
+            String dir = System.getProperty(TUNING_DIRECTORY_PROPERTY);
+            var directory = dir == null || dir.isBlank() ?
+                    Path.of(System.getProperty("user.home"), ".instanseg", "tuning") : Path.of(dir.strip());
+            String name = model.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+            String location = Integer.toHexString(modelPath.toAbsolutePath().normalize().toString().hashCode());
+            return directory.resolve(name + "-" + location + ".json");
+        });
+    }
+
+    /**
+     * Read a previous tuning result.
+     * @param path the results file for the model
+     * @param key the key for the device and backend
+     * @return the previous result, if available
+     */
+    static Optional<TuningResult> readResult(Path path, String key) {
+        return Optional.ofNullable(readResults(path).get(key));
+    }
+
+    /**
+     * Write a tuning result, retaining results for other devices and backends.
+     * @param path the results file for the model
+     * @param key the key for the device and backend
+     * @param result the result to write
+     */
+    static void writeResult(Path path, String key, TuningResult result) {
+        var results = readResults(path);
+        results.put(key, result);
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, GsonTools.getInstance(true).toJson(results, RESULTS_TYPE), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.warn("Unable to write tuning results to {}", path, e);
+        }
+    }
+
+    private static Map<String, TuningResult> readResults(Path path) {
+        if (Files.isRegularFile(path)) {
+            try {
+                Map<String, TuningResult> results = GsonTools.getInstance().fromJson(
+                        Files.readString(path, StandardCharsets.UTF_8), RESULTS_TYPE);
+                if (results != null)
+                    return new LinkedHashMap<>(results);
+            } catch (IOException | JsonParseException e) {
+                logger.warn("Unable to read tuning results from {}", path, e);
+            }
+        }
+        return new LinkedHashMap<>();
+    }
+
+    /**
+     * Check whether a tuning result can be reused for the current memory budget.
+     * @param result the result to check
+     * @return true if the result was tuned with the same budget, or is still expected to fit within it
+     */
+    boolean isCompatible(TuningResult result) {
+        return result.memoryBudget() == memoryBudget || fitsBudget(result.tileDims(), result.nPredictors());
+    }
+
+    /**
+     * Run the calibration.
+     * @param session the session used to create predictors
+     * @param pathObjects the objects that will be processed; the largest is used to choose the sample region
+     * @param maxPredictors the maximum number of predictors to try
+     * @param defaultPadding the padding to use if no objects are found in the sample
+     * @return the result of tuning
+     * @throws IOException if the image could not be read
+     * @throws InferenceException if prediction failed
+     * @throws InterruptedException if calibration was interrupted
+     */
+    TuningResult tune(InferenceBackend.Session session, Collection<? extends PathObject> pathObjects,
+                      int maxPredictors, int defaultPadding) throws IOException, InferenceException, InterruptedException {
+        var sampleROI = getSampleROI(pathObjects);
+        var normalization = TilePredictionProcessor.getNormalization(imageData, sampleROI, channels,
+                TilePredictionProcessor.LOW_PERCENTILE, TilePredictionProcessor.HIGH_PERCENTILE);
+        var preprocessing = TilePredictionProcessor.createPreprocessing(normalization);
+
+        List<TilePredictor> predictors = new ArrayList<>();
+        try {
+            predictors.add(session.newPredictor());
+            var predictor = predictors.get(0);
+
+            // Detect objects in a sample tile to determine the padding and object density
+            var request = createSampleRequest(sampleROI, SAMPLE_TILE_DIMS);
+            List<PathObject> sampleObjects;
+            try (var mat = readTile(request, preprocessing, SAMPLE_TILE_DIMS)) {
+                predict(predictor, mat);
+                var output = predictor.predict(mat);
+                output[0].convertTo(output[0], opencv_core.CV_32S);
+                sampleObjects = converter.convertToObjects(request, output);
+                for (var m : output) {
+                    m.close();
+                }
+            }
+            double samplePixels = (double)SAMPLE_TILE_DIMS * SAMPLE_TILE_DIMS;
+            double density = sampleObjects.size() / samplePixels;
+            int padding = sampleObjects.isEmpty() ? defaultPadding : estimatePadding(sampleObjects);
+            logger.debug("Found {} objects in sample tile, using padding {}", sampleObjects.size(), padding);
+
+            // Time each candidate tile size, scoring by the number of unpadded pixels processed per second
+            int bestTileDims = -1;
+            double bestSeconds = Double.NaN;
+            double bestScore = 0;
+            for (int tileDims : CANDIDATE_TILE_DIMS) {
+                if (tileDims <= padding * 4 || !fitsBudget(tileDims, 1)) {
+                    logger.debug("Skipping tile size {} (padding {})", tileDims, padding);
+                    continue;
+                }
+                var candidateRequest = createSampleRequest(sampleROI, tileDims);
+                double seconds;
+                try (var mat = readTile(candidateRequest, preprocessing, tileDims)) {
+                    predict(predictor, mat);
+                    seconds = medianSeconds(predictor, mat);
+                }
+                int usefulDims = tileDims - padding * 2;
+                double score = (double)usefulDims * usefulDims / seconds;
+                logger.debug("Tile size {}: {} ms per tile, {} useful pixels/s",
+                        tileDims, Math.round(seconds * 1000), Math.round(score));
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestTileDims = tileDims;
+                    bestSeconds = seconds;
+                }
+            }
+            if (bestTileDims < 0) {
+                // Nothing fits - use the smallest tile and smallest padding we can
+                bestTileDims = CANDIDATE_TILE_DIMS[0];
+                padding = Math.min(padding, bestTileDims / 4 - 1);
+                logger.warn("No tile size fits within the memory budget of {} MB - using {}",
+                        memoryBudget / (1024 * 1024), bestTileDims);
+                return new TuningResult(bestTileDims, padding, 1, 0, memoryBudget);
+            }
+
+            // Increase the number of predictors while it continues to help
+            int nPredictors = 1;
+            double bestThroughput = 1.0 / bestSeconds;
+            var candidateRequest = createSampleRequest(sampleROI, bestTileDims);
+            try (var mat = readTile(candidateRequest, preprocessing, bestTileDims)) {
+                for (int n = 2; n <= maxPredictors && fitsBudget(bestTileDims, n); n *= 2) {
+                    while (predictors.size() < n) {
+                        var newPredictor = session.newPredictor();
+                        predictors.add(newPredictor);
+                        predict(newPredictor, mat);
+                    }
+                    double throughput = concurrentThroughput(predictors, mat);
+                    logger.debug("{} predictors: {} tiles/s", n, throughput);
+                    if (throughput < bestThroughput * (1 + MIN_PREDICTOR_GAIN))
+                        break;
+                    bestThroughput = throughput;
+                    nPredictors = n;
+                }
+            }
+            int usefulDims = bestTileDims - padding * 2;
+            double objectsPerSecond = density * usefulDims * usefulDims * bestThroughput;
+            return new TuningResult(bestTileDims, padding, nPredictors, objectsPerSecond, memoryBudget);
+        } finally {
+            for (var predictor : predictors) {
+                predictor.close();
+            }
+        }
+    }
+
+    private boolean fitsBudget(int inputDims, int nPredictors) {
+        var estimate = TileMemoryEstimate.forTile(inputDims, channels.size(), nOutputChannels);
+        return estimate.totalBytes(Math.max(nTaskThreads, nPredictors), nPredictors) <= memoryBudget;
+    }
+
+    /**
+     * Choose the padding from the 99th percentile of object sizes, so that almost all objects can fit entirely
+     * within the padding of a neighbouring tile.
+     */
+    private int estimatePadding(List<PathObject> objects) {
+        double[] sizes = objects.stream()
+                .map(PathObject::getROI)
+                .mapToDouble(r -> Math.max(r.getBoundsWidth(), r.getBoundsHeight()) / downsample)
+                .sorted()
+                .toArray();
+        double size = sizes[(int)Math.min(sizes.length - 1, Math.ceil(sizes.length * 0.99) - 1)];
+        int padding = (int)Math.ceil(size / 8.0) * 8;
+        return Math.max(MIN_PADDING, padding);
+    }
+
+    /**
+     * Get the ROI to sample from - this is the ROI of the largest object, or the full image if there are no ROIs.
+     */
+    private ROI getSampleROI(Collection<? extends PathObject> pathObjects) {
+        return pathObjects.stream()
+                .map(PathObject::getROI)
+                .filter(r -> r != null && r.isArea())
+                .max(Comparator.comparingDouble(ROI::getArea))
+                .orElseGet(() -> {
+                    var server = imageData.getServer();
+                    return ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), null);
+                });
+    }
+
+    /**
+     * Create a request for a tile centred on the ROI, adjusted to fit within the image.
+     */
+    private RegionRequest createSampleRequest(ROI roi, int inputDims) {
+        var server = imageData.getServer();
+        int size = (int)Math.round(inputDims * downsample);
+        int width = Math.min(size, server.getWidth());
+        int height = Math.min(size, server.getHeight());
+        int x = (int)Math.round(roi.getCentroidX() - width / 2.0);
+        int y = (int)Math.round(roi.getCentroidY() - height / 2.0);
+        x = Math.max(0, Math.min(x, server.getWidth() - width));
+        y = Math.max(0, Math.min(y, server.getHeight() - height));
+        return RegionRequest.createInstance(server.getPath(), downsample, x, y, width, height, roi.getImagePlane());
+    }
+
+    /**
+     * Read and preprocess a tile, padding it if necessary so that timings are comparable even for small images.
+     */
+    private Mat readTile(RegionRequest request, ImageOp preprocessing, int inputDims) throws IOException {
+        var mat = preprocessing.apply(ImageOps.buildImageDataOp(channels).apply(imageData, request));
+        if (mat.rows() < inputDims || mat.cols() < inputDims) {
+            var mat2 = new Mat();
+            opencv_core.copyMakeBorder(mat, mat2, 0, Math.max(0, inputDims - mat.rows()),
+                    0, Math.max(0, inputDims - mat.cols()), opencv_core.BORDER_REFLECT101);
+            mat.close();
+            mat = mat2;
+        }
+        return mat;
+    }
+
+    private static void predict(TilePredictor predictor, Mat mat) throws InferenceException {
+        for (var output : predictor.predict(mat)) {
+            output.close();
+        }
+    }
+
+    private static double medianSeconds(TilePredictor predictor, Mat mat) throws InferenceException {
+        double[] seconds = new double[N_REPEATS];
+        for (int i = 0; i < N_REPEATS; i++) {
+            long start = System.nanoTime();
+            predict(predictor, mat);
+            seconds[i] = (System.nanoTime() - start) / 1e9;
+        }
+        Arrays.sort(seconds);
+        return seconds[N_REPEATS / 2];
+    }
+
+    /**
+     * Measure the number of tiles per second when all predictors are used concurrently.
+     */
+    private static double concurrentThroughput(List<TilePredictor> predictors, Mat mat)
+            throws InferenceException, InterruptedException {
+        var pool = Executors.newFixedThreadPool(predictors.size());
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (var predictor : predictors) {
+                tasks.add(() -> {
+                    for (int i = 0; i < N_REPEATS; i++) {
+                        predict(predictor, mat);
+                    }
+                    return null;
+                });
+            }
+            long start = System.nanoTime();
+            for (var future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof InferenceException te)
+                        throw te;
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return predictors.size() * N_REPEATS / seconds;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+package qupath.ext.instanseg.core;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.experimental.pixels.OutputHandler;
+import qupath.lib.experimental.pixels.Parameters;
+import qupath.lib.experimental.pixels.Processor;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * An append-only journal of completed tiles, used to resume a long run after it has been cancelled or the JVM has
+ * stopped unexpectedly.
+ * <p>
+ * The first line of the journal contains a description of the configuration used for the run.
+ * Each following line stores the ID of one completed tile, along with the objects it contributed after pruning
+ * (i.e. before any merging across tiles).
+ * If the configuration does not match when the journal is opened again, the journal is discarded and the run
+ * starts from scratch.
+ */
+class TileJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileJournal.class);
+
+    private static final Type OBJECT_LIST_TYPE = new TypeToken<List<PathObject>>() {}.getType();
+
+    private final Path path;
+    private final Map<String, List<PathObject>> completed = new ConcurrentHashMap<>();
+    private final AtomicInteger nTilesRestored = new AtomicInteger(0);
+    private final BufferedWriter writer;
+
+    private TileJournal(Path path, String configuration) throws IOException {
+        this.path = path;
+        boolean append = Files.exists(path) && readJournal(path, configuration);
+        if (append) {
+            logger.info("Resuming from journal {} with {} completed tiles", path, completed.size());
+            // Remove any incomplete last line, so that new entries start on a line of their own
+            truncateToLastLine(path);
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } else {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            var header = new JsonObject();
+            header.addProperty("configuration", configuration);
+            writeLine(header);
+        }
+    }
+
+    /**
+     * Open a journal, restoring any tiles that were completed using the same configuration.
+     * @param path the journal file; this will be created if it does not exist
+     * @param configuration a description of everything that could influence the detected objects
+     * @return the journal
+     * @throws IOException if the journal could not be read or written
+     */
+    static TileJournal open(Path path, String configuration) throws IOException {
+        return new TileJournal(path, configuration);
+    }
+
+    private boolean readJournal(Path path, String configuration) throws IOException {
+        var lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            return false;
+        }
+        try {
+            var header = JsonParser.parseString(lines.getFirst()).getAsJsonObject();
+            if (!header.has("configuration") || !Objects.equals(configuration, header.get("configuration").getAsString())) {
+                logger.warn("Configuration has changed - discarding journal {}", path);
+                return false;
+            }
+        } catch (JsonParseException | IllegalStateException e) {
+            logger.warn("Unable to read journal header - discarding journal {}", path);
+            return false;
+        }
+        var gson = GsonTools.getInstance();
+        for (var line : lines.subList(1, lines.size())) {
+            try {
+                var entry = JsonParser.parseString(line).getAsJsonObject();
+                List<PathObject> objects = gson.fromJson(entry.get("objects"), OBJECT_LIST_TYPE);
+                completed.put(entry.get("tile").getAsString(), objects);
+            } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+                // Most likely the last line, written when the run was interrupted (this is removed before appending)
+                logger.debug("Skipping incomplete journal entry", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Truncate a file after its last newline character, removing any incomplete line written when a previous run
+     * ended unexpectedly. If there is no newline, one is added.
+     */
+    private static void truncateToLastLine(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            var buffer = ByteBuffer.allocate(8192);
+            long end = size;
+            while (end > 0) {
+                long start = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int)(end - start));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0)
+                        break;
+                }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        long length = start + i + 1;
+                        if (length < size) {
+                            logger.debug("Removing {} bytes of incomplete entry from journal {}", size - length, path);
+                            channel.truncate(length);
+                        }
+                        return;
+                    }
+                }
+                end = start;
+            }
+            // Only the header was written, without a newline
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}), size);
+        }
+    }
+
+    /**
+     * Get a unique ID for a tile, which is expected to be the same across runs that use the same configuration.
+     * @param params the parameters for the tile
+     * @param parents function to get the parent object of a tile proxy
+     * @return an ID based upon the parent object and the region of the tile
+     */
+    static String getTileID(Parameters<?, ?> params, UnaryOperator<PathObject> parents) {
+        return getTileID(parents.apply(params.getParent()), params.getRegionRequest());
+    }
+
+    /**
+     * Get a unique ID for a tile, which is expected to be the same across runs that use the same configuration.
+     * @param parent the parent object of the tile
+     * @param request the region of the tile
+     * @return an ID based upon the parent object and the region of the tile
+     */
+    static String getTileID(PathObject parent, RegionRequest request) {
+        return String.format("%s:%d,%d,%d,%d,%d,%d",
+                parent.getID(),
+                request.getX(), request.getY(), request.getWidth(), request.getHeight(),
+                request.getZ(), request.getT());
+    }
+
+    /**
+     * Check if a tile has already been completed.
+     * @param tileID the ID of the tile
+     * @return true if the tile's objects can be restored from the journal
+     */
+    boolean isComplete(String tileID) {
+        return completed.containsKey(tileID);
+    }
+
+    /**
+     * Get the objects of a completed tile, counting the tile as restored.
+     * @param tileID the ID of the tile
+     * @return the objects recorded for the tile, or null if the tile has not been completed
+     */
+    List<PathObject> restore(String tileID) {
+        var restored = completed.get(tileID);
+        if (restored != null)
+            nTilesRestored.incrementAndGet();
+        return restored;
+    }
+
+    /**
+     * Get the number of tiles that have been restored from the journal during this run.
+     * @return the number of restored tiles
+     */
+    int getTilesRestoredCount() {
+        return nTilesRestored.get();
+    }
+
+    /**
+     * Record the objects for a completed tile.
+     * @param tileID the ID of the tile
+     * @param objects the objects detected for the tile, after pruning
+     */
+    void record(String tileID, Collection<PathObject> objects) {
+        var entry = new JsonObject();
+        entry.addProperty("tile", tileID);
+        entry.add("objects", GsonTools.getInstance().toJsonTree(List.copyOf(objects), OBJECT_LIST_TYPE));
+        try {
+            writeLine(entry);
+        } catch (IOException e) {
+            logger.warn("Unable to write to journal {}: {}", path, e.getMessage(), e);
+        }
+    }
+
+    private synchronized void writeLine(JsonObject json) throws IOException {
+        writer.write(json.toString());
+        writer.newLine();
+        // Flush every line, since the whole point is to survive the run ending unexpectedly
+        writer.flush();
+    }
+
+    /**
+     * Wrap a processor so that it skips tiles that have already been completed.
+     * @param processor the processor to wrap
+     * @param parents function to get the parent object of a tile proxy
+     * @return a processor that returns null for completed tiles, without requesting any pixels
+     */
+    <S, T, U> Processor<S, T, U> wrap(Processor<S, T, U> processor, UnaryOperator<PathObject> parents) {
+        return params -> isComplete(getTileID(params, parents)) ? null : processor.process(params);
+    }
+
+    /**
+     * Wrap an output handler so that it restores the objects of completed tiles, and records the objects of
+     * newly-completed tiles.
+     * @param outputHandler the output handler to wrap
+     * @param parents function to get the parent object of a tile proxy
+     * @return an output handler that reads and writes to the journal
+     */
+    <S, T, U> OutputHandler<S, T, U> wrap(OutputHandler<S, T, U> outputHandler, UnaryOperator<PathObject> parents) {
+        return (params, output) -> {
+            String tileID = getTileID(params, parents);
+            var restored = restore(tileID);
+            var parentOrProxy = params.getParentOrProxy();
+            if (restored != null) {
+                parentOrProxy.clearChildObjects();
+                parentOrProxy.addChildObjects(restored);
+                parentOrProxy.setLocked(true);
+                return true;
+            }
+            boolean handled = outputHandler.handleOutput(params, output);
+            if (handled) {
+                record(tileID, parentOrProxy.getChildObjects());
+            }
+            return handled;
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+}
@@ -0,0 +1,79 @@
+package qupath.ext.instanseg.core;
+
+/**
+ * A rough estimate of the memory needed to process a single tile.
+ * <p>
+ * This is intentionally conservative, since the memory used by the inference engine can't be measured directly.
+ * It is intended for comparing configurations and limiting concurrency - not for exact accounting.
+ *
+ * @param nativeBytes memory allocated outside the Java heap for the tile itself, e.g. for OpenCV Mats
+ * @param heapBytes memory allocated on the Java heap, e.g. for images and detected objects
+ * @param engineBytes native memory used by the inference engine while the tile is being predicted
+ */
+record TileMemoryEstimate(long nativeBytes, long heapBytes, long engineBytes) {
+
+    /**
+     * Approximate bytes per pixel used by the model for intermediate activations.
+     * This assumes a UNet-like architecture with 32 feature channels at full resolution, and a few live
+     * float32 layers at any time.
+     */
+    private static final long ENGINE_BYTES_PER_PIXEL = 32 * 4 * 4;
+
+    /**
+     * Approximate pixels per detected object at the processing resolution, when objects are densely packed.
+     */
+    private static final long PIXELS_PER_OBJECT = 400;
+
+    /**
+     * Approximate heap bytes per detected object, including the ROI, geometry and object itself.
+     */
+    private static final long BYTES_PER_OBJECT = 4 * 1024;
+
+    /**
+     * Estimate the memory needed to process a tile.
+     * @param tileDims the width and height of the tile, including padding
+     * @param nInputChannels the number of input channels
+     * @param nOutputChannels the number of label channels output by the model (usually 1 or 2)
+     * @return the estimate
+     */
+    static TileMemoryEstimate forTile(int tileDims, int nInputChannels, int nOutputChannels) {
+        long nPixels = (long)tileDims * tileDims;
+        // Input: the image read as a BufferedImage (heap), and float Mats before and after preprocessing
+        long heapInput = nPixels * nInputChannels * 4;
+        long nativeInput = nPixels * nInputChannels * 4 * 3;
+        // Output: labels from the model as float, then converted to int (plus the engine's own copy)
+        long nativeOutput = nPixels * nOutputChannels * 4 * 3;
+        long nativeEngine = nPixels * ENGINE_BYTES_PER_PIXEL;
+        long heapObjects = nPixels / PIXELS_PER_OBJECT * nOutputChannels * BYTES_PER_OBJECT;
+        return new TileMemoryEstimate(nativeInput + nativeOutput, heapInput + heapObjects, nativeEngine);
+    }
+
+    /**
+     * Get the default memory budget, when none is specified.
+     * This is half the maximum heap size, on the assumption that native memory is also limited to a similar amount.
+     * @return the default budget, in bytes
+     */
+    static long getDefaultBudget() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * Get the total estimated memory.
+     * @return the sum of native, heap and engine bytes
+     */
+    long totalBytes() {
+        return nativeBytes + heapBytes + engineBytes;
+    }
+
+    /**
+     * Estimate the memory needed when several tiles are in flight at once.
+     * Engine memory is only needed for tiles that are being predicted, which is limited by the number of predictors.
+     * @param nTiles the maximum number of tiles being processed concurrently
+     * @param nPredictors the number of predictors
+     * @return the estimated memory, in bytes
+     */
+    long totalBytes(int nTiles, int nPredictors) {
+        return (nativeBytes + heapBytes) * nTiles + engineBytes * Math.min(nTiles, nPredictors);
+    }
+
+}
@@ -0,0 +1,323 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.utils.ObjectProcessor;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.ops.ImageOps;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process parent objects that fit within a single tile directly, bypassing tiling and merging, and optionally pack
+ * several into shared tiles so that the model runs once for many parents rather than once for each.
+ * <p>
+ * A parent that fits in one tile can't have objects that cross a tile seam, so there is no need to create
+ * proxy tile objects, prune objects at tile boundaries, or merge objects between tiles afterwards.
+ * It is enough to read the padded region once, run the model and convert the labels - although the same
+ * post-processing is still applied, so that overlaps and fragments are handled as for tiled parents.
+ * <p>
+ * This helps when there are many parents that are much smaller than a tile (e.g. TMA cores or small annotations),
+ * since each would otherwise be processed as a separate, mostly empty tile.
+ * Each parent is read with the usual padding and normalized independently, then placed on a 'shelf' within a canvas
+ * no larger than the tile size.
+ * Parents are separated by guard bands filled by replicating their edge pixels, so that the model doesn't see an
+ * artificial edge between neighbours.
+ * <p>
+ * The labels predicted for each parent are cropped from the canvas output and converted to objects using the parent's
+ * own region, then masked by the parent ROI and post-processed.
+ * Because each parent fits within a single tile, no merging between tiles is needed.
+ */
+class TilePacker {
+
+    private static final Logger logger = LoggerFactory.getLogger(TilePacker.class);
+
+    /**
+     * Width of the guard band on each side of a parent, in pixels at the resolution of the model.
+     */
+    static final int GUARD = 8;
+
+    private final ImageData<BufferedImage> imageData;
+    private final List<ColorTransforms.ColorTransform> channels;
+    private final double downsample;
+    private final int tileDims;
+    private final int padding;
+    private final boolean shareTiles;
+    private final int guard;
+    private final StageTimer timer;
+    private final ParentMask.Cache masks;
+
+    /**
+     * The location of a parent within a canvas.
+     * @param parent the parent object
+     * @param request the region to read for the parent, including padding
+     * @param x the x coordinate of the parent's region within the canvas, excluding the guard band
+     * @param y the y coordinate of the parent's region within the canvas, excluding the guard band
+     * @param width the maximum width of the parent's region within the canvas, excluding the guard band
+     * @param height the maximum height of the parent's region within the canvas, excluding the guard band
+     */
+    record Placement(PathObject parent, RegionRequest request, int x, int y, int width, int height) {}
+
+    /**
+     * A group of parents that are processed together.
+     * @param placements the location of each parent
+     * @param width the width of the canvas, in pixels
+     * @param height the height of the canvas, in pixels
+     */
+    record Canvas(List<Placement> placements, int width, int height) {}
+
+    /**
+     * Create a packer for an image.
+     * @param imageData the image data
+     * @param channels the input channels
+     * @param downsample the downsample at which the model is applied
+     * @param tileDims the maximum width and height of a canvas, in pixels
+     * @param padding the padding to read around each parent, in pixels at the resolution of the model
+     * @param shareTiles whether to pack several parents into each tile; if false, each parent has its own tile
+     * @param timer timer used to record the time spent reading regions and converting objects
+     * @param masks the masks of the parent objects for the current run
+     */
+    TilePacker(ImageData<BufferedImage> imageData, Collection<? extends ColorTransforms.ColorTransform> channels,
+               double downsample, int tileDims, int padding, boolean shareTiles, StageTimer timer, ParentMask.Cache masks) {
+        this.imageData = imageData;
+        this.channels = List.copyOf(channels);
+        this.downsample = downsample;
+        this.tileDims = tileDims;
+        this.padding = padding;
+        this.shareTiles = shareTiles;
+        this.guard = shareTiles ? GUARD : 0;
+        this.timer = timer;
+        this.masks = masks;
+    }
+
+    /**
+     * Check whether a parent is small enough to be processed as a single tile, i.e. its padded region
+     * (with guard bands, if packing) fits in a tile.
+     * @param parent the parent object
+     * @return true if the parent can be packed
+     */
+    boolean canPack(PathObject parent) {
+        var request = createRequest(parent);
+        return request != null && getWidth(request) + guard * 2 <= tileDims && getHeight(request) + guard * 2 <= tileDims;
+    }
+
+    /**
+     * Arrange parents into canvases.
+     * If tiles are shared, this uses a simple shelf algorithm with the tallest parents first to create as few
+     * canvases as possible; otherwise, each parent has its own canvas.
+     * @param parents the parents to pack; these should all be accepted by {@link #canPack(PathObject)}
+     * @return the canvases
+     */
+    List<Canvas> pack(Collection<? extends PathObject> parents) {
+        if (!shareTiles) {
+            List<Canvas> canvases = new ArrayList<>();
+            for (var parent : parents) {
+                var request = createRequest(parent);
+                int w = getWidth(request);
+                int h = getHeight(request);
+                canvases.add(new Canvas(List.of(new Placement(parent, request, 0, 0, w, h)), w, h));
+            }
+            return canvases;
+        }
+        List<PathObject> sorted = new ArrayList<>(parents);
+        sorted.sort(Comparator.comparingInt((PathObject p) -> getHeight(createRequest(p))).reversed());
+
+        List<Canvas> canvases = new ArrayList<>();
+        List<Placement> placements = new ArrayList<>();
+        int x = 0, y = 0, shelfHeight = 0, canvasWidth = 0;
+        for (var parent : sorted) {
+            var request = createRequest(parent);
+            int w = getWidth(request) + guard * 2;
+            int h = getHeight(request) + guard * 2;
+            if (x + w > tileDims) {
+                // Start a new shelf
+                y += shelfHeight;
+                x = 0;
+                shelfHeight = 0;
+            }
+            if (y + h > tileDims) {
+                // Start a new canvas
+                canvases.add(new Canvas(List.copyOf(placements), canvasWidth, y + shelfHeight));
+                placements.clear();
+                x = 0;
+                y = 0;
+                shelfHeight = 0;
+                canvasWidth = 0;
+            }
+            placements.add(new Placement(parent, request, x + guard, y + guard, w - guard * 2, h - guard * 2));
+            x += w;
+            shelfHeight = Math.max(shelfHeight, h);
+            canvasWidth = Math.max(canvasWidth, x);
+        }
+        if (!placements.isEmpty()) {
+            canvases.add(new Canvas(List.copyOf(placements), canvasWidth, y + shelfHeight));
+        }
+        logger.debug("Packed {} parents into {} tiles", sorted.size(), canvases.size());
+        return canvases;
+    }
+
+    /**
+     * Create a task for each canvas, which replaces the child objects of each parent with the objects detected.
+     * The tasks can be run in parallel with each other, and with the tasks for other parents.
+     * <p>
+     * Every parent has its child objects replaced, even if it is skipped by the tissue screen or can't be processed.
+     * If a journal is given, parents that were completed in a previous run are restored rather than processed,
+     * and newly-completed parents are recorded.
+     * @param canvases the canvases to process
+     * @param processor the processor used to normalize and predict
+     * @param converter the converter used to create objects from the labels
+     * @param postProcessor the post-processor applied to the objects of each parent, as for tiled parents; may be null
+     * @param journal the checkpoint journal; may be null
+     * @return one task for each canvas, in the same order
+     */
+    List<Runnable> createTasks(List<Canvas> canvases, TilePredictionProcessor processor,
+                               InstanSegOutputToObjectConverter converter, ObjectProcessor postProcessor,
+                               TileJournal journal) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (var canvas : canvases) {
+            tasks.add(() -> process(canvas, processor, converter, postProcessor, journal));
+        }
+        return tasks;
+    }
+
+    private void process(Canvas canvas, TilePredictionProcessor processor,
+                         InstanSegOutputToObjectConverter converter, ObjectProcessor postProcessor,
+                         TileJournal journal) {
+        List<Placement> pending = new ArrayList<>();
+        for (var placement : canvas.placements()) {
+            var restored = journal == null ? null : journal.restore(getTileID(placement));
+            if (restored == null)
+                pending.add(placement);
+            else
+                setChildObjects(placement.parent(), restored);
+        }
+        if (pending.isEmpty())
+            return;
+
+        // Parents without results (because reading or prediction failed) are left without child objects
+        Map<PathObject, List<PathObject>> results = new HashMap<>();
+        try (var scope = new PointerScope()) {
+            List<Placement> accepted = new ArrayList<>();
+            var mat = shareTiles ? new Mat(canvas.height(), canvas.width(), opencv_core.CV_32FC(channels.size()), Scalar.all(0)) : null;
+            for (var placement : pending) {
+                var preprocessing = processor.getPreprocessing(imageData, placement.parent().getROI(), placement.request());
+                if (preprocessing == null) {
+                    results.put(placement.parent(), List.of());
+                    continue;
+                }
+                long start = StageTimer.start();
+                Mat patch;
+                try {
+                    patch = ImageOps.buildImageDataOp(channels).apply(imageData, placement.request());
+                } catch (IOException e) {
+                    logger.error("Unable to read region for {}", placement.parent(), e);
+                    continue;
+                }
+                timer.record(StageTimings.Stage.REGION_READ, start);
+                start = StageTimer.start();
+                patch = preprocessing.apply(patch);
+                if (!shareTiles) {
+                    // Use the region directly, whatever its size
+                    mat = patch;
+                    timer.record(StageTimings.Stage.PREPROCESSING, start);
+                    accepted.add(new Placement(placement.parent(), placement.request(), 0, 0, patch.cols(), patch.rows()));
+                    continue;
+                }
+                // Rounding can occasionally give a region a pixel larger than expected
+                int w = Math.min(patch.cols(), placement.width());
+                int h = Math.min(patch.rows(), placement.height());
+                var guarded = new Mat();
+                opencv_core.copyMakeBorder(patch.apply(new Rect(0, 0, w, h)), guarded,
+                        guard, guard, guard, guard, opencv_core.BORDER_REPLICATE);
+                guarded.copyTo(mat.apply(new Rect(placement.x() - guard, placement.y() - guard, w + guard * 2, h + guard * 2)));
+                timer.record(StageTimings.Stage.PREPROCESSING, start);
+                accepted.add(new Placement(placement.parent(), placement.request(), placement.x(), placement.y(), w, h));
+            }
+            if (accepted.isEmpty())
+                return;
+
+            var output = processor.predict(mat, accepted.getFirst().request());
+            if (output == null)
+                return;
+
+            long start = StageTimer.start();
+            for (var placement : accepted) {
+                // Auxiliary outputs are indexed by label, so only the labels need to be cropped
+                var parentOutput = output.clone();
+                parentOutput[0] = output[0].apply(new Rect(placement.x(), placement.y(), placement.width(), placement.height())).clone();
+                var mask = masks.get(placement.parent().getROI());
+                results.put(placement.parent(), converter.convertToObjects(placement.request(), parentOutput).stream()
+                        .flatMap(p -> mask.mask(p).stream())
+                        .toList());
+            }
+            timer.record(StageTimings.Stage.CONVERSION, start);
+            if (postProcessor != null) {
+                for (var entry : results.entrySet()) {
+                    entry.setValue(List.copyOf(postProcessor.process(entry.getValue())));
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Unable to process tile for {}", pending.stream().map(Placement::parent).toList(), e);
+            results.clear();
+        } finally {
+            for (var placement : pending) {
+                var objects = results.get(placement.parent());
+                setChildObjects(placement.parent(), objects == null ? List.of() : objects);
+                if (objects != null && journal != null)
+                    journal.record(getTileID(placement), objects);
+            }
+        }
+    }
+
+    private static void setChildObjects(PathObject parent, List<PathObject> objects) {
+        parent.clearChildObjects();
+        parent.addChildObjects(objects);
+        parent.setLocked(true);
+    }
+
+    private static String getTileID(Placement placement) {
+        return TileJournal.getTileID(placement.parent(), placement.request());
+    }
+
+    /**
+     * Create the padded region to read for a parent, clipped to the image bounds.
+     */
+    private RegionRequest createRequest(PathObject parent) {
+        var roi = parent.getROI();
+        if (roi == null)
+            return null;
+        var server = imageData.getServer();
+        int pad = (int)Math.round(padding * downsample);
+        int x = Math.max(0, (int)Math.floor(roi.getBoundsX()) - pad);
+        int y = Math.max(0, (int)Math.floor(roi.getBoundsY()) - pad);
+        int x2 = Math.min(server.getWidth(), (int)Math.ceil(roi.getBoundsX() + roi.getBoundsWidth()) + pad);
+        int y2 = Math.min(server.getHeight(), (int)Math.ceil(roi.getBoundsY() + roi.getBoundsHeight()) + pad);
+        if (x2 <= x || y2 <= y)
+            return null;
+        return RegionRequest.createInstance(server.getPath(), downsample, x, y, x2 - x, y2 - y, roi.getImagePlane());
+    }
+
+    private int getWidth(RegionRequest request) {
+        return (int)Math.ceil(request.getWidth() / downsample);
+    }
+
+    private int getHeight(RegionRequest request) {
+        return (int)Math.ceil(request.getHeight() / downsample);
+    }
+
+}
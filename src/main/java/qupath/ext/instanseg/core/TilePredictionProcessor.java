@@ -1,7 +1,5 @@
 package qupath.ext.instanseg.core;
 
-import ai.djl.inference.Predictor;
-import ai.djl.translate.TranslateException;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.slf4j.Logger;
@@ -12,7 +10,9 @@ import qupath.lib.experimental.pixels.Parameters;
 import qupath.lib.experimental.pixels.Processor;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.PixelType;
+import qupath.lib.objects.PathObject;
 import qupath.lib.regions.Padding;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
@@ -31,42 +31,90 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
 
     private static final Logger logger = LoggerFactory.getLogger(TilePredictionProcessor.class);
 
-    private final BlockingQueue<Predictor<Mat, Mat[]>> predictors;
+    private final BlockingQueue<TilePredictor> predictors;
 
     private final int inputWidth;
     private final int inputHeight;
     private final boolean doPadding;
-    private final Collection<ColorTransforms.ColorTransform> channels;
+    private final ShapeBuckets shapeBuckets;
+    private final List<ColorTransforms.ColorTransform> channels;
+    private final TissueScreen tissueScreen;
+    private final StageTimer timer;
+    private final UnaryOperator<PathObject> parents;
 
-    private final double lowPercentile = 0.1;
-    private final double highPercentile = 99.9;
+    static final double LOW_PERCENTILE = 0.1;
+    static final double HIGH_PERCENTILE = 99.9;
 
     private final AtomicLong nPixelsProcessed = new AtomicLong(0);
     private final AtomicInteger nTilesProcessed = new AtomicInteger(0);
     private final AtomicInteger nTilesFailed = new AtomicInteger(0);
+    private final AtomicInteger nTilesSkipped = new AtomicInteger(0);
+    private final AtomicInteger nWaitingForPredictor = new AtomicInteger(0);
     private final AtomicBoolean wasInterrupted = new AtomicBoolean(false);
 
     /**
-     * Cache normalization op so it doesn't need to be recalculated for every tile.
+     * Cache normalization op (and foreground mask, if needed) so it doesn't need to be recalculated for every tile.
      * Note that this assumes we don't reuse the TilePredictionProcessor for multiple images that contain
      * the exact same ROI.
      * It may be possible to break this rule, but you'd really have to try hard.
      */
-    private final Map<ROI, ImageOp> normalization = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Map<ROI, ParentStats> parentStats = Collections.synchronizedMap(new WeakHashMap<>());
 
-    TilePredictionProcessor(BlockingQueue<Predictor<Mat, Mat[]>> predictors,
+    /**
+     * A low-resolution image of a parent object, used for normalization and tissue screening.
+     * @param image the image
+     * @param request the region that was read
+     * @param roiMask true for each pixel inside the parent ROI
+     */
+    record Thumbnail(BufferedImage image, RegionRequest request, boolean[] roiMask) {
+
+        /**
+         * Read a thumbnail for a parent object, using a large downsample if the object is large.
+         * @param imageData the image data
+         * @param roi the ROI of the parent object
+         * @return the thumbnail
+         * @throws IOException if the image could not be read
+         */
+        static Thumbnail read(ImageData<BufferedImage> imageData, ROI roi) throws IOException {
+            double downsample = Math.max(1,  Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()) / 1024);
+            var request = RegionRequest.createInstance(imageData.getServerPath(), downsample, roi);
+            var image = imageData.getServer().readRegion(request);
+            var mask = BufferedImageTools.createROIMask(image.getWidth(), image.getHeight(), roi, request);
+            float[] maskPix = ColorTransforms.createChannelExtractor(0).extractChannel(null, mask, null);
+            boolean[] roiMask = new boolean[maskPix.length];
+            for (int i = 0; i < maskPix.length; i++) {
+                roiMask[i] = maskPix[i] == 255;
+            }
+            return new Thumbnail(image, request, roiMask);
+        }
+
+        float[] extractChannel(ImageServer<BufferedImage> server, ColorTransforms.ColorTransform channel) {
+            return channel.extractChannel(server, image, null);
+        }
+
+    }
+
+    private record ParentStats(ImageOp normalization, TissueScreen.Mask mask) {}
+
+    TilePredictionProcessor(BlockingQueue<TilePredictor> predictors,
                             Collection<? extends ColorTransforms.ColorTransform> channels,
-                            int inputWidth, int inputHeight, boolean doPadding) {
+                            int inputWidth, int inputHeight, boolean doPadding, ShapeBuckets shapeBuckets,
+                            TissueScreen tissueScreen, StageTimer timer, UnaryOperator<PathObject> parents) {
         this.predictors = predictors;
         this.channels = List.copyOf(channels);
         this.inputWidth = inputWidth;
         this.inputHeight = inputHeight;
         this.doPadding = doPadding;
+        this.shapeBuckets = shapeBuckets;
+        this.tissueScreen = tissueScreen;
+        this.timer = timer;
+        this.parents = parents;
     }
 
     /**
@@ -85,6 +133,14 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
         return nTilesFailed.get();
     }
 
+    /**
+     * Get the number of tiles that were skipped by the tissue pre-screen, without being read or processed.
+     * @return the number of tiles skipped
+     */
+    public int getTilesSkippedCount() {
+        return nTilesSkipped.get();
+    }
+
     /**
      * Get the number of pixels that were processed.
      * This is calculated by summing the width x height of each tile that was processed.
@@ -97,6 +153,22 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
         return nPixelsProcessed.get();
     }
 
+    /**
+     * Get the number of predictors that are currently idle.
+     * @return the number of predictors available in the queue
+     */
+    public int getPredictorsAvailableCount() {
+        return predictors.size();
+    }
+
+    /**
+     * Get the number of tiles that are currently waiting for a predictor to become available.
+     * @return the number of waiting tiles
+     */
+    public int getPredictorWaitingCount() {
+        return nWaitingForPredictor.get();
+    }
+
     /**
      * Check if the processing was interrupted.
      * This can be used to determine if the processing was stopped prematurely,
@@ -110,42 +182,102 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
     @Override
     public Mat[] process(Parameters<Mat, Mat> params) throws IOException {
 
+        var imageData = params.getImageData();
+
+        // Normalize using percentiles (from a sufficiently low-resolution image),
+        // and skip tiles with too little foreground before reading any pixels
+        var preprocessing = getPreprocessing(imageData, parents.apply(params.getParent()).getROI(), params.getRegionRequest());
+        if (preprocessing == null) {
+            nTilesSkipped.incrementAndGet();
+            return null;
+        }
+
+        var readEvent = new InstanSegEvents.TileRead();
+        readEvent.begin();
+        long start = StageTimer.start();
         var mat = params.getImage();
+        timer.record(StageTimings.Stage.REGION_READ, start);
+        if (readEvent.shouldCommit()) {
+            readEvent.commit(params.getRegionRequest());
+        }
 
-        var imageData = params.getImageData();
+        start = StageTimer.start();
+        mat = preprocessing.apply(mat);
+        timer.record(StageTimings.Stage.PREPROCESSING, start);
+
+        return predict(mat, params.getRegionRequest());
+    }
 
-        // Normalize using percentiles (from a sufficiently low-resolution image)
-        ImageOp norm = normalization.computeIfAbsent(params.getParent().getROI(),
-                roi -> getNormalization(imageData, roi, channels, lowPercentile, highPercentile));
+    /**
+     * Get the op used to prepare a region of a parent object for the model, after it has been read.
+     * Normalization is computed once for each parent, and cached.
+     * @param imageData the image data
+     * @param parentROI the ROI of the parent object
+     * @param request the region to be processed, including any padding
+     * @return the preprocessing op, or null if the region should be skipped because it has too little foreground
+     */
+    ImageOp getPreprocessing(ImageData<BufferedImage> imageData, ROI parentROI, RegionRequest request) {
+        long start = StageTimer.start();
+        var stats = parentStats.computeIfAbsent(parentROI, roi -> computeParentStats(imageData, roi));
+        timer.record(StageTimings.Stage.NORMALIZATION, start);
+        if (stats.mask() != null && !stats.mask().accept(request))
+            return null;
+        return createPreprocessing(stats.normalization());
+    }
 
+    /**
+     * Run the model on an input that has already been preprocessed, padding it first if required.
+     * @param mat the preprocessed input
+     * @param request the region that the input represents, used for logging and events
+     * @return the model output, with labels converted to 32-bit integers, or null if prediction failed
+     */
+    Mat[] predict(Mat mat, RegionRequest request) {
         // Number of pixels in the Mat *excluding channels*
         long nPixels = mat.total();
 
-        var preprocessing = ImageOps.Core.sequential(
-                ImageOps.Core.ensureType(PixelType.FLOAT32),
-                norm,
-                ImageOps.Core.clip(-0.5, 1.5)
-        );
-        mat = preprocessing.apply(mat);
-
+        long start = StageTimer.start();
         Padding padding = null;
-        if (doPadding && inputHeight > 0 && inputWidth > 0 && (mat.rows() < inputHeight || mat.cols() < inputWidth)) {
+        if (shapeBuckets != null) {
+            // Pad with zeros to the right and bottom only - this is cheaper than reflection, and the
+            // padded region is cropped from the output anyway
+            padding = shapeBuckets.getPadding(mat.cols(), mat.rows());
+            if (padding != null) {
+                var mat2 = new Mat();
+                opencv_core.copyMakeBorder(mat, mat2, 0, padding.getY2(), 0, padding.getX2(), opencv_core.BORDER_CONSTANT);
+                mat = mat2;
+            }
+        } else if (doPadding && inputHeight > 0 && inputWidth > 0 && (mat.rows() < inputHeight || mat.cols() < inputWidth)) {
             padding = Padding.getPadding(0, Math.max(0, inputWidth - mat.cols()), 0, Math.max(0, inputHeight - mat.rows()));
             var mat2 = new Mat();
             opencv_core.copyMakeBorder(mat, mat2, padding.getY1(), padding.getY2(), padding.getX1(), padding.getX2(), opencv_core.BORDER_REFLECT101);
             mat = mat2;
         }
+        timer.record(StageTimings.Stage.PREPROCESSING, start);
 
-        Predictor<Mat, Mat[]> predictor = null;
+        TilePredictor predictor = null;
         try {
-            predictor = predictors.take();
+            start = StageTimer.start();
+            nWaitingForPredictor.incrementAndGet();
+            try {
+                predictor = predictors.take();
+            } finally {
+                nWaitingForPredictor.decrementAndGet();
+            }
+            timer.record(StageTimings.Stage.PREDICTOR_WAIT, start);
             logger.debug("Predicting tile {}", mat);
+            var predictEvent = new InstanSegEvents.Predict();
+            predictEvent.begin();
+            start = StageTimer.start();
             var matOutput = predictor.predict(mat);
+            timer.record(StageTimings.Stage.PREDICT, start);
+            if (predictEvent.shouldCommit()) {
+                predictEvent.commit(request);
+            }
 
             // These are useful for spotting issues with the model
             if (System.getProperty("instanseg.debug.predictions", "false").equalsIgnoreCase("true")) {
-                OpenCVTools.matToImagePlus("Input " + params.getRegionRequest(), mat).show();
-                OpenCVTools.matToImagePlus("Output " + params.getRegionRequest(), matOutput).show();
+                OpenCVTools.matToImagePlus("Input " + request, mat).show();
+                OpenCVTools.matToImagePlus("Output " + request, matOutput).show();
             }
 
             // Handle the first output (labels)
@@ -155,7 +287,7 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
                 matOutput[0] = OpenCVTools.crop(matOutput[0], padding);
 
             return matOutput;
-        } catch (TranslateException e) {
+        } catch (InferenceException e) {
             nTilesFailed.incrementAndGet();
             logger.error("Error in prediction", e);
         } catch (InterruptedException | IllegalStateException e) {
@@ -177,6 +309,32 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
         return null;
     }
 
+    /**
+     * Create the op used to prepare a tile for the model, after it has been read.
+     * @param normalization the normalization op for the tile's parent
+     * @return an op that converts to float, normalizes and clips
+     */
+    static ImageOp createPreprocessing(ImageOp normalization) {
+        return ImageOps.Core.sequential(
+                ImageOps.Core.ensureType(PixelType.FLOAT32),
+                normalization,
+                ImageOps.Core.clip(-0.5, 1.5)
+        );
+    }
+
+    private ParentStats computeParentStats(ImageData<BufferedImage> imageData, ROI roi) {
+        Thumbnail thumbnail;
+        try {
+            thumbnail = Thumbnail.read(imageData, roi);
+        } catch (Exception e) {
+            logger.error("Error reading thumbnail", e);
+            return new ParentStats(ImageOps.Normalize.percentile(LOW_PERCENTILE, HIGH_PERCENTILE, true, 1e-6), null);
+        }
+        var norm = getNormalization(imageData, thumbnail, channels, LOW_PERCENTILE, HIGH_PERCENTILE);
+        var mask = tissueScreen == null ? null : tissueScreen.createMask(imageData, thumbnail, channels);
+        return new ParentStats(norm, mask);
+    }
+
     /**
      * Try to fetch percentile normalisation factors from the image, using a
      * large downsample if the input pathObject is large. Uses the
@@ -192,30 +350,50 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
      * @return Percentile-based normalisation based on the bounding box,
      * or default tile-based percentile normalisation if that fails.
      */
-    private static ImageOp getNormalization(
+    static ImageOp getNormalization(
             ImageData<BufferedImage> imageData,
             ROI roi,
             Collection<ColorTransforms.ColorTransform> channels,
             double lowPerc,
             double highPerc) {
+        try {
+            return getNormalization(imageData, Thumbnail.read(imageData, roi), channels, lowPerc, highPerc);
+        } catch (Exception e) {
+            logger.error("Error reading thumbnail", e);
+        }
+        return ImageOps.Normalize.percentile(lowPerc, highPerc, true, 1e-6);
+    }
+
+    /**
+     * Compute percentile normalisation factors from a thumbnail that has already been read.
+     * @param imageData  ImageData for the current image.
+     * @param thumbnail The thumbnail for the region used for normalization.
+     * @param channels The channels/color transforms that the segmentation
+     *                 will be restricted to.
+     * @param lowPerc The lower percentile to use in normalisation.
+     * @param highPerc The upper percentile to use in normalisation.
+     * @return Percentile-based normalisation based on the thumbnail,
+     * or default tile-based percentile normalisation if that fails.
+     */
+    static ImageOp getNormalization(
+            ImageData<BufferedImage> imageData,
+            Thumbnail thumbnail,
+            Collection<ColorTransforms.ColorTransform> channels,
+            double lowPerc,
+            double highPerc) {
 
         var defaults = ImageOps.Normalize.percentile(lowPerc, highPerc, true, 1e-6);
         try {
-            BufferedImage image;
-            double downsample = Math.max(1,  Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()) / 1024);
-            var request = RegionRequest.createInstance(imageData.getServerPath(), downsample, roi);
-            image = imageData.getServer().readRegion(request);
             double eps = 1e-6;
+            boolean[] roiMask = thumbnail.roiMask();
 
             var params = channels.stream().map(colorTransform -> {
-                var mask = BufferedImageTools.createROIMask(image.getWidth(), image.getHeight(), roi, request);
-                float[] maskPix = ColorTransforms.createChannelExtractor(0).extractChannel(null, mask, null);
-                float[] fpix = colorTransform.extractChannel(imageData.getServer(), image, null);
-                assert maskPix.length == fpix.length;
+                float[] fpix = thumbnail.extractChannel(imageData.getServer(), colorTransform);
+                assert roiMask.length == fpix.length;
 
                 int ind = 0;
-                for (int i = 0; i< maskPix.length; i++) {
-                    if (maskPix[i] == 255) {
+                for (int i = 0; i< roiMask.length; i++) {
+                    if (roiMask[i]) {
                         fpix[ind] = fpix[i];
                         ind++;
                     }
@@ -240,7 +418,7 @@ class TilePredictionProcessor implements Processor<Mat, Mat, Mat[]> {
             );
 
         } catch (Exception e) {
-            logger.error("Error reading thumbnail", e);
+            logger.error("Error computing normalization", e);
         }
         return defaults;
     }
@@ -0,0 +1,26 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+/**
+ * A predictor that generates the model output for a single preprocessed tile.
+ * <p>
+ * Instances are not required to be thread-safe; each should be used by only one thread at a time.
+ */
+public interface TilePredictor extends AutoCloseable {
+
+    /**
+     * Run prediction for a single tile.
+     * @param input the normalized input image, with channels-last layout
+     * @return the model outputs, where the first element contains the labels
+     * @throws InferenceException if prediction fails
+     */
+    Mat[] predict(Mat input) throws InferenceException;
+
+    /**
+     * Release any resources held by the predictor.
+     */
+    @Override
+    default void close() {}
+
+}
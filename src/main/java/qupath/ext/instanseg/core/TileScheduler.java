@@ -0,0 +1,100 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control the order in which tiles are processed, so that the most important regions finish first.
+ * <p>
+ * Regions are given in order of priority: tiles overlapping the first region are processed first,
+ * then those overlapping the second region, and so on, followed by all remaining tiles.
+ * Within each group, tiles closest to the centre of the region (or the first region, for remaining tiles)
+ * are processed first.
+ * <p>
+ * Priorities can be changed while a run is in progress (e.g. when the viewer is moved), and affect all tiles that
+ * have not yet started.
+ * This changes only the order of processing, not the results.
+ */
+public final class TileScheduler {
+
+    /**
+     * Spacing between the priorities of tiles in different regions, which is larger than any squared distance.
+     */
+    static final double LEVEL_SPACING = 1e12;
+
+    private volatile List<ImageRegion> regions = List.of();
+    private final AtomicInteger version = new AtomicInteger(0);
+
+    private TileScheduler() {}
+
+    /**
+     * Create a new scheduler, with no priority regions.
+     * @return the scheduler
+     */
+    public static TileScheduler create() {
+        return new TileScheduler();
+    }
+
+    /**
+     * Set the regions to prioritize, replacing any previous regions.
+     * @param regions the regions, most important first
+     */
+    public void prioritize(ImageRegion... regions) {
+        prioritize(List.of(regions));
+    }
+
+    /**
+     * Set the regions to prioritize, replacing any previous regions.
+     * @param regions the regions, most important first
+     */
+    public void prioritize(List<? extends ImageRegion> regions) {
+        this.regions = List.copyOf(regions);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Get the current regions to prioritize.
+     * @return the regions, most important first
+     */
+    public List<ImageRegion> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Get a counter that is incremented whenever priorities change.
+     * @return the current version
+     */
+    int getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Get the priority for a tile, where tiles with lower values should be processed first.
+     * The index of the region containing the tile can be found by dividing by {@link #LEVEL_SPACING}
+     * (where the number of regions indicates that the tile is not in any region).
+     * @param tile the tile ROI
+     * @return the priority
+     */
+    double getPriority(ROI tile) {
+        var regions = this.regions;
+        if (regions.isEmpty())
+            return 0;
+        int level = regions.size();
+        for (int i = 0; i < regions.size(); i++) {
+            var region = regions.get(i);
+            if (region.getZ() == tile.getZ() && region.getT() == tile.getT() &&
+                    region.intersects(tile.getBoundsX(), tile.getBoundsY(), tile.getBoundsWidth(), tile.getBoundsHeight())) {
+                level = i;
+                break;
+            }
+        }
+        var center = regions.get(Math.min(level, regions.size() - 1));
+        double dx = tile.getCentroidX() - (center.getX() + center.getWidth() / 2.0);
+        double dy = tile.getCentroidY() - (center.getY() + center.getHeight() / 2.0);
+        return level * LEVEL_SPACING + Math.min(dx * dx + dy * dy, LEVEL_SPACING - 1);
+    }
+
+}
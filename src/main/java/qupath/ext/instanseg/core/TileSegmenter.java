@@ -0,0 +1,201 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.global.opencv_core;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.experimental.pixels.PixelProcessorUtils;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.ops.ImageOp;
+import qupath.opencv.ops.ImageOps;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Segment individual tiles on demand, keeping the model loaded between tiles.
+ * <p>
+ * This is intended for previewing results interactively, where only a few tiles are needed at a time.
+ * Each tile is processed independently: objects are kept if their centroid falls within the tile,
+ * which avoids duplicates between neighbouring tiles without the cost of merging.
+ * <p>
+ * To match a full run as closely as possible, each tile is normalized and masked using the parent object that a
+ * full run would most likely use: a selected object containing the centre of the tile, or otherwise the smallest
+ * annotation containing it. If there is none, the whole image plane is used (as for a full run without a parent ROI).
+ * Results near tile boundaries may still differ slightly, since objects aren't merged between tiles.
+ * <p>
+ * Instances are created with {@link InstanSeg#createTileSegmenter(ImageData)}, and should be closed when no
+ * longer needed to release the model.
+ */
+public final class TileSegmenter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileSegmenter.class);
+
+    private final ImageData<BufferedImage> imageData;
+    private final List<ColorTransforms.ColorTransform> channels;
+    private final double downsample;
+    private final int tileDims;
+    private final int padding;
+    private final boolean randomColors;
+    private final InferenceBackend.Session session;
+    private final BlockingQueue<TilePredictor> predictors;
+    private final InstanSegOutputToObjectConverter converter;
+    private final Map<ROI, ImageOp> preprocessing = new ConcurrentHashMap<>();
+    private final Map<ImagePlane, ROI> planeROIs = new ConcurrentHashMap<>();
+
+    TileSegmenter(ImageData<BufferedImage> imageData, List<ColorTransforms.ColorTransform> channels,
+                  double downsample, int tileDims, int padding, boolean randomColors,
+                  InferenceBackend.Session session, BlockingQueue<TilePredictor> predictors,
+                  InstanSegOutputToObjectConverter converter) {
+        this.imageData = imageData;
+        this.channels = List.copyOf(channels);
+        this.downsample = downsample;
+        this.tileDims = tileDims;
+        this.padding = padding;
+        this.randomColors = randomColors;
+        this.session = session;
+        this.predictors = predictors;
+        this.converter = converter;
+    }
+
+    /**
+     * Get the image that this segmenter was created for.
+     * @return the image data
+     */
+    public ImageData<BufferedImage> getImageData() {
+        return imageData;
+    }
+
+    /**
+     * Get the downsample at which the model is applied.
+     * @return the downsample
+     */
+    public double getDownsample() {
+        return downsample;
+    }
+
+    /**
+     * Get the width and height of a tile (excluding padding) in full-resolution pixels.
+     * Tiles should be requested on a grid with this spacing.
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return (int)Math.round((tileDims - padding * 2.0) * downsample);
+    }
+
+    /**
+     * Segment a single tile.
+     * @param tile the tile region, in full-resolution pixel coordinates and excluding padding
+     * @return the objects with centroids inside the tile
+     * @throws IOException if the image could not be read
+     * @throws InferenceException if prediction failed
+     * @throws InterruptedException if interrupted while waiting for a predictor
+     */
+    public List<PathObject> segmentTile(ImageRegion tile) throws IOException, InferenceException, InterruptedException {
+        var server = imageData.getServer();
+        int pad = (int)Math.round(padding * downsample);
+        int x = Math.max(0, tile.getX() - pad);
+        int y = Math.max(0, tile.getY() - pad);
+        int x2 = Math.min(server.getWidth(), tile.getMaxX() + pad);
+        int y2 = Math.min(server.getHeight(), tile.getMaxY() + pad);
+        if (x2 <= x || y2 <= y)
+            return List.of();
+        var request = RegionRequest.createInstance(server.getPath(), downsample, x, y, x2 - x, y2 - y,
+                tile.getImagePlane());
+        var parentROI = getParentROI(tile);
+
+        List<PathObject> objects;
+        try (var scope = new PointerScope()) {
+            var mat = ImageOps.buildImageDataOp(channels).apply(imageData, request);
+            mat = getPreprocessing(parentROI, tile).apply(mat);
+            var predictor = predictors.take();
+            try {
+                var output = predictor.predict(mat);
+                output[0].convertTo(output[0], opencv_core.CV_32S);
+                objects = converter.convertToObjects(request, output);
+            } finally {
+                predictors.put(predictor);
+            }
+        }
+        List<PathObject> inside = new ArrayList<>();
+        for (var pathObject : objects) {
+            var roi = pathObject.getROI();
+            if (tile.contains((int)roi.getCentroidX(), (int)roi.getCentroidY(), roi.getZ(), roi.getT())) {
+                if (parentROI == null)
+                    inside.add(pathObject);
+                else
+                    PixelProcessorUtils.maskObject(parentROI, pathObject).ifPresent(inside::add);
+            }
+        }
+        if (randomColors) {
+            PathObjectTools.setRandomColors(inside, new Random(tile.hashCode()));
+        }
+        return inside;
+    }
+
+    /**
+     * Find the ROI of the parent object that a full run would most likely use for a tile.
+     * @return the ROI of a selected object or annotation containing the tile centre, or null if there is none
+     */
+    private ROI getParentROI(ImageRegion tile) {
+        double cx = tile.getX() + tile.getWidth() / 2.0;
+        double cy = tile.getY() + tile.getHeight() / 2.0;
+        var hierarchy = imageData.getHierarchy();
+        // Prefer selected objects, since these are what a full run would process
+        for (var selected : hierarchy.getSelectionModel().getSelectedObjects()) {
+            var roi = selected.getROI();
+            if (roi != null && roi.getZ() == tile.getZ() && roi.getT() == tile.getT() && roi.contains(cx, cy))
+                return roi;
+        }
+        return PathObjectTools.getObjectsForLocation(hierarchy, cx, cy, tile.getZ(), tile.getT(), 0).stream()
+                .filter(PathObject::isAnnotation)
+                .map(PathObject::getROI)
+                .filter(Objects::nonNull)
+                .min(Comparator.comparingDouble(ROI::getArea))
+                .orElse(null);
+    }
+
+    /**
+     * Get the normalization for a parent ROI, in the same way as for a full run, or for the whole image plane if
+     * there is no parent.
+     */
+    private ImageOp getPreprocessing(ROI parentROI, ImageRegion tile) {
+        if (parentROI == null) {
+            var server = imageData.getServer();
+            parentROI = planeROIs.computeIfAbsent(tile.getImagePlane(),
+                    plane -> ROIs.createRectangleROI(0, 0, server.getWidth(), server.getHeight(), plane));
+        }
+        return preprocessing.computeIfAbsent(parentROI, roi -> {
+            var norm = TilePredictionProcessor.getNormalization(imageData, roi, channels,
+                    TilePredictionProcessor.LOW_PERCENTILE, TilePredictionProcessor.HIGH_PERCENTILE);
+            return TilePredictionProcessor.createPreprocessing(norm);
+        });
+    }
+
+    @Override
+    public void close() {
+        for (var predictor : predictors) {
+            predictor.close();
+        }
+        predictors.clear();
+        session.close();
+        logger.debug("Tile segmenter closed");
+    }
+
+}
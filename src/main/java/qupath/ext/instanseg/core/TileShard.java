@@ -0,0 +1,112 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A deterministic spatial partition of the tiles created for a collection of parent objects.
+ * <p>
+ * The bounding box containing all the parent objects is split into {@code shardCount} bands of equal size
+ * along its longest axis, and each tile is assigned to the band containing its centroid.
+ * This means that each tile is processed by exactly one shard, provided that all shards are run using the same
+ * parent objects and tiling parameters.
+ * <p>
+ * Tiles along the seam between two shards still include their usual padding, which provides the overlap band needed
+ * to reconcile boundary objects when the partial results are merged.
+ *
+ * @param shardIndex 0-based index of the shard to process
+ * @param shardCount total number of shards
+ */
+record TileShard(int shardIndex, int shardCount) {
+
+    TileShard {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1, but was " + shardCount);
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Shard index must be between 0 and " + (shardCount - 1) + ", but was " + shardIndex);
+        }
+    }
+
+    /**
+     * Create a filter that accepts only the tiles belonging to this shard.
+     * @param parents the parent objects that will be tiled; these determine the extent that is partitioned
+     * @return a predicate that tests the (unpadded) tile ROI
+     */
+    Predicate<ROI> createTileFilter(Collection<? extends PathObject> parents) {
+        if (shardCount == 1 || parents.isEmpty()) {
+            return roi -> true;
+        }
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (var parent : parents) {
+            var roi = parent.getROI();
+            minX = Math.min(minX, roi.getBoundsX());
+            minY = Math.min(minY, roi.getBoundsY());
+            maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+            maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+        }
+        boolean splitX = maxX - minX >= maxY - minY;
+        double start = splitX ? minX : minY;
+        double extent = Math.max(1.0, splitX ? maxX - minX : maxY - minY);
+        return roi -> {
+            double centroid = splitX ? roi.getCentroidX() : roi.getCentroidY();
+            int band = (int)Math.floor((centroid - start) / extent * shardCount);
+            return Math.min(Math.max(band, 0), shardCount - 1) == shardIndex;
+        };
+    }
+
+    /**
+     * Assign the objects detected by all shards to the parent objects, so that each object has exactly one parent.
+     * <p>
+     * An object belongs to the smallest parent that contains its centroid on the same image plane (or the first,
+     * if several are the same size). A parent without a ROI (e.g. the root object, when processing the whole image)
+     * contains every object, but only receives objects that aren't inside any other parent.
+     * Objects outside all parents are discarded.
+     * @param parents the parent objects that were passed to each shard
+     * @param objects the objects detected by all shards
+     * @return the objects for each parent, with an entry for every parent
+     */
+    static Map<PathObject, List<PathObject>> assignToParents(Collection<? extends PathObject> parents,
+                                                            Collection<? extends PathObject> objects) {
+        Map<PathObject, List<PathObject>> assigned = new LinkedHashMap<>();
+        for (var parent : parents) {
+            assigned.put(parent, new ArrayList<>());
+        }
+        for (var pathObject : objects) {
+            var roi = pathObject.getROI();
+            PathObject best = null;
+            double bestArea = Double.POSITIVE_INFINITY;
+            for (var parent : parents) {
+                var parentROI = parent.getROI();
+                double area;
+                if (parentROI == null) {
+                    area = Double.MAX_VALUE;
+                } else if (parentROI.getZ() == roi.getZ() && parentROI.getT() == roi.getT() &&
+                        parentROI.contains(roi.getCentroidX(), roi.getCentroidY())) {
+                    area = parentROI.getArea();
+                } else {
+                    continue;
+                }
+                if (area < bestArea) {
+                    best = parent;
+                    bestArea = area;
+                }
+            }
+            if (best != null) {
+                assigned.get(best).add(pathObject);
+            }
+        }
+        return assigned;
+    }
+
+}
@@ -0,0 +1,179 @@
+package qupath.ext.instanseg.core;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * A cheap pre-screen to skip tiles that contain little or no foreground, before any pixels are read at full resolution.
+ * <p>
+ * A coarse foreground mask is created from the low-resolution thumbnail that is already read for normalization.
+ * A pixel is considered foreground if any selected channel passes its threshold: for brightfield images this means
+ * being darker than the threshold, otherwise it means being brighter.
+ * Tiles are skipped if the proportion of foreground pixels they contain (including padding) is below the minimum
+ * coverage.
+ */
+class TissueScreen {
+
+    private final double minCoverage;
+    private final double[] thresholds;
+
+    /**
+     * Create a tissue screen.
+     * @param minCoverage the minimum proportion of foreground pixels needed to process a tile, between 0 and 1
+     * @param thresholds the threshold for each input channel; if empty, thresholds are determined automatically
+     *                   using Otsu's method
+     */
+    TissueScreen(double minCoverage, double... thresholds) {
+        if (minCoverage < 0 || minCoverage > 1)
+            throw new IllegalArgumentException("Minimum coverage must be between 0 and 1, but was " + minCoverage);
+        this.minCoverage = minCoverage;
+        this.thresholds = thresholds.clone();
+    }
+
+    /**
+     * Create a foreground mask for a parent object.
+     * @param imageData the image data
+     * @param thumbnail the thumbnail for the parent object
+     * @param channels the input channels
+     * @return the mask
+     * @throws IllegalArgumentException if thresholds were specified, but not for every channel
+     */
+    Mask createMask(ImageData<BufferedImage> imageData, TilePredictionProcessor.Thumbnail thumbnail,
+                    List<ColorTransforms.ColorTransform> channels) throws IllegalArgumentException {
+        if (thresholds.length > 0 && thresholds.length != channels.size())
+            throw new IllegalArgumentException("Expected " + channels.size() + " tissue thresholds, but got " + thresholds.length);
+        boolean darkForeground = imageData.isBrightfield();
+        int width = thumbnail.image().getWidth();
+        int height = thumbnail.image().getHeight();
+        boolean[] roiMask = thumbnail.roiMask();
+        boolean[] foreground = new boolean[width * height];
+        for (int c = 0; c < channels.size(); c++) {
+            float[] pixels = thumbnail.extractChannel(imageData.getServer(), channels.get(c));
+            double threshold = thresholds.length == 0 ? otsuThreshold(pixels, roiMask) : thresholds[c];
+            for (int i = 0; i < pixels.length; i++) {
+                if (darkForeground ? pixels[i] < threshold : pixels[i] > threshold)
+                    foreground[i] = true;
+            }
+        }
+        // Use a summed area table so we can get the coverage of any tile quickly
+        int[] integral = new int[(width + 1) * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            int rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (foreground[i] && roiMask[i])
+                    rowSum++;
+                integral[(y + 1) * (width + 1) + x + 1] = integral[y * (width + 1) + x + 1] + rowSum;
+            }
+        }
+        return new Mask(thumbnail.request(), width, height, integral, minCoverage);
+    }
+
+    /**
+     * Compute a threshold using Otsu's method, considering only pixels within the ROI.
+     */
+    private static double otsuThreshold(float[] pixels, boolean[] roiMask) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < pixels.length; i++) {
+            if (roiMask[i] && Float.isFinite(pixels[i])) {
+                min = Math.min(min, pixels[i]);
+                max = Math.max(max, pixels[i]);
+            }
+        }
+        if (!(max > min))
+            return min;
+        int nBins = 256;
+        long[] histogram = new long[nBins];
+        double binWidth = (max - min) / nBins;
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            if (roiMask[i] && Float.isFinite(pixels[i])) {
+                int bin = (int)Math.min(nBins - 1, (pixels[i] - min) / binWidth);
+                histogram[bin]++;
+                total++;
+                sum += bin;
+            }
+        }
+        long countBelow = 0;
+        double sumBelow = 0;
+        double bestVariance = -1;
+        int bestBin = 0;
+        for (int bin = 0; bin < nBins; bin++) {
+            countBelow += histogram[bin];
+            if (countBelow == 0)
+                continue;
+            long countAbove = total - countBelow;
+            if (countAbove == 0)
+                break;
+            sumBelow += (double)bin * histogram[bin];
+            double meanBelow = sumBelow / countBelow;
+            double meanAbove = (sum - sumBelow) / countAbove;
+            double variance = (double)countBelow * countAbove * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                bestBin = bin;
+            }
+        }
+        return min + (bestBin + 1) * binWidth;
+    }
+
+    /**
+     * A coarse foreground mask for one parent object.
+     */
+    static class Mask {
+
+        private final RegionRequest request;
+        private final int width;
+        private final int height;
+        private final int[] integral;
+        private final double minCoverage;
+
+        private Mask(RegionRequest request, int width, int height, int[] integral, double minCoverage) {
+            this.request = request;
+            this.width = width;
+            this.height = height;
+            this.integral = integral;
+            this.minCoverage = minCoverage;
+        }
+
+        /**
+         * Get the proportion of a region that is foreground.
+         * @param region the region, in full-resolution pixel coordinates
+         * @return the foreground coverage, or 1 if the region doesn't overlap the mask
+         */
+        double getCoverage(RegionRequest region) {
+            double downsample = request.getDownsample();
+            int x1 = clip((int)Math.floor((region.getMinX() - request.getMinX()) / downsample), width);
+            int y1 = clip((int)Math.floor((region.getMinY() - request.getMinY()) / downsample), height);
+            int x2 = clip((int)Math.ceil((region.getMaxX() - request.getMinX()) / downsample), width);
+            int y2 = clip((int)Math.ceil((region.getMaxY() - request.getMinY()) / downsample), height);
+            long area = (long)(x2 - x1) * (y2 - y1);
+            if (area <= 0)
+                return 1.0;
+            int w = width + 1;
+            long count = integral[y2 * w + x2] - integral[y1 * w + x2] - integral[y2 * w + x1] + integral[y1 * w + x1];
+            return (double)count / area;
+        }
+
+        /**
+         * Check whether a tile contains enough foreground to be processed.
+         * @param region the tile region, including padding
+         * @return true if the tile should be processed
+         */
+        boolean accept(RegionRequest region) {
+            return getCoverage(region) >= minCoverage;
+        }
+
+        private static int clip(int value, int max) {
+            return Math.max(0, Math.min(value, max));
+        }
+
+    }
+
+}
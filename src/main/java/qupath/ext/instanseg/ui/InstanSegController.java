@@ -17,6 +17,7 @@ import javafx.concurrent.Worker;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Cursor;
+import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonBar;
 import javafx.scene.control.ButtonType;
@@ -33,12 +34,15 @@ import javafx.scene.control.Tooltip;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.web.WebView;
+import javafx.stage.Window;
 import org.commonmark.renderer.html.HtmlRenderer;
 import org.controlsfx.control.CheckComboBox;
 import org.controlsfx.control.PopOver;
 import org.controlsfx.control.SearchableComboBox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.instanseg.core.InferenceBackends;
+import qupath.ext.instanseg.core.InstanSeg;
 import qupath.ext.instanseg.core.InstanSegModel;
 import qupath.ext.instanseg.core.PytorchManager;
 import qupath.fx.dialogs.Dialogs;
@@ -76,10 +80,12 @@ import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -99,6 +105,8 @@ public class InstanSegController extends BorderPane {
     @FXML
     private Button runButton;
     @FXML
+    private ToggleButton previewButton;
+    @FXML
     private Button downloadButton;
     @FXML
     private Label labelMessage;
@@ -156,6 +164,9 @@ public class InstanSegController extends BorderPane {
 
     private final BooleanProperty requestingPyTorch = new SimpleBooleanProperty(false);
 
+    private InstanSegPreviewOverlay previewOverlay;
+    private final AtomicLong previewRequest = new AtomicLong(0);
+
     // Listener for property changes in the current ImageData; these can be required to update the input channels
     private final PropertyChangeListener imageDataPropertyChangeListener = this::handleImageDataPropertyChange;
 
@@ -206,6 +217,7 @@ public class InstanSegController extends BorderPane {
         // Run button
         configureRunning();
         configureRunMessageLabel();
+        configurePreview();
 
         // Options
         configureTileSizes();
@@ -821,7 +833,8 @@ public class InstanSegController extends BorderPane {
             Dialogs.showWarningNotification(resources.getString("title"), resources.getString("error.no-pixel-size"));
         }
 
-        if (!PytorchManager.hasPyTorchEngine()) {
+        boolean requiresPyTorch = requiresPyTorch(model);
+        if (requiresPyTorch && !PytorchManager.hasPyTorchEngine()) {
             if (!Dialogs.showConfirmDialog(resources.getString("title"), resources.getString("ui.pytorch"))) {
                 Dialogs.showWarningNotification(resources.getString("title"), resources.getString("ui.pytorch-popup"));
                 return;
@@ -878,7 +891,7 @@ public class InstanSegController extends BorderPane {
                 makeMeasurements, randomColors, comboOutputType.getValue());
 
         // Ensure PyTorch engine is available before running anything
-        CompletableFuture.supplyAsync(this::ensurePyTorchAvailable, ForkJoinPool.commonPool())
+        CompletableFuture.supplyAsync(() -> !requiresPyTorch || ensurePyTorchAvailable(), ForkJoinPool.commonPool())
                         .thenAccept((Boolean success) -> {
                             if (success) {
                                 // Reset the pending task when it completes (either successfully or not)
@@ -895,6 +908,133 @@ public class InstanSegController extends BorderPane {
                         });
     }
 
+    private void configurePreview() {
+        previewButton.disableProperty().bind(
+                qupath.imageDataProperty().isNull()
+                        .or(deviceChoices.getSelectionModel().selectedItemProperty().isNull())
+                        .or(selectedModel.isNull())
+                        .or(selectedModelIsAvailable.not()) // Don't download models for a preview
+                        .or(requestingPyTorch)
+        );
+        previewButton.disableProperty().addListener((v, o, n) -> {
+            if (n)
+                previewButton.setSelected(false);
+        });
+        previewButton.selectedProperty().addListener((v, o, n) -> updatePreview());
+
+        // Anything that could change the results invalidates the preview
+        selectedModel.addListener((v, o, n) -> updatePreview());
+        qupath.imageDataProperty().addListener((v, o, n) -> updatePreview());
+        deviceChoices.getSelectionModel().selectedItemProperty().addListener((v, o, n) -> updatePreview());
+        comboInputChannels.getCheckModel().getCheckedItems().addListener((ListChangeListener<InputChannelItem>) c -> updatePreview());
+        comboOutputChannels.getCheckModel().getCheckedItems().addListener((ListChangeListener<OutputChannelItem>) c -> updatePreview());
+        comboOutputType.valueProperty().addListener((v, o, n) -> updatePreview());
+        randomColorsCheckBox.selectedProperty().addListener((v, o, n) -> updatePreview());
+        InstanSegPreferences.tileSizeProperty().addListener((v, o, n) -> updatePreview());
+        InstanSegPreferences.tilePaddingProperty().addListener((v, o, n) -> updatePreview());
+
+        // Release the preview model while a full run has its own copy loaded, and recreate it afterwards
+        pendingTask.addListener((v, o, n) -> FXUtils.runOnApplicationThread(this::updatePreview));
+        // Release the preview model when the dialog is closed
+        previewButton.sceneProperty()
+                .flatMap(Scene::windowProperty)
+                .flatMap(Window::showingProperty)
+                .addListener((v, o, n) -> {
+                    if (!Boolean.TRUE.equals(n))
+                        previewButton.setSelected(false);
+                });
+    }
+
+    /**
+     * Create (or recreate) the preview overlay using the current settings, or remove it if the preview is turned off.
+     * The model is loaded in the background; the overlay is blank until it is ready.
+     * The overlay is also removed while a full run is in progress, so that two copies of the model aren't loaded.
+     */
+    private void updatePreview() {
+        long request = previewRequest.incrementAndGet();
+        var viewer = qupath.getViewer();
+        var imageData = viewer == null ? null : viewer.getImageData();
+        var model = selectedModel.get();
+        var device = deviceChoices.getSelectionModel().getSelectedItem();
+        if (!previewButton.isSelected() || pendingTask.get() != null ||
+                imageData == null || model == null || !model.isValid() || device == null) {
+            removePreview();
+            return;
+        }
+        List<InputChannelItem> selectedChannels = comboInputChannels
+                .getCheckModel().getCheckedItems()
+                .stream()
+                .filter(Objects::nonNull)
+                .toList();
+        int nModelChannels = model.getNumChannels().orElse(InstanSegModel.ANY_CHANNELS);
+        if (nModelChannels != InstanSegModel.ANY_CHANNELS && nModelChannels != selectedChannels.size()) {
+            // The message label already explains the problem
+            removePreview();
+            return;
+        }
+
+        if (previewOverlay == null || previewOverlay.getViewer() != viewer) {
+            removePreview();
+            previewOverlay = new InstanSegPreviewOverlay(viewer);
+            viewer.getCustomOverlayLayers().add(previewOverlay);
+        }
+        var overlay = previewOverlay;
+        overlay.setSegmenter(null);
+
+        int engineThreads = InstanSegPreferences.engineThreadsProperty().get();
+        var builder = InstanSeg.builder()
+                .model(model)
+                .device(device)
+                .inputChannels(selectedChannels.stream().map(InputChannelItem::getTransform).toList())
+                .outputChannels(InstanSegTask.getOutputChannels(model, comboOutputChannels.getCheckModel().getCheckedIndices()))
+                .tileDims(InstanSegPreferences.tileSizeProperty().get())
+                .interTilePadding(InstanSegPreferences.tilePaddingProperty().get())
+                .randomColors(randomColorsCheckBox.isSelected())
+                .outputType(comboOutputType.getValue());
+        if (engineThreads > 0) {
+            builder.engineThreads(engineThreads, 1);
+        }
+        boolean requiresPyTorch = requiresPyTorch(model);
+        CompletableFuture.supplyAsync(() -> {
+                    if (requiresPyTorch && !ensurePyTorchAvailable())
+                        return null;
+                    try {
+                        return builder.build().createTileSegmenter(imageData);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, ForkJoinPool.commonPool())
+                .whenComplete((segmenter, e) -> FXUtils.runOnApplicationThread(() -> {
+                    if (request != previewRequest.get() || overlay != previewOverlay) {
+                        // Settings changed while loading
+                        if (segmenter != null)
+                            segmenter.close();
+                    } else if (e != null) {
+                        logger.error("Unable to create preview", e);
+                        Dialogs.showErrorNotification(resources.getString("title"), resources.getString("ui.preview.error"));
+                        previewButton.setSelected(false);
+                    } else {
+                        overlay.setSegmenter(segmenter);
+                    }
+                }));
+    }
+
+    private void removePreview() {
+        if (previewOverlay != null) {
+            previewOverlay.getViewer().getCustomOverlayLayers().remove(previewOverlay);
+            previewOverlay.close();
+            previewOverlay = null;
+        }
+    }
+
+    /**
+     * Check if a model will be run with PyTorch, and so requires the engine to be downloaded.
+     * This is not the case if the model is only available in a format used by another backend (e.g. ONNX).
+     */
+    private static boolean requiresPyTorch(InstanSegModel model) {
+        return InferenceBackends.PYTORCH.equals(InferenceBackends.getDefaultBackend(model).getName());
+    }
+
     private boolean ensurePyTorchAvailable() {
         try {
             FXUtils.runOnApplicationThread(() -> requestingPyTorch.set(true));
@@ -106,6 +106,22 @@ public class InstanSegExtension implements QuPathExtension, GitHubProject {
 						.description(resources.getString("ui.prefs.permit-online.description"))
 						.category(resources.getString("title"))
 						.build());
+		qupath.getPreferencePane()
+				.getPropertySheet()
+				.getItems()
+				.add(new PropertyItemBuilder<>(InstanSegPreferences.engineThreadsProperty(), Integer.class)
+						.name(resources.getString("ui.prefs.engine-threads"))
+						.description(resources.getString("ui.prefs.engine-threads.description"))
+						.category(resources.getString("title"))
+						.build());
+		qupath.getPreferencePane()
+				.getPropertySheet()
+				.getItems()
+				.add(new PropertyItemBuilder<>(InstanSegPreferences.prioritizeViewerProperty(), Boolean.class)
+						.name(resources.getString("ui.prefs.prioritize-viewer"))
+						.description(resources.getString("ui.prefs.prioritize-viewer.description"))
+						.category(resources.getString("title"))
+						.build());
 	}
 
 
@@ -36,6 +36,21 @@ class InstanSegPreferences {
             "instanseg.num.threads",
             GeneralTools.clipValue(Runtime.getRuntime().availableProcessors() / 2, 2, 4));
 
+    /**
+     * Number of intra-op threads for the inference engine, or 0 to use the engine default.
+     */
+    private static final IntegerProperty engineThreadsProperty = PathPrefs.createPersistentPreference(
+            "instanseg.engine.threads",
+            0);
+
+    /**
+     * Whether tiles visible in the viewer should be processed first.
+     * This changes the order in which tasks are run, and so is off by default.
+     */
+    private static final BooleanProperty prioritizeViewerProperty = PathPrefs.createPersistentPreference(
+            "instanseg.prioritize.viewer",
+            false);
+
     private static final IntegerProperty tileSizeProperty = PathPrefs.createPersistentPreference(
             "intanseg.tile.size",
             512);
@@ -81,6 +96,14 @@ class InstanSegPreferences {
         return numThreadsProperty;
     }
 
+    static IntegerProperty engineThreadsProperty() {
+        return engineThreadsProperty;
+    }
+
+    static BooleanProperty prioritizeViewerProperty() {
+        return prioritizeViewerProperty;
+    }
+
     static IntegerProperty tileSizeProperty() {
         return tileSizeProperty;
     }
@@ -0,0 +1,202 @@
+package qupath.ext.instanseg.ui;
+
+import javafx.application.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.instanseg.core.TileSegmenter;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.PathObjectPainter;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An overlay that previews InstanSeg results for the tiles that are visible in a viewer.
+ * <p>
+ * Tiles are segmented lazily in the background as the user pans, closest to the centre of the view first,
+ * and results are kept in a least-recently-used cache.
+ * Tiles that are no longer visible by the time they reach the front of the queue are skipped.
+ * If too many tiles are visible (i.e. the viewer is zoomed out too far), no new tiles are requested.
+ */
+class InstanSegPreviewOverlay extends AbstractOverlay {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanSegPreviewOverlay.class);
+
+    private static final int MAX_CACHED_TILES = 256;
+
+    private static final int MAX_VISIBLE_TILES = 64;
+
+    private final QuPathViewer viewer;
+
+    // A single thread, so that tiles are processed in order and the segmenter can be closed safely after them
+    private final ExecutorService pool = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("instanseg-preview", true));
+
+    private final Map<TileKey, List<PathObject>> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(MAX_CACHED_TILES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<TileKey, List<PathObject>> eldest) {
+                    return size() > MAX_CACHED_TILES;
+                }
+            });
+
+    private final Set<TileKey> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger generation = new AtomicInteger(0);
+
+    private volatile Set<TileKey> visibleTiles = Set.of();
+
+    private volatile TileSegmenter segmenter;
+
+    private record TileKey(int generation, ImageRegion region) {}
+
+    /**
+     * Create a preview overlay for a viewer.
+     * @param viewer the viewer
+     */
+    InstanSegPreviewOverlay(QuPathViewer viewer) {
+        super(viewer.getOverlayOptions());
+        this.viewer = viewer;
+    }
+
+    /**
+     * Get the viewer this overlay was created for.
+     * @return the viewer
+     */
+    QuPathViewer getViewer() {
+        return viewer;
+    }
+
+    /**
+     * Set the segmenter used to compute tiles, invalidating any cached tiles.
+     * Any previous segmenter is closed once its pending tiles have been skipped.
+     * @param segmenter the new segmenter, or null to stop computing tiles
+     */
+    void setSegmenter(TileSegmenter segmenter) {
+        var previous = this.segmenter;
+        this.segmenter = segmenter;
+        invalidate();
+        if (previous != null) {
+            pool.execute(previous::close);
+        }
+    }
+
+    /**
+     * Discard all cached tiles, so they are recomputed when next visible.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+        cache.clear();
+        Platform.runLater(viewer::repaint);
+    }
+
+    /**
+     * Close the current segmenter and stop the background thread.
+     */
+    void close() {
+        setSegmenter(null);
+        pool.shutdown();
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+                             ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        var segmenter = this.segmenter;
+        if (segmenter == null || imageData != segmenter.getImageData())
+            return;
+
+        List<TileKey> tiles = getVisibleTiles(segmenter, imageRegion);
+        boolean requestTiles = tiles.size() <= MAX_VISIBLE_TILES;
+        visibleTiles = requestTiles ? Set.copyOf(tiles) : Set.of();
+
+        var g = (Graphics2D)g2d.create();
+        try {
+            double opacity = getOpacity();
+            if (opacity < 1) {
+                g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float)opacity));
+            }
+            OverlayOptions options = getOverlayOptions();
+            for (var key : tiles) {
+                var objects = cache.get(key);
+                if (objects != null) {
+                    PathObjectPainter.paintSpecifiedObjects(g, objects, options, null, downsampleFactor);
+                } else if (requestTiles && pending.add(key)) {
+                    pool.execute(() -> computeTile(segmenter, key));
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Get the tiles overlapping a region, sorted by distance from its centre.
+     */
+    private List<TileKey> getVisibleTiles(TileSegmenter segmenter, ImageRegion region) {
+        var server = segmenter.getImageData().getServer();
+        int tileSize = segmenter.getTileSize();
+        int xStart = Math.max(0, region.getX() / tileSize);
+        int yStart = Math.max(0, region.getY() / tileSize);
+        int xEnd = Math.min(server.getWidth(), region.getMaxX());
+        int yEnd = Math.min(server.getHeight(), region.getMaxY());
+        var plane = ImagePlane.getPlane(region.getZ(), region.getT());
+        int gen = generation.get();
+        List<TileKey> tiles = new ArrayList<>();
+        for (int y = yStart * tileSize; y < yEnd; y += tileSize) {
+            for (int x = xStart * tileSize; x < xEnd; x += tileSize) {
+                int w = Math.min(tileSize, server.getWidth() - x);
+                int h = Math.min(tileSize, server.getHeight() - y);
+                tiles.add(new TileKey(gen, ImageRegion.createInstance(x, y, w, h, plane.getZ(), plane.getT())));
+            }
+        }
+        double cx = region.getX() + region.getWidth() / 2.0;
+        double cy = region.getY() + region.getHeight() / 2.0;
+        tiles.sort(Comparator.comparingDouble(k -> {
+            double dx = k.region().getX() + k.region().getWidth() / 2.0 - cx;
+            double dy = k.region().getY() + k.region().getHeight() / 2.0 - cy;
+            return dx * dx + dy * dy;
+        }));
+        return tiles;
+    }
+
+    private void computeTile(TileSegmenter segmenter, TileKey key) {
+        try {
+            // Skip tiles that are stale or have scrolled out of view since they were requested
+            if (segmenter != this.segmenter || key.generation() != generation.get() || !visibleTiles.contains(key))
+                return;
+            var objects = segmenter.segmentTile(key.region());
+            if (key.generation() == generation.get()) {
+                cache.put(key, objects);
+                Platform.runLater(viewer::repaint);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.warn("Unable to preview tile {}: {}", key.region(), e.getMessage());
+            logger.debug(e.getMessage(), e);
+            // Cache an empty result, so we don't keep retrying the same tile
+            cache.put(key, List.of());
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+}
@@ -6,15 +6,23 @@ import org.slf4j.LoggerFactory;
 import qupath.ext.instanseg.core.InstanSeg;
 import qupath.ext.instanseg.core.InstanSegModel;
 import qupath.ext.instanseg.core.InstanSegResults;
+import qupath.ext.instanseg.core.TileScheduler;
 import qupath.fx.dialogs.Dialogs;
+import qupath.fx.utils.FXUtils;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.TaskRunnerFX;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.QuPathViewerListener;
 import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
 import qupath.lib.plugins.workflow.DefaultScriptableWorkflowStep;
+import qupath.lib.regions.ImageRegion;
 
+import java.awt.Shape;
 import java.awt.image.BufferedImage;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -63,22 +71,12 @@ class InstanSegTask extends Task<Void> {
             Dialogs.showErrorNotification(resources.getString("title"), resources.getString("error.querying-local"));
             return null;
         }
-        // TODO: HANDLE OUTPUT CHANNELS!
-        // todo: Unclear what this means
-        int nOutputs = model.getOutputChannels().orElse(1);
-        int[] outputChannels = new int[0];
-        if (nOutputs <= 0) {
-            logger.warn("Unknown output channels for {}", model);
-            nOutputs = 1;
-        }
-        int nChecked = this.outputChannels.size();
-        if (nChecked > 0 && nChecked < nOutputs) {
-            outputChannels = this.outputChannels.stream().mapToInt(Integer::intValue).toArray();
-        }
+        int[] outputChannels = getOutputChannels(model, this.outputChannels);
         int tileSize = InstanSegPreferences.tileSizeProperty().get();
         int tilePadding = InstanSegPreferences.tilePaddingProperty().get();
+        int engineThreads = InstanSegPreferences.engineThreadsProperty().get();
 
-        var instanSeg = InstanSeg.builder()
+        var builder = InstanSeg.builder()
                 .model(model)
                 .device(device)
                 .inputChannels(channels.stream().map(InputChannelItem::getTransform).toList())
@@ -88,8 +86,17 @@ class InstanSegTask extends Task<Void> {
                 .taskRunner(taskRunner)
                 .makeMeasurements(makeMeasurements)
                 .randomColors(randomColors)
-                .outputType(outputType)
-                .build();
+                .outputType(outputType);
+        // Engine threads apply to the whole process, so only change them if requested explicitly
+        if (engineThreads > 0) {
+            builder.engineThreads(engineThreads, 1);
+        }
+        // Only change the order of tiles if requested, since this needs a different task runner
+        var scheduler = InstanSegPreferences.prioritizeViewerProperty().get() ? TileScheduler.create() : null;
+        if (scheduler != null) {
+            builder.tileScheduler(scheduler);
+        }
+        var instanSeg = builder.build();
 
         String cmd = String.format("""
                             qupath.ext.instanseg.core.InstanSeg.builder()
@@ -99,7 +106,7 @@ class InstanSegTask extends Task<Void> {
                                 .outputChannels(%s)
                                 .tileDims(%d)
                                 .interTilePadding(%d)
-                                .nThreads(%d)
+                                .nThreads(%d)%s
                                 .makeMeasurements(%s)
                                 .randomColors(%s)
                                 .outputType("%s")
@@ -115,11 +122,30 @@ class InstanSegTask extends Task<Void> {
                 tileSize,
                 tilePadding,
                 nThreads,
+                engineThreads > 0 ? String.format("\n    .engineThreads(%d, 1)", engineThreads) : "",
                 makeMeasurements,
                 randomColors,
                 outputType
         ).strip();
-        InstanSegResults results = instanSeg.detectObjects(imageData, selectedObjects);
+        var viewer = scheduler == null ? null : QuPathGUI.getInstance().getAllViewers().stream()
+                .filter(v -> v.getImageData() == imageData)
+                .findFirst()
+                .orElse(null);
+        var viewerListener = scheduler == null ? null : new SchedulingViewerListener(scheduler,
+                imageData.getHierarchy().getSelectionModel().getSelectedObject());
+        if (viewer != null) {
+            FXUtils.runOnApplicationThread(() -> {
+                viewer.addViewerListener(viewerListener);
+                viewerListener.visibleRegionChanged(viewer, viewer.getDisplayedRegionShape());
+            });
+        }
+        InstanSegResults results;
+        try {
+            results = instanSeg.detectObjects(imageData, selectedObjects);
+        } finally {
+            if (viewer != null)
+                FXUtils.runOnApplicationThread(() -> viewer.removeViewerListener(viewerListener));
+        }
         imageData.getHierarchy().fireHierarchyChangedEvent(this);
         imageData.getHistoryWorkflow()
                 .addStep(
@@ -135,6 +161,66 @@ class InstanSegTask extends Task<Void> {
         return null;
     }
 
+    /**
+     * Get the output channels to request from the model, or an empty array if all channels should be output.
+     * @param model the model
+     * @param checkedOutputChannels indices of the output channels selected by the user
+     * @return the output channel indices
+     */
+    static int[] getOutputChannels(InstanSegModel model, List<Integer> checkedOutputChannels) {
+        // TODO: HANDLE OUTPUT CHANNELS!
+        // todo: Unclear what this means
+        int nOutputs = model.getOutputChannels().orElse(1);
+        int[] outputChannels = new int[0];
+        if (nOutputs <= 0) {
+            logger.warn("Unknown output channels for {}", model);
+            nOutputs = 1;
+        }
+        int nChecked = checkedOutputChannels.size();
+        if (nChecked > 0 && nChecked < nOutputs) {
+            outputChannels = checkedOutputChannels.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return outputChannels;
+    }
+
+    /**
+     * Prioritize tiles that are visible in the viewer, followed by those in the selected object.
+     */
+    private static class SchedulingViewerListener implements QuPathViewerListener {
+
+        private final TileScheduler scheduler;
+        private final ImageRegion selectedRegion;
+
+        private SchedulingViewerListener(TileScheduler scheduler, PathObject selectedObject) {
+            this.scheduler = scheduler;
+            var roi = selectedObject == null ? null : selectedObject.getROI();
+            this.selectedRegion = roi == null ? null : ImageRegion.createInstance(roi);
+        }
+
+        @Override
+        public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+            List<ImageRegion> regions = new ArrayList<>();
+            if (shape != null) {
+                var bounds = shape.getBounds();
+                regions.add(ImageRegion.createInstance(bounds.x, bounds.y, bounds.width, bounds.height,
+                        viewer.getZPosition(), viewer.getTPosition()));
+            }
+            if (selectedRegion != null)
+                regions.add(selectedRegion);
+            scheduler.prioritize(regions);
+        }
+
+        @Override
+        public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {}
+
+        @Override
+        public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {}
+
+        @Override
+        public void viewerClosed(QuPathViewer viewer) {}
+
+    }
+
     private static String modelPathToString(Path path) {
         if (GeneralTools.isWindows())
             return path.toString().replaceAll("\\\\", "/");
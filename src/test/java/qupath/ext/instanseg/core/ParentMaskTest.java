@@ -0,0 +1,110 @@
+package qupath.ext.instanseg.core;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.experimental.pixels.PixelProcessorUtils;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParentMaskTest {
+
+    private static final int SIZE = 4000;
+
+    @Test
+    void test_polygonParent() {
+        checkSameAsMaskObject(createWavyPolygon(SIZE / 2.0, SIZE / 2.0, SIZE / 3.0, 2000));
+    }
+
+    @Test
+    void test_parentWithHole() {
+        var outer = createWavyPolygon(SIZE / 2.0, SIZE / 2.0, SIZE / 3.0, 1000);
+        var hole = createWavyPolygon(SIZE / 2.0 + 100, SIZE / 2.0 - 50, SIZE / 8.0, 500);
+        var parent = GeometryTools.geometryToROI(outer.getGeometry().difference(hole.getGeometry()), ImagePlane.getDefaultPlane());
+        checkSameAsMaskObject(parent);
+    }
+
+    @Test
+    void test_rectangleParent() {
+        // Edges are aligned with pixels, but not with grid cells
+        checkSameAsMaskObject(ROIs.createRectangleROI(301, 250, 2500, 3001, ImagePlane.getDefaultPlane()));
+    }
+
+    @Test
+    void test_objectsInsideAreUnchanged() {
+        var parent = ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane());
+        var mask = new ParentMask.Cache().get(parent);
+        var pathObject = createObject(100, 100, 20);
+        assertSame(pathObject, mask.mask(pathObject).orElseThrow());
+        assertTrue(mask.mask(createObject(2000, 2000, 20)).isEmpty());
+    }
+
+    @Test
+    void test_cacheReusesMasks() {
+        var parent = ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane());
+        var cache = new ParentMask.Cache();
+        assertSame(cache.get(parent), cache.get(parent));
+    }
+
+    /**
+     * Check that masking gives the same result as {@link PixelProcessorUtils#maskObject(ROI, PathObject)} for objects
+     * inside, outside and crossing the boundary of the parent - including objects that span several grid cells.
+     */
+    private static void checkSameAsMaskObject(ROI parent) {
+        var mask = new ParentMask.Cache().get(parent);
+        var random = new Random(100);
+        List<PathObject> objects = new ArrayList<>();
+        for (double y = 3.3; y < SIZE; y += 53.7) {
+            for (double x = 7.1; x < SIZE; x += 53.7) {
+                objects.add(createObject(x, y, 10 + random.nextDouble() * 30));
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            objects.add(createObject(random.nextDouble() * SIZE, random.nextDouble() * SIZE, 300 + random.nextDouble() * 800));
+        }
+        int nClipped = 0;
+        for (var pathObject : objects) {
+            var expected = PixelProcessorUtils.maskObject(parent, pathObject);
+            var actual = mask.mask(pathObject);
+            assertEquals(expected.isPresent(), actual.isPresent(), "Different results for " + pathObject.getROI());
+            if (expected.isEmpty())
+                continue;
+            var expectedGeometry = expected.get().getROI().getGeometry();
+            var actualGeometry = actual.get().getROI().getGeometry();
+            if (expectedGeometry.getArea() < pathObject.getROI().getGeometry().getArea() - 1e-3)
+                nClipped++;
+            double difference = expectedGeometry.symDifference(actualGeometry).getArea();
+            assertEquals(0, difference, Math.max(1e-3, expectedGeometry.getArea() * 1e-4),
+                    "Different geometries for " + pathObject.getROI());
+        }
+        // Make sure the test includes objects crossing the boundary
+        assertTrue(nClipped > 10);
+    }
+
+    private static PathObject createObject(double x, double y, double size) {
+        return PathObjects.createDetectionObject(ROIs.createEllipseROI(x, y, size, size * 0.8, ImagePlane.getDefaultPlane()));
+    }
+
+    private static ROI createWavyPolygon(double cx, double cy, double radius, int nVertices) {
+        double[] x = new double[nVertices];
+        double[] y = new double[nVertices];
+        for (int i = 0; i < nVertices; i++) {
+            double theta = 2 * Math.PI * i / nVertices;
+            double r = radius * (1 + 0.1 * Math.sin(theta * 17));
+            x[i] = cx + r * Math.cos(theta);
+            y[i] = cy + r * Math.sin(theta);
+        }
+        return ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane());
+    }
+
+}
@@ -0,0 +1,46 @@
+package qupath.ext.instanseg.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThreadBudgetTest {
+
+    private static final List<Integer> ITEMS = IntStream.range(0, 1000).boxed().toList();
+
+    @Test
+    void test_defaultEngineThreadsAreUnmanaged() {
+        try (var budget = ThreadBudget.create(8, 4, EngineThreads.DEFAULT, 2)) {
+            assertSame(ThreadBudget.UNMANAGED, budget);
+            assertEquals(ITEMS.stream().map(i -> i * 2).toList(), budget.process(ITEMS, s -> s.map(i -> i * 2)));
+        }
+        // Setting only the inter-op threads doesn't tell us how many cores the engine uses
+        try (var budget = ThreadBudget.create(8, 4, new EngineThreads(0, 2), 2)) {
+            assertSame(ThreadBudget.UNMANAGED, budget);
+        }
+    }
+
+    @Test
+    void test_spareCoresUseObjectPool() {
+        try (var budget = ThreadBudget.create(8, 2, new EngineThreads(2, 1), 2)) {
+            var threadNames = budget.process(ITEMS, s -> s.map(i -> Thread.currentThread().getName()));
+            assertEquals(ITEMS.size(), threadNames.size());
+            assertTrue(threadNames.stream().allMatch(n -> n.startsWith("instanseg-objects-")));
+        }
+    }
+
+    @Test
+    void test_noSpareCoresUseCallingThread() {
+        try (var budget = ThreadBudget.create(8, 2, new EngineThreads(4, 1), 2)) {
+            var name = Thread.currentThread().getName();
+            var threadNames = budget.process(ITEMS, s -> s.map(i -> Thread.currentThread().getName()));
+            assertTrue(threadNames.stream().allMatch(name::equals));
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package qupath.ext.instanseg.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void test_restoreRecordedTiles() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        var objects = createObjects();
+        try (var journal = TileJournal.open(path, "config")) {
+            assertFalse(journal.isComplete("tile1"));
+            journal.record("tile1", objects);
+            journal.record("tile2", List.of());
+        }
+
+        try (var journal = TileJournal.open(path, "config")) {
+            assertTrue(journal.isComplete("tile1"));
+            assertTrue(journal.isComplete("tile2"));
+            assertFalse(journal.isComplete("tile3"));
+            assertEquals(0, journal.getTilesRestoredCount());
+
+            var restored = journal.restore("tile1");
+            assertEquals(objects.size(), restored.size());
+            for (int i = 0; i < objects.size(); i++) {
+                var expected = objects.get(i);
+                var actual = restored.get(i);
+                assertEquals(expected.getID(), actual.getID());
+                assertEquals(expected.getROI().getBoundsX(), actual.getROI().getBoundsX(), 1e-6);
+                assertEquals(expected.getROI().getBoundsY(), actual.getROI().getBoundsY(), 1e-6);
+                assertEquals(expected.getROI().getArea(), actual.getROI().getArea(), 1e-6);
+            }
+            assertTrue(journal.restore("tile2").isEmpty());
+            assertNull(journal.restore("tile3"));
+            assertEquals(2, journal.getTilesRestoredCount());
+        }
+    }
+
+    @Test
+    void test_appendAfterResume() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        try (var journal = TileJournal.open(path, "config")) {
+            journal.record("tile1", createObjects());
+        }
+        try (var journal = TileJournal.open(path, "config")) {
+            journal.record("tile2", createObjects());
+        }
+        try (var journal = TileJournal.open(path, "config")) {
+            assertTrue(journal.isComplete("tile1"));
+            assertTrue(journal.isComplete("tile2"));
+        }
+    }
+
+    @Test
+    void test_discardJournalWithDifferentConfiguration() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        try (var journal = TileJournal.open(path, "config")) {
+            journal.record("tile1", createObjects());
+        }
+        try (var journal = TileJournal.open(path, "other config")) {
+            assertFalse(journal.isComplete("tile1"));
+        }
+        // The journal should have been replaced, so the original configuration doesn't match either
+        try (var journal = TileJournal.open(path, "config")) {
+            assertFalse(journal.isComplete("tile1"));
+        }
+    }
+
+    @Test
+    void test_discardJournalWithInvalidHeader() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        Files.writeString(path, "not a header\n", StandardCharsets.UTF_8);
+        try (var journal = TileJournal.open(path, "config")) {
+            assertFalse(journal.isComplete("tile1"));
+            journal.record("tile1", createObjects());
+        }
+        try (var journal = TileJournal.open(path, "config")) {
+            assertTrue(journal.isComplete("tile1"));
+        }
+    }
+
+    @Test
+    void test_skipIncompleteEntry() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        try (var journal = TileJournal.open(path, "config")) {
+            journal.record("tile1", createObjects());
+        }
+        // Simulate a run that stopped part-way through writing a line
+        Files.writeString(path, "{\"tile\":\"tile2\",\"objects\":[", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        try (var journal = TileJournal.open(path, "config")) {
+            assertTrue(journal.isComplete("tile1"));
+            assertFalse(journal.isComplete("tile2"));
+        }
+    }
+
+    @Test
+    void test_resumeTwiceFromIncompleteEntry() throws IOException {
+        var path = tempDir.resolve("journal.jsonl");
+        try (var journal = TileJournal.open(path, "config")) {
+            journal.record("tile1", createObjects());
+        }
+        Files.writeString(path, "{\"tile\":\"tile2\",\"objects\":[", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        // The first new entry must not be appended to the incomplete line
+        try (var journal = TileJournal.open(path, "config")) {
+            journal.record("tile3", createObjects());
+        }
+        try (var journal = TileJournal.open(path, "config")) {
+            assertTrue(journal.isComplete("tile1"));
+            assertFalse(journal.isComplete("tile2"));
+            assertTrue(journal.isComplete("tile3"));
+            journal.record("tile4", createObjects());
+        }
+        try (var journal = TileJournal.open(path, "config")) {
+            assertTrue(journal.isComplete("tile1"));
+            assertTrue(journal.isComplete("tile3"));
+            assertTrue(journal.isComplete("tile4"));
+            assertEquals(3, journal.restore("tile4").size());
+        }
+        assertEquals(4, Files.readAllLines(path, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    void test_tileID() {
+        var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane()));
+        var other = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane()));
+        var request = RegionRequest.createInstance("image", 2.0, 0, 0, 512, 512);
+        var shifted = RegionRequest.createInstance("image", 2.0, 256, 0, 512, 512);
+
+        assertEquals(TileJournal.getTileID(parent, request), TileJournal.getTileID(parent, request));
+        assertNotEquals(TileJournal.getTileID(parent, request), TileJournal.getTileID(other, request));
+        assertNotEquals(TileJournal.getTileID(parent, request), TileJournal.getTileID(parent, shifted));
+    }
+
+    private static List<PathObject> createObjects() {
+        return List.of(
+                PathObjects.createDetectionObject(ROIs.createRectangleROI(10, 20, 30, 40, ImagePlane.getDefaultPlane())),
+                PathObjects.createDetectionObject(ROIs.createRectangleROI(100, 100, 25, 25, ImagePlane.getDefaultPlane())),
+                PathObjects.createDetectionObject(ROIs.createPolygonROI(
+                        new double[]{200, 240, 220}, new double[]{200, 200, 250}, ImagePlane.getDefaultPlane()))
+        );
+    }
+
+}
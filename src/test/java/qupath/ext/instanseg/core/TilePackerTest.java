@@ -0,0 +1,252 @@
+package qupath.ext.instanseg.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ColorTransforms;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TilePackerTest {
+
+    private static final int IMAGE_SIZE = 4000;
+    private static final double DOWNSAMPLE = 2.0;
+    private static final int TILE_DIMS = 256;
+    private static final int PADDING = 16;
+
+    private static ImageData<BufferedImage> imageData;
+    private static List<ColorTransforms.ColorTransform> channels;
+
+    @BeforeAll
+    static void createImage() {
+        var img = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        imageData = new ImageData<>(new WrappedBufferedImageServer("test", img));
+        channels = List.of(ColorTransforms.createChannelExtractor(0));
+    }
+
+    @Test
+    void test_canPack() {
+        var packer = createPacker(true);
+        assertTrue(packer.canPack(createParent(1000, 1000, 100, 100)));
+        // Padding and guard bands must fit within the tile as well
+        int maxSize = (int)((TILE_DIMS - TilePacker.GUARD * 2 - PADDING * 2) * DOWNSAMPLE);
+        assertTrue(packer.canPack(createParent(1000, 1000, maxSize, maxSize)));
+        assertFalse(packer.canPack(createParent(1000, 1000, maxSize + 10, maxSize)));
+        assertFalse(packer.canPack(createParent(1000, 1000, 600, 600)));
+        // Without guard bands, slightly larger parents fit
+        assertTrue(createPacker(false).canPack(createParent(1000, 1000, maxSize + 10, maxSize)));
+    }
+
+    @Test
+    void test_packedPlacements() {
+        var packer = createPacker(true);
+        var parents = createParents(50, new Random(42));
+        var canvases = packer.pack(parents);
+        assertTrue(canvases.size() < parents.size());
+        checkPlacements(parents, canvases, TilePacker.GUARD);
+    }
+
+    @Test
+    void test_separatePlacements() {
+        var packer = createPacker(false);
+        var parents = createParents(20, new Random(42));
+        var canvases = packer.pack(parents);
+        assertEquals(parents.size(), canvases.size());
+        for (var canvas : canvases) {
+            assertEquals(1, canvas.placements().size());
+            var placement = canvas.placements().getFirst();
+            assertEquals(0, placement.x());
+            assertEquals(0, placement.y());
+            assertEquals(canvas.width(), placement.width());
+            assertEquals(canvas.height(), placement.height());
+        }
+        checkPlacements(parents, canvases, 0);
+    }
+
+    @Test
+    void test_sameObjectsAsTiledParents() {
+        // One label includes a separate fragment, which should be removed by post-processing in both cases
+        var img = new BufferedImage(512, 512, BufferedImage.TYPE_BYTE_GRAY);
+        var raster = img.getRaster();
+        fill(raster, 170, 170, 40, 40, 255);
+        fill(raster, 250, 170, 6, 6, 255);
+        fill(raster, 170, 240, 30, 30, 170);
+        fill(raster, 240, 240, 25, 25, 85);
+        var testImageData = new ImageData<>(new WrappedBufferedImageServer("labels", img));
+        var parent = createParent(150, 150, 150, 150);
+        testImageData.getHierarchy().addObject(parent);
+
+        var tiled = detectObjects(testImageData, parent, false);
+        var packed = detectObjects(testImageData, parent, true);
+        assertEquals(3, tiled.size());
+        assertEquals(tiled.size(), packed.size());
+        for (int i = 0; i < tiled.size(); i++) {
+            var expected = tiled.get(i).getROI().getGeometry();
+            var actual = packed.get(i).getROI().getGeometry();
+            assertEquals(1, actual.getNumGeometries(), "Fragment was not removed");
+            assertEquals(0, expected.symDifference(actual).getArea(), 1e-6);
+        }
+    }
+
+    private static List<PathObject> detectObjects(ImageData<BufferedImage> imageData, PathObject parent, boolean pack) {
+        InstanSeg.builder()
+                .backend(new PixelLabelBackend())
+                .downsample(1)
+                .tileDims(TILE_DIMS)
+                .interTilePadding(PADDING)
+                .nThreads(1)
+                .packSmallParents(pack)
+                .build()
+                .detectObjects(imageData, List.of(parent));
+        return parent.getChildObjects().stream()
+                .sorted(Comparator.comparingDouble((PathObject p) -> p.getROI().getCentroidY())
+                        .thenComparingDouble(p -> p.getROI().getCentroidX()))
+                .toList();
+    }
+
+    private static void fill(WritableRaster raster, int x, int y, int width, int height, int value) {
+        for (int yy = y; yy < y + height; yy++) {
+            for (int xx = x; xx < x + width; xx++) {
+                raster.setSample(xx, yy, 0, value);
+            }
+        }
+    }
+
+    /**
+     * Backend that creates labels directly from the normalized pixel values, so that the labels for each pixel are
+     * the same however the image is tiled.
+     */
+    private static class PixelLabelBackend extends SyntheticBackend {
+
+        private PixelLabelBackend() {
+            super(new SyntheticPredictor.Spec(0, 1, 0, 1));
+        }
+
+        @Override
+        public Session load(InstanSegModel model, Options options) {
+            return new Session() {
+                @Override
+                public TilePredictor newPredictor() {
+                    return input -> {
+                        var labels = new Mat();
+                        input.convertTo(labels, opencv_core.CV_32S, 3, 0);
+                        return new Mat[]{labels};
+                    };
+                }
+
+                @Override
+                public void close() {}
+            };
+        }
+
+    }
+
+    /**
+     * Check that every parent is placed once, that placements don't overlap (including guard bands), and that the
+     * crop of each placement maps back to a region of the image that contains the parent and its padding.
+     */
+    private static void checkPlacements(List<PathObject> parents, List<TilePacker.Canvas> canvases, int guard) {
+        var placed = new HashSet<PathObject>();
+        for (var canvas : canvases) {
+            assertTrue(canvas.width() <= TILE_DIMS);
+            assertTrue(canvas.height() <= TILE_DIMS);
+            var placements = canvas.placements();
+            for (int i = 0; i < placements.size(); i++) {
+                var placement = placements.get(i);
+                assertTrue(placed.add(placement.parent()), "Parent placed more than once");
+
+                // Guard bands must be within the canvas
+                assertTrue(placement.x() - guard >= 0);
+                assertTrue(placement.y() - guard >= 0);
+                assertTrue(placement.x() + placement.width() + guard <= canvas.width());
+                assertTrue(placement.y() + placement.height() + guard <= canvas.height());
+
+                // Guard bands must not overlap
+                for (int j = i + 1; j < placements.size(); j++) {
+                    var other = placements.get(j);
+                    boolean separate = placement.x() + placement.width() + guard <= other.x() - guard ||
+                            other.x() + other.width() + guard <= placement.x() - guard ||
+                            placement.y() + placement.height() + guard <= other.y() - guard ||
+                            other.y() + other.height() + guard <= placement.y() - guard;
+                    assertTrue(separate, "Placements overlap: " + placement + " and " + other);
+                }
+
+                // The crop must be the size of the region read for the parent
+                var request = placement.request();
+                assertEquals((int)Math.ceil(request.getWidth() / DOWNSAMPLE), placement.width());
+                assertEquals((int)Math.ceil(request.getHeight() / DOWNSAMPLE), placement.height());
+
+                // The region must contain the parent and its padding (clipped to the image)
+                var roi = placement.parent().getROI();
+                int pad = (int)Math.round(PADDING * DOWNSAMPLE);
+                assertEquals(Math.max(0, (int)Math.floor(roi.getBoundsX()) - pad), request.getX());
+                assertEquals(Math.max(0, (int)Math.floor(roi.getBoundsY()) - pad), request.getY());
+                assertEquals(Math.min(IMAGE_SIZE, (int)Math.ceil(roi.getBoundsX() + roi.getBoundsWidth()) + pad),
+                        request.getX() + request.getWidth());
+                assertEquals(Math.min(IMAGE_SIZE, (int)Math.ceil(roi.getBoundsY() + roi.getBoundsHeight()) + pad),
+                        request.getY() + request.getHeight());
+                assertEquals(roi.getImagePlane(), request.getImagePlane());
+                assertEquals(DOWNSAMPLE, request.getDownsample());
+
+                // Mapping the parent into canvas coordinates (as when the labels are converted) must give a
+                // location within the crop for this parent, and outside the crops of all other parents
+                double x1 = placement.x() + (roi.getBoundsX() - request.getX()) / DOWNSAMPLE;
+                double y1 = placement.y() + (roi.getBoundsY() - request.getY()) / DOWNSAMPLE;
+                double x2 = x1 + roi.getBoundsWidth() / DOWNSAMPLE;
+                double y2 = y1 + roi.getBoundsHeight() / DOWNSAMPLE;
+                assertTrue(x1 >= placement.x() && x2 <= placement.x() + placement.width());
+                assertTrue(y1 >= placement.y() && y2 <= placement.y() + placement.height());
+                for (var other : placements) {
+                    if (other == placement)
+                        continue;
+                    boolean outside = x2 <= other.x() || x1 >= other.x() + other.width() ||
+                            y2 <= other.y() || y1 >= other.y() + other.height();
+                    assertTrue(outside, "Parent " + placement.parent() + " maps into the crop for " + other.parent());
+                }
+            }
+        }
+        assertEquals(new HashSet<>(parents), placed);
+    }
+
+    private static TilePacker createPacker(boolean shareTiles) {
+        return new TilePacker(imageData, channels, DOWNSAMPLE, TILE_DIMS, PADDING, shareTiles,
+                new StageTimer(), new ParentMask.Cache());
+    }
+
+    private static List<PathObject> createParents(int n, Random random) {
+        List<PathObject> parents = new ArrayList<>();
+        // Include parents at the image edges, where the padding is clipped
+        parents.add(createParent(0, 0, 120, 80));
+        parents.add(createParent(IMAGE_SIZE - 50, IMAGE_SIZE - 90, 50, 90));
+        for (int i = 0; i < n; i++) {
+            double w = 20 + random.nextDouble() * 300;
+            double h = 20 + random.nextDouble() * 300;
+            double x = random.nextDouble() * (IMAGE_SIZE - w);
+            double y = random.nextDouble() * (IMAGE_SIZE - h);
+            parents.add(PathObjects.createAnnotationObject(ROIs.createEllipseROI(x, y, w, h, ImagePlane.getDefaultPlane())));
+        }
+        return parents;
+    }
+
+    private static PathObject createParent(double x, double y, double width, double height) {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+    }
+
+}
@@ -0,0 +1,150 @@
+package qupath.ext.instanseg.core;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileShardTest {
+
+    private static final int TILE_SIZE = 256;
+
+    @Test
+    void test_everyTileHasOneOwner() {
+        var parents = List.of(
+                createParent(100, 50, 3000, 1000),
+                createParent(4000, 1200, 500, 2500),
+                createParent(-10, 3000, 700, 700));
+        var tiles = createTiles(parents);
+        for (int shardCount : new int[]{1, 2, 3, 4, 7, 16}) {
+            assertOneOwner(parents, tiles, shardCount);
+        }
+    }
+
+    @Test
+    void test_everyTileHasOneOwnerForTallParents() {
+        // Split along y rather than x
+        var parents = List.of(createParent(0, 0, 800, 10000));
+        var tiles = createTiles(parents);
+        for (int shardCount : new int[]{2, 3, 5}) {
+            assertOneOwner(parents, tiles, shardCount);
+        }
+    }
+
+    @Test
+    void test_tilesOnSeams() {
+        // Tile centroids fall exactly on the boundaries between shards
+        var parents = List.of(createParent(0, 0, 1000, 100));
+        List<ROI> tiles = new ArrayList<>();
+        for (int x = -50; x <= 1000; x += 50) {
+            tiles.add(ROIs.createRectangleROI(x, 0, 100, 100, ImagePlane.getDefaultPlane()));
+        }
+        assertOneOwner(parents, tiles, 4);
+        assertOneOwner(parents, tiles, 10);
+    }
+
+    @Test
+    void test_tilesOutsideParents() {
+        // Tiles can extend beyond the parents, and should be assigned to the nearest shard
+        var parents = List.of(createParent(1000, 1000, 1000, 1000));
+        var tiles = List.of(
+                ROIs.createRectangleROI(0, 1000, 100, 100, ImagePlane.getDefaultPlane()),
+                ROIs.createRectangleROI(5000, 1000, 100, 100, ImagePlane.getDefaultPlane()));
+        assertOneOwner(parents, tiles, 3);
+        assertTrue(new TileShard(0, 3).createTileFilter(parents).test(tiles.get(0)));
+        assertTrue(new TileShard(2, 3).createTileFilter(parents).test(tiles.get(1)));
+    }
+
+    @Test
+    void test_sharesAreBalanced() {
+        var parents = List.of(createParent(0, 0, TILE_SIZE * 40, TILE_SIZE * 10));
+        var tiles = createTiles(parents);
+        int shardCount = 4;
+        for (int i = 0; i < shardCount; i++) {
+            var filter = new TileShard(i, shardCount).createTileFilter(parents);
+            assertEquals(tiles.size() / shardCount, tiles.stream().filter(filter).count());
+        }
+    }
+
+    @Test
+    void test_invalidShards() {
+        assertThrows(IllegalArgumentException.class, () -> new TileShard(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TileShard(-1, 2));
+        assertThrows(IllegalArgumentException.class, () -> new TileShard(2, 2));
+    }
+
+    @Test
+    void test_assignToSmallestParent() {
+        var large = createParent(0, 0, 1000, 1000);
+        var small = createParent(100, 100, 200, 200);
+        var other = createParent(2000, 0, 500, 500);
+        var inSmall = createDetection(150, 150);
+        var inLarge = createDetection(800, 800);
+        var outside = createDetection(1500, 1500);
+        var assigned = TileShard.assignToParents(List.of(large, small, other), List.of(inSmall, inLarge, outside));
+        assertEquals(List.of(inLarge), assigned.get(large));
+        assertEquals(List.of(inSmall), assigned.get(small));
+        assertEquals(List.of(), assigned.get(other));
+    }
+
+    @Test
+    void test_assignToParentWithoutROI() {
+        // The root object has no ROI, and represents the whole image
+        var root = new PathRootObject();
+        var annotation = createParent(0, 0, 100, 100);
+        var inAnnotation = createDetection(50, 50);
+        var elsewhere = createDetection(5000, 5000);
+        var otherPlane = PathObjects.createDetectionObject(ROIs.createRectangleROI(45, 45, 10, 10, ImagePlane.getPlane(1, 0)));
+
+        var assigned = TileShard.assignToParents(List.of(root), List.of(inAnnotation, elsewhere, otherPlane));
+        assertEquals(List.of(inAnnotation, elsewhere, otherPlane), assigned.get(root));
+
+        assigned = TileShard.assignToParents(List.of(root, annotation), List.of(inAnnotation, elsewhere, otherPlane));
+        assertEquals(List.of(elsewhere, otherPlane), assigned.get(root));
+        assertEquals(List.of(inAnnotation), assigned.get(annotation));
+    }
+
+    private static PathObject createDetection(double x, double y) {
+        return PathObjects.createDetectionObject(ROIs.createRectangleROI(x - 5, y - 5, 10, 10, ImagePlane.getDefaultPlane()));
+    }
+
+    private static void assertOneOwner(List<PathObject> parents, List<ROI> tiles, int shardCount) {
+        List<Predicate<ROI>> filters = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            filters.add(new TileShard(i, shardCount).createTileFilter(parents));
+        }
+        for (var tile : tiles) {
+            long nOwners = filters.stream().filter(f -> f.test(tile)).count();
+            assertEquals(1, nOwners, "Tile " + tile + " has " + nOwners + " owners for " + shardCount + " shards");
+        }
+    }
+
+    private static PathObject createParent(double x, double y, double width, double height) {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+    }
+
+    private static List<ROI> createTiles(List<PathObject> parents) {
+        List<ROI> tiles = new ArrayList<>();
+        for (var parent : parents) {
+            var roi = parent.getROI();
+            for (double y = roi.getBoundsY(); y < roi.getBoundsY() + roi.getBoundsHeight(); y += TILE_SIZE) {
+                for (double x = roi.getBoundsX(); x < roi.getBoundsX() + roi.getBoundsWidth(); x += TILE_SIZE) {
+                    tiles.add(ROIs.createRectangleROI(x, y, TILE_SIZE, TILE_SIZE, ImagePlane.getDefaultPlane()));
+                }
+            }
+        }
+        return tiles;
+    }
+
+}